@@ -0,0 +1,315 @@
+package edu.rit.cs.pubsub;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * At-least-once delivery to one user that enabled acks.
+ *
+ * Every event for the user goes to the OfflineStore first, online or not,
+ * and is sent from there with its store offset as delivery tag. At most
+ * window events are unacknowledged at once; each ack makes room for the
+ * next ones, so throughput is not gated on every round trip.
+ *
+ * The user's cursor only moves past events acknowledged in order. An
+ * event still in flight when the connection dies is sent again on the
+ * next login, and one not acknowledged within the timeout is sent again
+ * on the same connection. Redelivered events may arrive twice and out of
+ * order; clients tell them apart by tag.
+ *
+ * Only the connection that last logged in or enabled acks receives events.
+ */
+public class AckedDelivery {
+
+    /**
+     * An event sent and not yet acknowledged
+     */
+    private static class Pending {
+        private final Event event;
+        // When it was last sent, 0 to send again at the next check
+        private long sentAt;
+
+        private Pending(Event event, long sentAt) {
+            this.event = event;
+            this.sentAt = sentAt;
+        }
+    }
+
+    private final String username;
+    private final OfflineStore store;
+    private final Function<String, Topic> topicResolver;
+    private final Executor executor;
+    private final long timeoutMillis;
+    private final Metrics.Counter acks;
+    private final Metrics.Counter redeliveries;
+
+    private final ReentrantLock lock;
+    private Connection connection;
+    private int window;
+    // Offset of the last record handed to the connection
+    private long lastSentOffset;
+    // Unacknowledged events by offset
+    private final TreeMap<Long, Pending> inFlight;
+    private long committedOffset;
+    private boolean pumping;
+    private boolean pumpAgain;
+
+    /**
+     * AckedDelivery constructor, nothing is sent until attach
+     * @param username user whose events are delivered
+     * @param store OfflineStore holding the events
+     * @param topicResolver maps topic names back to Topics
+     * @param executor runs sends and cursor commits, never the caller's thread
+     * @param timeoutMillis unacknowledged events are sent again after this
+     * @param acks counts acknowledged events
+     * @param redeliveries counts events sent again
+     */
+    public AckedDelivery(String username, OfflineStore store, Function<String, Topic> topicResolver, Executor executor,
+                         long timeoutMillis, Metrics.Counter acks, Metrics.Counter redeliveries) {
+        this.username = username;
+        this.store = store;
+        this.topicResolver = topicResolver;
+        this.executor = executor;
+        this.timeoutMillis = timeoutMillis;
+        this.acks = acks;
+        this.redeliveries = redeliveries;
+        this.lock = new ReentrantLock();
+        this.inFlight = new TreeMap<>();
+        this.lastSentOffset = -1;
+        this.committedOffset = -1;
+    }
+
+    /**
+     * Delivers to a connection from now on. Whatever was in flight is
+     * forgotten and sent again, starting from the user's cursor, once
+     * schedule is called.
+     * @param connection connection the user logged in on
+     * @param window most unacknowledged events, capped to half the
+     * connection's outbound queue so none are dropped for room
+     * @return the window in effect
+     */
+    public int attach(Connection connection, int window) {
+        int effective = Math.max(1, Math.min(window, connection.getOutbound().getCapacity() / 2));
+        this.lock.lock();
+        try {
+            this.connection = connection;
+            this.window = effective;
+            this.inFlight.clear();
+            this.lastSentOffset = -1;
+        } finally {
+            this.lock.unlock();
+        }
+        return effective;
+    }
+
+    /**
+     * @return the window in effect
+     */
+    public int getWindow() {
+        this.lock.lock();
+        try {
+            return this.window;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Sends newly stored events, if there is room in the window
+     */
+    public void schedule() {
+        this.executor.execute(this::pump);
+    }
+
+    private void pump() {
+        this.lock.lock();
+        try {
+            if (this.pumping) {
+                this.pumpAgain = true;
+                return;
+            }
+            this.pumping = true;
+        } finally {
+            this.lock.unlock();
+        }
+
+        boolean again;
+        try {
+            while (fill()) {
+                //Until the window is full or the user is caught up
+            }
+        } catch (IOException e) {
+            Log.error("ACKS", "Could not read events of " + this.username, e);
+        } finally {
+            this.lock.lock();
+            try {
+                this.pumping = false;
+                again = this.pumpAgain;
+                this.pumpAgain = false;
+            } finally {
+                this.lock.unlock();
+            }
+        }
+        if (again) {
+            schedule();
+        }
+    }
+
+    /**
+     * Sends one batch of stored events
+     * @return true if more may fit
+     */
+    private boolean fill() throws IOException {
+        Connection target;
+        long after;
+        int room;
+        this.lock.lock();
+        try {
+            target = this.connection;
+            after = this.lastSentOffset;
+            room = this.window - this.inFlight.size();
+        } finally {
+            this.lock.unlock();
+        }
+        if (target == null || !target.isOpen() || room <= 0) {
+            return false;
+        }
+
+        List<OfflineStore.Record> batch = this.store.read(this.username, after, room, this.topicResolver);
+        if (batch.isEmpty()) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        this.lock.lock();
+        try {
+            //Attached to another connection meanwhile, its own pump starts over
+            if (this.connection != target || this.lastSentOffset != after) {
+                return false;
+            }
+            for (OfflineStore.Record r : batch) {
+                this.inFlight.put(r.getOffset(), new Pending(r.getEvent(), now));
+                this.lastSentOffset = r.getOffset();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+        for (OfflineStore.Record r : batch) {
+            send(target, r.getOffset(), r.getEvent());
+        }
+        return true;
+    }
+
+    private void send(Connection target, long offset, Event event) {
+        target.writeToClient(WireProtocol.encode(Command.event(event, offset)), written -> {
+            if (!written) {
+                expire(offset);
+            }
+        });
+    }
+
+    /**
+     * A frame never reached the socket, send it again at the next check
+     */
+    private void expire(long offset) {
+        this.lock.lock();
+        try {
+            Pending p = this.inFlight.get(offset);
+            if (p != null) {
+                p.sentAt = 0;
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Marks events as received and commits the acknowledged prefix
+     * @param deliveryTags tags from an ACK, unknown ones are ignored
+     */
+    public void ack(long[] deliveryTags) {
+        int acked = 0;
+        long through;
+        this.lock.lock();
+        try {
+            for (long tag : deliveryTags) {
+                if (this.inFlight.remove(tag) != null) {
+                    acked++;
+                }
+            }
+            //Everything sent before the oldest unacknowledged event was acknowledged
+            through = this.inFlight.isEmpty() ? this.lastSentOffset : this.inFlight.firstKey() - 1;
+            if (through > this.committedOffset) {
+                this.committedOffset = through;
+            } else {
+                through = -1;
+            }
+        } finally {
+            this.lock.unlock();
+        }
+
+        this.acks.add(acked);
+        if (acked > 0) {
+            schedule();
+        }
+        if (through >= 0) {
+            final long offset = through;
+            this.executor.execute(() -> {
+                try {
+                    this.store.commit(this.username, offset);
+                } catch (IOException e) {
+                    Log.error("ACKS", "Could not commit cursor of " + this.username, e);
+                }
+            });
+        }
+    }
+
+    /**
+     * Sends again every event unacknowledged for longer than the timeout
+     * @param now current time in millis
+     */
+    public void redeliverExpired(long now) {
+        Connection target;
+        List<Map.Entry<Long, Event>> expired = new ArrayList<>();
+        this.lock.lock();
+        try {
+            target = this.connection;
+            if (target == null || !target.isOpen()) {
+                return;
+            }
+            for (Map.Entry<Long, Pending> e : this.inFlight.entrySet()) {
+                Pending p = e.getValue();
+                if (now - p.sentAt >= this.timeoutMillis) {
+                    p.sentAt = now;
+                    expired.add(Map.entry(e.getKey(), p.event));
+                }
+            }
+        } finally {
+            this.lock.unlock();
+        }
+        for (Map.Entry<Long, Event> e : expired) {
+            send(target, e.getKey(), e.getValue());
+        }
+        this.redeliveries.add(expired.size());
+        if (!expired.isEmpty()) {
+            Log.debug("ACKS", () -> "Redelivered " + expired.size() + " events to " + this.username);
+        }
+    }
+
+    /**
+     * @return events sent and not yet acknowledged
+     */
+    public int getInFlight() {
+        this.lock.lock();
+        try {
+            return this.inFlight.size();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+}
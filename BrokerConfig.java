@@ -0,0 +1,390 @@
+package edu.rit.cs.pubsub;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Startup options for the EventManager.
+ *
+ * Command line: PORT_NUMBER [blocking|nio] [--option value ...]
+ */
+public class BrokerConfig {
+
+	public static final String USAGE = "Usage: EventManager.java <PORT_NUMBER> ["
+			+ EventManager.BLOCKING_TRANSPORT + "|" + EventManager.NIO_TRANSPORT + "] [options] \n" +
+			"Options: \n" +
+			"		--threads platform|virtual                         threads running blocking handlers and nio commands \n" +
+			"		--queue-capacity N                                 frames buffered per connection \n" +
+			"		--overflow-policy drop-oldest|drop-newest|disconnect  when a connection's queue is full \n" +
+			"		--offline-dir DIR                                  where events for offline users are stored \n" +
+			"		--offline-retention-mb N                           max size of the offline store \n" +
+			"		--offline-retention-hours N                        max age of offline events \n" +
+			"		--log-level error|warn|info|debug|trace            debug logs every command \n" +
+			"		--metrics-port N                                   serve /metrics over HTTP, 0 for off \n" +
+			"		--node-id ID                                       this node's name in a cluster \n" +
+			"		--cluster-port N                                   port other nodes connect to \n" +
+			"		--peers ID=HOST:PORT,...                           the other nodes and their cluster ports \n" +
+			"		--replication-group ID=HOST:PORT,...               leader and standbys by priority, with their replication ports \n" +
+			"		--failover-ms N                                    leader silence before a standby takes over \n" +
+			"		--history-events N                                 events per topic kept in memory for subscribe from/since \n" +
+			"		--history-dir DIR                                  spill older topic events to disk here \n" +
+			"		--history-retention-mb N                           max size of each topic's spilled events \n" +
+			"		--state-dir DIR                                    persist topics, users and subscriptions across restarts \n" +
+			"		--snapshot-every N                                 state changes logged between snapshots \n" +
+			"		--state-sync always|group|none                     force every state change to disk, group concurrent ones, or leave it to the OS \n" +
+			"		--ack-timeout-ms N                                 unacknowledged events are redelivered after this \n" +
+			"		--max-in-flight N                                  most unacknowledged events per connection \n" +
+			"		--compress-min-bytes N                             smallest frame deflated for clients that ask, -1 refuses compression \n" +
+			"		--offline-compress-min-bytes N                     offline event contents this large are stored deflated, -1 for never";
+
+	private int port;
+	private String transportMode = EventManager.BLOCKING_TRANSPORT;
+	private String threadMode = Server.PLATFORM_THREADS;
+	private int queueCapacity = OutboundQueue.DEFAULT_CAPACITY;
+	private OutboundQueue.OverflowPolicy overflowPolicy = OutboundQueue.OverflowPolicy.DROP_OLDEST;
+	private String offlineDirectory = "offline-store";
+	private long offlineRetentionBytes = 1024L * 1024 * 1024;
+	private long offlineRetentionMillis = 7L * 24 * 60 * 60 * 1000;
+	private Log.Level logLevel = Log.Level.INFO;
+	private int metricsPort = 0;
+	private String nodeId = "node";
+	private int clusterPort = 0;
+	private Map<String, InetSocketAddress> peers = Collections.emptyMap();
+	private Map<String, InetSocketAddress> replicationGroup = Collections.emptyMap();
+	private long failoverMillis = 3000;
+	private int historyEvents = TopicHistory.DEFAULT_MEMORY_EVENTS;
+	private String historyDirectory = null;
+	private long historyRetentionBytes = TopicHistory.DEFAULT_RETENTION_BYTES;
+	private String stateDirectory = null;
+	private long snapshotEvery = StateLog.DEFAULT_SNAPSHOT_EVERY;
+	private StateLog.SyncPolicy stateSyncPolicy = StateLog.SyncPolicy.GROUP;
+	private long ackTimeoutMillis = 10000;
+	private int maxInFlight = 1000;
+	private int compressMinBytes = FrameCompressor.DEFAULT_MIN_BYTES;
+	private int offlineCompressMinBytes = OfflineStore.DEFAULT_COMPRESS_MIN_BYTES;
+
+	/**
+	 * Config with defaults for everything but the port
+	 * @param port port to host server on
+	 */
+	public BrokerConfig(int port){
+		this.port = port;
+	}
+
+	/**
+	 * Parses the command line
+	 * @param args program arguments
+	 * @return BrokerConfig
+	 * @throws IllegalArgumentException on bad input
+	 */
+	public static BrokerConfig parse(String[] args){
+		if(args.length < 1){
+			throw new IllegalArgumentException("Missing port");
+		}
+		BrokerConfig config = new BrokerConfig(Integer.parseInt(args[0]));
+
+		int i = 1;
+		if(i < args.length && !args[i].startsWith("--")){
+			config.setTransportMode(args[i]);
+			i++;
+		}
+
+		for(; i < args.length; i += 2){
+			if(i + 1 >= args.length){
+				throw new IllegalArgumentException("Missing value for " + args[i]);
+			}
+			String value = args[i + 1];
+			switch(args[i]){
+				case "--threads":
+					config.setThreadMode(value);
+					break;
+				case "--queue-capacity":
+					config.queueCapacity = Integer.parseInt(value);
+					if(config.queueCapacity < 1){
+						throw new IllegalArgumentException("Queue capacity must be positive");
+					}
+					break;
+				case "--overflow-policy":
+					config.overflowPolicy = OutboundQueue.OverflowPolicy.fromOption(value);
+					break;
+				case "--offline-dir":
+					config.offlineDirectory = value;
+					break;
+				case "--offline-retention-mb":
+					config.offlineRetentionBytes = Long.parseLong(value) * 1024 * 1024;
+					break;
+				case "--offline-retention-hours":
+					config.offlineRetentionMillis = Long.parseLong(value) * 60 * 60 * 1000;
+					break;
+				case "--log-level":
+					config.logLevel = Log.Level.fromOption(value);
+					break;
+				case "--metrics-port":
+					config.metricsPort = Integer.parseInt(value);
+					if(config.metricsPort < 0){
+						throw new IllegalArgumentException("Metrics port must not be negative");
+					}
+					break;
+				case "--node-id":
+					config.nodeId = value;
+					break;
+				case "--cluster-port":
+					config.clusterPort = Integer.parseInt(value);
+					break;
+				case "--peers":
+					config.peers = parsePeers(value);
+					break;
+				case "--replication-group":
+					config.replicationGroup = parsePeers(value);
+					break;
+				case "--history-events":
+					config.historyEvents = Integer.parseInt(value);
+					if(config.historyEvents <= 0){
+						throw new IllegalArgumentException("History must hold at least one event");
+					}
+					break;
+				case "--history-dir":
+					config.historyDirectory = value;
+					break;
+				case "--history-retention-mb":
+					config.historyRetentionBytes = Long.parseLong(value) * 1024 * 1024;
+					break;
+				case "--state-dir":
+					config.stateDirectory = value;
+					break;
+				case "--snapshot-every":
+					config.snapshotEvery = Long.parseLong(value);
+					if(config.snapshotEvery <= 0){
+						throw new IllegalArgumentException("Snapshot interval must be positive");
+					}
+					break;
+				case "--state-sync":
+					config.stateSyncPolicy = StateLog.SyncPolicy.fromOption(value);
+					break;
+				case "--failover-ms":
+					config.failoverMillis = Long.parseLong(value);
+					if(config.failoverMillis <= 0){
+						throw new IllegalArgumentException("Failover time must be positive");
+					}
+					break;
+				case "--ack-timeout-ms":
+					config.ackTimeoutMillis = Long.parseLong(value);
+					if(config.ackTimeoutMillis <= 0){
+						throw new IllegalArgumentException("Ack timeout must be positive");
+					}
+					break;
+				case "--max-in-flight":
+					config.maxInFlight = Integer.parseInt(value);
+					if(config.maxInFlight <= 0){
+						throw new IllegalArgumentException("Max in flight must be positive");
+					}
+					break;
+				case "--compress-min-bytes":
+					config.compressMinBytes = Integer.parseInt(value);
+					if(config.compressMinBytes < FrameCompressor.OFF){
+						throw new IllegalArgumentException("Compress min bytes must be -1 or more");
+					}
+					break;
+				case "--offline-compress-min-bytes":
+					config.offlineCompressMinBytes = Integer.parseInt(value);
+					if(config.offlineCompressMinBytes < FrameCompressor.OFF){
+						throw new IllegalArgumentException("Offline compress min bytes must be -1 or more");
+					}
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+		}
+		if(!config.peers.isEmpty()){
+			if(config.clusterPort <= 0){
+				throw new IllegalArgumentException("--peers needs a --cluster-port");
+			}
+			if(config.peers.containsKey(config.nodeId)){
+				throw new IllegalArgumentException("Node " + config.nodeId + " lists itself as a peer");
+			}
+		}
+		if(!config.replicationGroup.isEmpty()){
+			if(!config.replicationGroup.containsKey(config.nodeId)){
+				throw new IllegalArgumentException("Node " + config.nodeId + " is not in its replication group");
+			}
+			if(config.isClustered()){
+				throw new IllegalArgumentException("--replication-group and --peers cannot be combined");
+			}
+		}
+		return config;
+	}
+
+	/**
+	 * @param value id=host:port,id=host:port
+	 * @return peer addresses by node id, in the given order
+	 */
+	private static Map<String, InetSocketAddress> parsePeers(String value){
+		Map<String, InetSocketAddress> peers = new LinkedHashMap<>();
+		for(String peer : value.split(",")){
+			int eq = peer.indexOf('=');
+			int colon = peer.lastIndexOf(':');
+			if(eq <= 0 || colon < eq){
+				throw new IllegalArgumentException("Bad peer " + peer + ", expected ID=HOST:PORT");
+			}
+			peers.put(peer.substring(0, eq), new InetSocketAddress(peer.substring(eq + 1, colon), Integer.parseInt(peer.substring(colon + 1))));
+		}
+		return peers;
+	}
+
+	public int getPort(){
+		return this.port;
+	}
+
+	public String getTransportMode(){
+		return this.transportMode;
+	}
+
+	public void setTransportMode(String transportMode){
+		if(!transportMode.equals(EventManager.BLOCKING_TRANSPORT) && !transportMode.equals(EventManager.NIO_TRANSPORT)){
+			throw new IllegalArgumentException("Unknown transport " + transportMode);
+		}
+		this.transportMode = transportMode;
+	}
+
+	public String getThreadMode(){
+		return this.threadMode;
+	}
+
+	public void setThreadMode(String threadMode){
+		if(!threadMode.equals(Server.PLATFORM_THREADS) && !threadMode.equals(Server.VIRTUAL_THREADS)){
+			throw new IllegalArgumentException("Unknown thread mode " + threadMode);
+		}
+		this.threadMode = threadMode;
+	}
+
+	public int getQueueCapacity(){
+		return this.queueCapacity;
+	}
+
+	public OutboundQueue.OverflowPolicy getOverflowPolicy(){
+		return this.overflowPolicy;
+	}
+
+	public String getOfflineDirectory(){
+		return this.offlineDirectory;
+	}
+
+	public void setOfflineDirectory(String offlineDirectory){
+		this.offlineDirectory = offlineDirectory;
+	}
+
+	public long getOfflineRetentionBytes(){
+		return this.offlineRetentionBytes;
+	}
+
+	public long getOfflineRetentionMillis(){
+		return this.offlineRetentionMillis;
+	}
+
+	public Log.Level getLogLevel(){
+		return this.logLevel;
+	}
+
+	public int getMetricsPort(){
+		return this.metricsPort;
+	}
+
+	public String getNodeId(){
+		return this.nodeId;
+	}
+
+	public int getClusterPort(){
+		return this.clusterPort;
+	}
+
+	/**
+	 * @return the other cluster nodes by id, empty when not clustered
+	 */
+	public Map<String, InetSocketAddress> getPeers(){
+		return this.peers;
+	}
+
+	public boolean isClustered(){
+		return !this.peers.isEmpty();
+	}
+
+	/**
+	 * @return every member of the replication group, this node included,
+	 * by id in priority order; empty when not replicated
+	 */
+	public Map<String, InetSocketAddress> getReplicationGroup(){
+		return this.replicationGroup;
+	}
+
+	public int getHistoryEvents(){
+		return this.historyEvents;
+	}
+
+	/**
+	 * @return where topic history spills, null for memory only
+	 */
+	public String getHistoryDirectory(){
+		return this.historyDirectory;
+	}
+
+	public long getHistoryRetentionBytes(){
+		return this.historyRetentionBytes;
+	}
+
+	/**
+	 * @return where the registry is persisted, null if it is not
+	 */
+	public String getStateDirectory(){
+		return this.stateDirectory;
+	}
+
+	public long getSnapshotEvery(){
+		return this.snapshotEvery;
+	}
+
+	/**
+	 * @return when state log changes are forced to disk
+	 */
+	public StateLog.SyncPolicy getStateSyncPolicy(){
+		return this.stateSyncPolicy;
+	}
+
+	public long getFailoverMillis(){
+		return this.failoverMillis;
+	}
+
+	public long getAckTimeoutMillis(){
+		return this.ackTimeoutMillis;
+	}
+
+	/**
+	 * @return most unacknowledged events a connection may have, the
+	 * window a client asks for is capped to this
+	 */
+	public int getMaxInFlight(){
+		return this.maxInFlight;
+	}
+
+	/**
+	 * @return smallest frame compressed for a client that asks, the
+	 * threshold a client asks for is raised to this; FrameCompressor.OFF
+	 * if clients may not turn compression on
+	 */
+	public int getCompressMinBytes(){
+		return this.compressMinBytes;
+	}
+
+	/**
+	 * @return smallest event content the offline store keeps deflated,
+	 * FrameCompressor.OFF for none
+	 */
+	public int getOfflineCompressMinBytes(){
+		return this.offlineCompressMinBytes;
+	}
+
+	public boolean isReplicated(){
+		return !this.replicationGroup.isEmpty();
+	}
+}
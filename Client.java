@@ -9,16 +9,43 @@ package edu.rit.cs.pubsub;
 
 import java.net.*;
 import java.io.*;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.Inflater;
 
 /**
- * TCP Client implementation that can send and receive objects.
+ * TCP Client implementation that can send and receive Commands.
  * Fully compartmentalized, has nothing to do with WordCount.
+ * Speaks the WireProtocol binary framing.
+ *
+ * Either read synchronously with receiveCommand, or call startReader and
+ * pipeline requests with sendAsync: each request gets a correlation id
+ * and its future completes when the matching reply arrives.
+ *
+ * After "compress N" the server may send COMPRESSED frames; they are
+ * inflated here and read like any other.
  */
 public class Client {
+    public static final int DEFAULT_MAX_IN_FLIGHT = 1024;
+
     private String serverAddress;
     private Socket connectionSocket;
-    private ObjectInputStream in;
-    private ObjectOutputStream out;
+    private DataInputStream in;
+    private OutputStream out;
+    //Serializes frame writes from concurrent senders
+    private ReentrantLock writeLock;
+    //Inflates COMPRESSED frames, its window spans the whole connection
+    private Inflater inflater;
+
+    //Pipelining state
+    private AtomicInteger nextCorrelationId;
+    private ConcurrentHashMap<Integer, CompletableFuture<Command>> pendingReplies;
+    private Semaphore inFlight;
 
     /**
      * Client constructor, takes in a server address and port to connect to
@@ -27,61 +54,175 @@ public class Client {
      * @throws IOException
      */
     public Client(String serverAddress, int serverPort) {
+        this(serverAddress, serverPort, null);
+    }
+
+    /**
+     * Client constructor connecting from a given local address, e.g. to
+     * spread many clients over 127.x.y.z so they do not run out of
+     * ephemeral ports. Every connection is its own session either way.
+     * @param serverAddress Address of the server
+     * @param serverPort Port of the server
+     * @param localAddress local ip to connect from, null for any
+     */
+    public Client(String serverAddress, int serverPort, String localAddress) {
         System.out.println("[CLIENT] Constructor Called");
         this.serverAddress = serverAddress;
 
         System.out.println("[CLIENT] Connecting to server...");
         while (this.connectionSocket == null) {
             try {
-                this.connectionSocket = new Socket(this.serverAddress, serverPort);
+                if (localAddress == null) {
+                    this.connectionSocket = new Socket(this.serverAddress, serverPort);
+                } else {
+                    this.connectionSocket = new Socket(this.serverAddress, serverPort, InetAddress.getByName(localAddress), 0);
+                }
             }catch (Exception e){
                 continue;
             }
         }
         System.out.println("[CLIENT] Server Connected: " + this.connectionSocket.isConnected());
 
-        //Assign Output Stream first - Blocking operations
-        //https://stackoverflow.com/questions/8186135/java-sockets-program-stops-at-socket-getinputstream-w-o-error
         try {
             System.out.println("[CLIENT] Assigning OUT Stream...");
-            this.out = new ObjectOutputStream(this.connectionSocket.getOutputStream());
+            this.out = this.connectionSocket.getOutputStream();
             System.out.println("[CLIENT] Assigning IN Stream...");
-            this.in = new ObjectInputStream(this.connectionSocket.getInputStream());
+            this.in = new DataInputStream(new BufferedInputStream(this.connectionSocket.getInputStream()));
         } catch (IOException e) {
             e.printStackTrace();
         }
 
+        this.writeLock = new ReentrantLock();
+        this.inflater = new Inflater(true);
+        this.nextCorrelationId = new AtomicInteger();
+        this.pendingReplies = new ConcurrentHashMap<>();
+        this.inFlight = new Semaphore(DEFAULT_MAX_IN_FLIGHT);
+
         System.out.println("[CLIENT] Created");
 
     }
 
     /**
-     * Writes and object to the server
-     * @param myObject - Object to write
-     * @throws IOException
+     * Writes a command to the server
+     * @param command - Command to write
      */
-    public void sendObject(Object myObject){
+    public void sendCommand(Command command){
         try {
-            out.writeObject(myObject);
-            out.flush();
+            //Not synchronized, a virtual thread blocked writing would pin its carrier
+            this.writeLock.lock();
+            try {
+                WireProtocol.write(out, command);
+            } finally {
+                this.writeLock.unlock();
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
     /**
-     * Reads an object from the server
-     * @return Object read from server
-     * @throws IOException
-     * @throws ClassNotFoundException
+     * Acknowledges an event, if it was sent with a delivery tag (after
+     * "acks N"), so the server does not send it again
+     * @param event EVENT received from the server
+     */
+    public void ack(Command event) {
+        long tag = event.getDeliveryTag();
+        if (tag != Command.NO_DELIVERY_TAG) {
+            sendCommand(Command.ack(Collections.singletonList(tag)));
+        }
+    }
+
+    /**
+     * Sends a request without waiting for its reply.
+     * Blocks only while the max number of requests are already in flight.
+     * Requires startReader to have been called.
+     * @param command request to send
+     * @return future completed with the REPLY, or exceptionally if the connection drops
+     * @throws InterruptedException while waiting for an in-flight slot
+     */
+    public CompletableFuture<Command> sendAsync(Command command) throws InterruptedException {
+        this.inFlight.acquire();
+
+        int correlationId;
+        do {
+            correlationId = this.nextCorrelationId.incrementAndGet();
+        } while (correlationId == Command.NO_CORRELATION_ID);
+
+        CompletableFuture<Command> reply = new CompletableFuture<>();
+        reply.whenComplete((r, e) -> this.inFlight.release());
+        this.pendingReplies.put(correlationId, reply);
+
+        try {
+            this.writeLock.lock();
+            try {
+                WireProtocol.write(out, command.withCorrelationId(correlationId));
+            } finally {
+                this.writeLock.unlock();
+            }
+        } catch (IOException e) {
+            this.pendingReplies.remove(correlationId);
+            reply.completeExceptionally(e);
+        }
+        return reply;
+    }
+
+    /**
+     * Changes how many sendAsync requests may await replies at once.
+     * Call before the first sendAsync.
+     * @param maxInFlight limit
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Starts a thread that reads every frame from the server. Replies
+     * complete their sendAsync future; events, notices and uncorrelated
+     * replies go to the listener. Do not use receiveCommand afterwards.
+     * @param listener receives unsolicited frames
      */
-    public Object receiveObject(){
+    public void startReader(Consumer<Command> listener) {
+        Thread reader = new Thread(() -> {
+            Command command;
+            while ((command = receiveCommand()) != null) {
+                CompletableFuture<Command> reply = null;
+                if (command.getCorrelationId() != Command.NO_CORRELATION_ID) {
+                    reply = this.pendingReplies.remove(command.getCorrelationId());
+                }
+                if (reply != null) {
+                    reply.complete(command);
+                } else {
+                    listener.accept(command);
+                }
+            }
+
+            //Connection gone, nothing pending will be answered
+            IOException closed = new EOFException("Connection closed");
+            for (Integer id : this.pendingReplies.keySet()) {
+                CompletableFuture<Command> reply = this.pendingReplies.remove(id);
+                if (reply != null) {
+                    reply.completeExceptionally(closed);
+                }
+            }
+        }, "client-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Reads a reply, event or notice from the server
+     * @return Command read from server, null once the connection is gone
+     */
+    public Command receiveCommand(){
         try {
-            return in.readObject();
+            return WireProtocol.read(in, this.inflater);
+        } catch (EOFException e) {
+            return null;
         } catch (IOException e) {
-            e.printStackTrace();
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
+            //Closed by kill(), not an error
+            if (!this.connectionSocket.isClosed()) {
+                e.printStackTrace();
+            }
         }
         return null;
     }
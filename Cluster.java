@@ -0,0 +1,431 @@
+package edu.rit.cs.pubsub;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Links one EventManager to the other broker nodes of a cluster.
+ *
+ * Topics are partitioned over the nodes by a HashRing on Topic.getId().
+ * Every node knows every topic (advertises are announced to all nodes),
+ * but only a topic's owner publishes its events: other nodes forward
+ * PUBLISH to the owner. The owner keeps, per topic, the nodes that have
+ * subscribers of it and sends each of them the event once; every node
+ * then delivers to, or caches for, its own users. Users belong to the
+ * node they log in to.
+ *
+ * Nodes talk over their own cluster port, one outgoing PeerLink per
+ * peer. A link that (re)connects starts with PEER_HELLO and then resends
+ * this node's topics and interests, so a restarted node catches up.
+ * Frames a link could not write are lost; the link is best effort.
+ */
+public class Cluster {
+
+    private final String nodeId;
+    private final int clusterPort;
+    private final HashRing ring;
+    private final EventManager eventManager;
+    private final Map<String, PeerLink> links;
+
+    // Nodes with subscribers, per topic this node owns
+    private final ConcurrentHashMap<String, Set<String>> interestedNodesGivenTopic;
+    // Interest last sent to the owner, per topic owned elsewhere
+    private final ConcurrentHashMap<String, Boolean> interestSent;
+
+    private final OutboundQueue.Stats linkStats;
+    private final Metrics.Counter forwarded;
+    private final Metrics.Counter deliveriesSent;
+    private final Metrics.Counter received;
+
+    private ServerSocket listenSocket;
+
+    /**
+     * Cluster constructor
+     * @param config node id, cluster port and peers
+     * @param eventManager the local EventManager
+     */
+    public Cluster(BrokerConfig config, EventManager eventManager) {
+        this.nodeId = config.getNodeId();
+        this.clusterPort = config.getClusterPort();
+        this.eventManager = eventManager;
+        this.interestedNodesGivenTopic = new ConcurrentHashMap<>();
+        this.interestSent = new ConcurrentHashMap<>();
+        this.linkStats = new OutboundQueue.Stats();
+
+        List<String> members = new ArrayList<>(config.getPeers().keySet());
+        members.add(this.nodeId);
+        this.ring = new HashRing(members);
+
+        this.links = new LinkedHashMap<>();
+        for (Map.Entry<String, InetSocketAddress> peer : config.getPeers().entrySet()) {
+            this.links.put(peer.getKey(), new PeerLink(this, peer.getKey(), peer.getValue(), this.linkStats));
+        }
+
+        Metrics metrics = eventManager.getMetrics();
+        this.forwarded = metrics.counter("pubsub_cluster_forwarded_publishes_total", "Publishes forwarded to the topic's owner");
+        this.deliveriesSent = metrics.counter("pubsub_cluster_deliveries_sent_total", "Events sent to nodes with subscribers");
+        this.received = metrics.counter("pubsub_cluster_frames_received_total", "Frames received from other nodes");
+        metrics.gauge("pubsub_cluster_peers_connected", "Peers this node's links are connected to", () -> {
+            long connected = 0;
+            for (PeerLink link : this.links.values()) {
+                connected += link.isOpen() ? 1 : 0;
+            }
+            return connected;
+        });
+        metrics.gauge("pubsub_cluster_link_queue_frames", "Frames waiting on links to other nodes", () -> {
+            long total = 0;
+            for (PeerLink link : this.links.values()) {
+                total += link.getOutbound().size();
+            }
+            return total;
+        });
+        metrics.counter("pubsub_cluster_link_dropped_total", "Frames dropped on a full link queue", this.linkStats::getDroppedOldest);
+    }
+
+    /**
+     * Binds the cluster port and starts the links. Does not block.
+     * @throws IOException if the cluster port cannot be bound
+     */
+    public void start() throws IOException {
+        this.listenSocket = new ServerSocket(this.clusterPort);
+        Thread acceptor = new Thread(this::accept, "cluster-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (PeerLink link : this.links.values()) {
+            link.start();
+        }
+        Log.info("CLUSTER", "Node " + this.nodeId + " on cluster port " + this.clusterPort + ", members " + this.ring.getNodes());
+    }
+
+    public String getNodeId() {
+        return this.nodeId;
+    }
+
+    public String ownerOf(Topic topic) {
+        return this.ring.ownerOf(topic);
+    }
+
+    public boolean isOwner(Topic topic) {
+        return ownerOf(topic).equals(this.nodeId);
+    }
+
+    /**
+     * Announces a topic advertised on this node to every other node
+     * @param topic new Topic
+     */
+    public void announceTopic(Topic topic) {
+        SharedFrame frame = SharedFrame.encode(Command.peerTopic(topic), false);
+        for (PeerLink link : this.links.values()) {
+            frame.writeTo(link);
+        }
+        frame.release();
+    }
+
+    /**
+     * Sends a publish on a topic owned elsewhere to its owner
+     */
+    public void forwardPublish(Topic topic, String title, String content, long timestamp) {
+        this.links.get(ownerOf(topic)).writeToClient(Command.peerPublish(topic.getName(), title, content, timestamp));
+        this.forwarded.increment();
+    }
+
+    /**
+     * Sends an event on a topic this node owns to every other node with
+     * subscribers of it, encoded once
+     * @param event Event
+     */
+    public void deliver(Event event) {
+        Set<String> nodes = this.interestedNodesGivenTopic.get(event.getTopic().getName());
+        if (nodes == null || nodes.isEmpty()) {
+            return;
+        }
+        SharedFrame frame = null;
+        for (String node : nodes) {
+            PeerLink link = this.links.get(node);
+            if (link == null) {
+                continue;
+            }
+            if (frame == null) {
+                frame = SharedFrame.encode(Command.peerDeliver(event), false);
+            }
+            frame.writeTo(link);
+            this.deliveriesSent.increment();
+        }
+        if (frame != null) {
+            frame.release();
+        }
+    }
+
+    /**
+     * Records whether this node has subscribers of a topic, telling the
+     * owner when that changes. The caller serializes calls per topic.
+     * @param topic Topic
+     * @param interested true if any local user subscribes to it
+     */
+    public void setInterest(Topic topic, boolean interested) {
+        String owner = ownerOf(topic);
+        if (owner.equals(this.nodeId)) {
+            updateInterest(topic.getName(), this.nodeId, interested);
+            return;
+        }
+        Boolean previous = this.interestSent.put(topic.getName(), interested);
+        if (previous == null ? interested : previous != interested) {
+            this.links.get(owner).writeToClient(Command.peerInterest(topic.getName(), this.nodeId, interested));
+        }
+    }
+
+    /**
+     * Resends one topic, and this node's interest in it if the peer owns
+     * it, to a peer that may have lost them
+     * @param node peer
+     * @param topic Topic
+     * @param interested true if any local user subscribes to it
+     */
+    void resend(String node, Topic topic, boolean interested) {
+        PeerLink link = this.links.get(node);
+        if (link == null) {
+            return;
+        }
+        link.writeToClient(Command.peerTopic(topic));
+        if (interested && ownerOf(topic).equals(node)) {
+            link.writeToClient(Command.peerInterest(topic.getName(), this.nodeId, true));
+        }
+    }
+
+    private void updateInterest(String topicName, String node, boolean interested) {
+        if (interested) {
+            this.interestedNodesGivenTopic.computeIfAbsent(topicName, t -> ConcurrentHashMap.newKeySet()).add(node);
+        } else {
+            Set<String> nodes = this.interestedNodesGivenTopic.get(topicName);
+            if (nodes != null) {
+                nodes.remove(node);
+            }
+        }
+    }
+
+    /**
+     * Called by a link once it is connected and has sent PEER_HELLO
+     * @param node peer
+     */
+    void linkConnected(String node) {
+        Log.info("CLUSTER", "Connected to " + node);
+        this.eventManager.syncPeer(node);
+    }
+
+    private void accept() {
+        while (!this.listenSocket.isClosed()) {
+            try {
+                Socket socket = this.listenSocket.accept();
+                Thread reader = new Thread(() -> read(socket), "cluster-in");
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (!this.listenSocket.isClosed()) {
+                    Log.error("CLUSTER", "Incoming Connection Problem", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads one peer's frames: PEER_HELLO, then anything else
+     */
+    private void read(Socket socket) {
+        String node = null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            Command hello = WireProtocol.read(in);
+            if (hello.getOpcode() != Command.PEER_HELLO || !hello.hasValidArgs() || !this.links.containsKey(hello.getArg(0))) {
+                Log.warn("CLUSTER", "Rejected link from " + socket.getRemoteSocketAddress() + ", not a cluster member");
+                return;
+            }
+            node = hello.getArg(0);
+            //The peer resends its interests right after hello
+            for (Set<String> nodes : this.interestedNodesGivenTopic.values()) {
+                nodes.remove(node);
+            }
+            Log.info("CLUSTER", "Link from " + node);
+            //It may have restarted without our link noticing
+            this.eventManager.syncPeer(node);
+
+            while (true) {
+                Command command = WireProtocol.read(in);
+                this.received.increment();
+                if (!command.isPeerCommand() || !command.hasValidArgs()) {
+                    Log.warn("CLUSTER", "Bad frame from " + node + ": " + command);
+                    continue;
+                }
+                if (command.getOpcode() == Command.PEER_INTEREST) {
+                    updateInterest(command.getArg(0), command.getArg(1), command.getArg(2).equals("1"));
+                } else {
+                    this.eventManager.passPeerCommand(node, command);
+                }
+            }
+        } catch (EOFException e) {
+            //Peer closed the link
+        } catch (IOException e) {
+            Log.warn("CLUSTER", "Link from " + (node != null ? node : socket.getRemoteSocketAddress()) + " failed: " + e.getMessage());
+        } finally {
+            NioServer.closeQuietly(socket);
+        }
+    }
+
+    /**
+     * Closes the cluster port and every link
+     */
+    public void shutdown() {
+        NioServer.closeQuietly(this.listenSocket);
+        for (PeerLink link : this.links.values()) {
+            link.kill();
+        }
+    }
+
+    /**
+     * @return id to link of every peer
+     */
+    Map<String, PeerLink> getLinks() {
+        return Collections.unmodifiableMap(this.links);
+    }
+}
+
+/**
+ * Outgoing link to one peer node. Frames are queued without blocking and
+ * written by the link's own thread, which connects, and reconnects after
+ * a failure, by itself. Queued frames wait for the connection.
+ */
+class PeerLink implements Connection {
+    // Frames held while the peer is slow or unreachable
+    private static final int QUEUE_CAPACITY = 64 * 1024;
+    private static final long RECONNECT_MILLIS = 500;
+
+    private final Cluster cluster;
+    private final String node;
+    private final InetSocketAddress address;
+    private final OutboundQueue outbound;
+    private final StreamWriter writer;
+    private volatile Socket socket;
+    private volatile boolean running;
+
+    PeerLink(Cluster cluster, String node, InetSocketAddress address, OutboundQueue.Stats stats) {
+        this.cluster = cluster;
+        this.node = node;
+        this.address = address;
+        this.outbound = new OutboundQueue(QUEUE_CAPACITY, OutboundQueue.OverflowPolicy.DROP_OLDEST, stats);
+        this.writer = new StreamWriter(this.outbound);
+        this.running = true;
+    }
+
+    void start() {
+        Thread t = new Thread(this::run, "cluster-link-" + this.node);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public String getNode() {
+        return this.node;
+    }
+
+    @Override
+    public String getClientIP() {
+        return this.address.getHostString();
+    }
+
+    @Override
+    public String getSessionId() {
+        return "node " + this.node;
+    }
+
+    @Override
+    public boolean isOpen() {
+        Socket s = this.socket;
+        return s != null && !s.isClosed();
+    }
+
+    @Override
+    public void writeToClient(ByteBuffer frame, OutboundQueue.FrameListener listener, String conflationKey) {
+        //DROP_OLDEST never refuses
+        this.outbound.offer(frame, listener, conflationKey);
+    }
+
+    @Override
+    public OutboundQueue getOutbound() {
+        return this.outbound;
+    }
+
+    @Override
+    public long getBytesOut() {
+        return this.writer.getBytesOut();
+    }
+
+    private void run() {
+        while (this.running) {
+            Socket s = connect();
+            if (s == null) {
+                return;
+            }
+            try {
+                OutputStream out = new BufferedOutputStream(s.getOutputStream());
+                WireProtocol.write(out, Command.peerHello(this.cluster.getNodeId()));
+                this.socket = s;
+                this.cluster.linkConnected(this.node);
+                this.writer.drain(out);
+                return;
+            } catch (IOException e) {
+                if (this.running) {
+                    Log.warn("CLUSTER", "Lost link to " + this.node + ": " + e.getMessage());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                this.socket = null;
+                NioServer.closeQuietly(s);
+            }
+        }
+    }
+
+    /**
+     * @return a connected socket, retrying until one is, or null once killed
+     */
+    private Socket connect() {
+        while (this.running) {
+            Socket s = new Socket();
+            try {
+                s.connect(this.address, (int) RECONNECT_MILLIS);
+                s.setTcpNoDelay(true);
+                return s;
+            } catch (IOException e) {
+                NioServer.closeQuietly(s);
+                try {
+                    Thread.sleep(RECONNECT_MILLIS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean kill() {
+        this.running = false;
+        this.outbound.discard();
+        NioServer.closeQuietly(this.socket);
+        return true;
+    }
+}
@@ -0,0 +1,744 @@
+package edu.rit.cs.pubsub;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A single message on the wire: an opcode plus its typed arguments.
+ * Client to server opcodes carry the console commands,
+ * server to client opcodes carry replies, events and notices.
+ *
+ * A request may carry a non-zero correlation id; its REPLY carries the
+ * same id, so a client can keep many requests in flight and match the
+ * replies as they arrive. Events and notices always carry 0.
+ */
+public class Command {
+
+	//Client -> Server
+	public static final byte LOGIN = 1;
+	public static final byte PUBLISH = 2;
+	public static final byte ADVERTISE = 3;
+	public static final byte SUBSCRIBE_TOPIC = 4;
+	public static final byte SUBSCRIBE_KEYWORDS = 5;
+	public static final byte UNSUBSCRIBE = 6;
+	public static final byte UNSUBSCRIBE_ALL = 7;
+	public static final byte LIST_SUBSCRIBED_TOPICS = 8;
+	public static final byte LIST_ALL_TOPICS = 9;
+	public static final byte EXIT = 10;
+	//Args are repeated (topic, title, content) triples, one per event
+	public static final byte PUBLISH_BATCH = 11;
+	//Args are topic, first offset to replay
+	public static final byte SUBSCRIBE_FROM = 12;
+	//Args are topic, epoch millis to replay from
+	public static final byte SUBSCRIBE_SINCE = 13;
+	//Arg is the most unacknowledged events the client takes at once
+	public static final byte ENABLE_ACKS = 14;
+	//Args are delivery tags of received events, never replied to
+	public static final byte ACK = 15;
+	//Args are topic, then the predicates of one filter, see FilterMatcher
+	public static final byte SUBSCRIBE_FILTER = 16;
+	//Arg is the smallest frame the client wants compressed, see FrameCompressor
+	public static final byte COMPRESS = 17;
+
+	//Server -> Client
+	public static final byte REPLY = 20;
+	public static final byte EVENT = 21;
+	public static final byte NOTICE = 22;
+	//Frame only, holds another frame deflated, see WireProtocol
+	public static final byte COMPRESSED = 23;
+
+	//Broker -> Broker, only accepted on cluster links
+	public static final byte PEER_HELLO = 30;
+	public static final byte PEER_TOPIC = 31;
+	public static final byte PEER_INTEREST = 32;
+	public static final byte PEER_PUBLISH = 33;
+	public static final byte PEER_DELIVER = 34;
+
+	//Leader -> Standby, only accepted on replication links
+	public static final byte REPL_HELLO = 40;
+	public static final byte REPL_ROLE = 41;
+	public static final byte REPL_LOGIN = 42;
+	public static final byte REPL_TOPIC = 43;
+	public static final byte REPL_SUBSCRIBE = 44;
+	public static final byte REPL_UNSUBSCRIBE = 45;
+	public static final byte REPL_KEYWORDS = 46;
+	public static final byte REPL_CACHE = 47;
+	public static final byte REPL_COMMIT = 48;
+	public static final byte REPL_HEARTBEAT = 49;
+	public static final byte REPL_FILTERS = 50;
+	public static final byte REPL_PATTERNS = 51;
+
+	//Right after the topic name in ADVERTISE, PEER_TOPIC, REPL_TOPIC and REPL_SUBSCRIBE, marks a conflated topic
+	public static final String CONFLATED = "@conflated";
+
+	//Answers to REPL_HELLO
+	public static final String ROLE_LEADER = "leader";
+	public static final String ROLE_FOLLOWER = "follower";
+
+	//Correlation id of a request that carries none
+	public static final int NO_CORRELATION_ID = 0;
+
+	//Delivery tag of an event that needs no ack
+	public static final long NO_DELIVERY_TAG = -1;
+
+	private byte opcode;
+	private int correlationId;
+	private String[] args;
+
+	/**
+	 * Command constructor
+	 * @param opcode one of the opcodes above
+	 * @param args arguments, layout depends on the opcode
+	 */
+	public Command(byte opcode, String... args){
+		this(opcode, NO_CORRELATION_ID, args);
+	}
+
+	/**
+	 * Command constructor
+	 * @param opcode one of the opcodes above
+	 * @param correlationId id echoed back in the reply
+	 * @param args arguments, layout depends on the opcode
+	 */
+	public Command(byte opcode, int correlationId, String... args){
+		this.opcode = opcode;
+		this.correlationId = correlationId;
+		this.args = args;
+	}
+
+	public byte getOpcode(){
+		return this.opcode;
+	}
+
+	public int getCorrelationId(){
+		return this.correlationId;
+	}
+
+	/**
+	 * Same command with a different correlation id
+	 * @param correlationId id to carry
+	 * @return new Command
+	 */
+	public Command withCorrelationId(int correlationId){
+		return new Command(this.opcode, correlationId, this.args);
+	}
+
+	public String[] getArgs(){
+		return this.args;
+	}
+
+	public String getArg(int i){
+		return this.args[i];
+	}
+
+	/**
+	 * Arguments from index start onward, e.g. the keywords of an ADVERTISE
+	 * @param start first index
+	 * @return List of arguments
+	 */
+	public List<String> getArgsFrom(int start){
+		List<String> rest = new ArrayList<>();
+		for(int i = start; i < this.args.length; i++){
+			rest.add(this.args[i]);
+		}
+		return rest;
+	}
+
+	/**
+	 * An event delivered to a subscriber: topic, title, content, timestamp
+	 * @param e Event
+	 * @return Command
+	 */
+	public static Command event(Event e){
+		if(e.getOffset() == Event.NO_OFFSET){
+			return new Command(EVENT, e.getTopic().getName(), e.getTitle(), e.getContent(), Long.toString(e.getTimestamp()));
+		}
+		return new Command(EVENT, e.getTopic().getName(), e.getTitle(), e.getContent(), Long.toString(e.getTimestamp()),
+				Long.toString(e.getOffset()));
+	}
+
+	/**
+	 * An event that must be acknowledged: topic, title, content, timestamp,
+	 * offset, delivery tag. The client sends the tag back in an ACK.
+	 * @param e Event
+	 * @param deliveryTag tag identifying this delivery to the user
+	 * @return Command
+	 */
+	public static Command event(Event e, long deliveryTag){
+		return new Command(EVENT, e.getTopic().getName(), e.getTitle(), e.getContent(), Long.toString(e.getTimestamp()),
+				Long.toString(e.getOffset()), Long.toString(deliveryTag));
+	}
+
+	/**
+	 * Delivery tag of an EVENT that must be acknowledged
+	 * @return tag, or NO_DELIVERY_TAG when no ack is expected
+	 */
+	public long getDeliveryTag(){
+		if(this.opcode != EVENT || this.args.length < 6){
+			return NO_DELIVERY_TAG;
+		}
+		return Long.parseLong(this.args[5]);
+	}
+
+	/**
+	 * Acknowledges received events
+	 * @param deliveryTags tags of EVENTs from getDeliveryTag
+	 * @return Command
+	 */
+	public static Command ack(List<Long> deliveryTags){
+		String[] args = new String[deliveryTags.size()];
+		for(int i = 0; i < args.length; i++){
+			args[i] = Long.toString(deliveryTags.get(i));
+		}
+		return new Command(ACK, args);
+	}
+
+	public static Command reply(String text){
+		return new Command(REPLY, text);
+	}
+
+	/**
+	 * Reply to a request, echoing its correlation id
+	 * @param text reply text
+	 * @param request the request being answered
+	 * @return Command
+	 */
+	public static Command reply(String text, Command request){
+		return new Command(REPLY, request.getCorrelationId(), text);
+	}
+
+	public static Command publish(String topicName, String title, String content){
+		return new Command(PUBLISH, topicName, title, content);
+	}
+
+	/**
+	 * Publish carrying the sender's timestamp, delivered with the event
+	 * @param timestamp microseconds since the epoch, see Event.currentTimeMicros
+	 * @return Command
+	 */
+	public static Command publish(String topicName, String title, String content, long timestamp){
+		return new Command(PUBLISH, topicName, title, content, Long.toString(timestamp));
+	}
+
+	/**
+	 * Timestamp of a PUBLISH or EVENT
+	 * @param fallback returned when the command carries none
+	 * @return microseconds since the epoch
+	 */
+	public long getTimestamp(long fallback){
+		if(this.args.length < 4){
+			return fallback;
+		}
+		return Long.parseLong(this.args[3]);
+	}
+
+	/**
+	 * Topic offset of an EVENT or PEER_DELIVER
+	 * @return offset, Event.NO_OFFSET when the event carries none
+	 */
+	public long getOffset(){
+		if(this.args.length < 5){
+			return Event.NO_OFFSET;
+		}
+		return Long.parseLong(this.args[4]);
+	}
+
+	/**
+	 * Many events in one frame
+	 * @param events (topic, title, content) triples
+	 * @return Command
+	 */
+	public static Command publishBatch(List<String[]> events){
+		String[] args = new String[events.size() * 3];
+		for(int i = 0; i < events.size(); i++){
+			System.arraycopy(events.get(i), 0, args, i * 3, 3);
+		}
+		return new Command(PUBLISH_BATCH, args);
+	}
+
+	public static Command notice(String text){
+		return new Command(NOTICE, text);
+	}
+
+	/**
+	 * First frame on a cluster link, names the sending node
+	 * @param nodeId sender
+	 * @return Command
+	 */
+	public static Command peerHello(String nodeId){
+		return new Command(PEER_HELLO, nodeId);
+	}
+
+	/**
+	 * A topic advertised somewhere in the cluster: name, CONFLATED if it
+	 * is, keywords
+	 * @param t Topic
+	 * @return Command
+	 */
+	public static Command peerTopic(Topic t){
+		List<String> args = new ArrayList<>();
+		args.add(t.getName());
+		if(t.isConflated()){
+			args.add(CONFLATED);
+		}
+		args.addAll(t.getKeywords());
+		return new Command(PEER_TOPIC, args.toArray(new String[0]));
+	}
+
+	/**
+	 * The topic described by the args from start onward, as written by
+	 * peerTopic or an ADVERTISE
+	 * @param start index of the topic name
+	 * @return new Topic
+	 */
+	public Topic getTopic(int start){
+		boolean conflated = this.args.length > start + 1 && this.args[start + 1].equals(CONFLATED);
+		return new Topic(this.args[start], getArgsFrom(start + (conflated ? 2 : 1)), conflated);
+	}
+
+	/**
+	 * Tells a topic's owner whether a node has subscribers of it
+	 * @param topicName topic
+	 * @param nodeId node with or without subscribers
+	 * @param interested true if the node has subscribers
+	 * @return Command
+	 */
+	public static Command peerInterest(String topicName, String nodeId, boolean interested){
+		return new Command(PEER_INTEREST, topicName, nodeId, interested ? "1" : "0");
+	}
+
+	/**
+	 * A publish forwarded to the topic's owner
+	 * @return Command
+	 */
+	public static Command peerPublish(String topicName, String title, String content, long timestamp){
+		return new Command(PEER_PUBLISH, topicName, title, content, Long.toString(timestamp));
+	}
+
+	/**
+	 * An event the owner sends to every node with subscribers of its topic
+	 * @param e Event
+	 * @return Command
+	 */
+	public static Command peerDeliver(Event e){
+		return new Command(PEER_DELIVER, event(e).args);
+	}
+
+	/**
+	 * First frame a standby sends on a replication link
+	 * @param nodeId sender
+	 * @return Command
+	 */
+	public static Command replHello(String nodeId){
+		return new Command(REPL_HELLO, nodeId);
+	}
+
+	/**
+	 * @param leader whether the answering node is the leader
+	 * @return Command
+	 */
+	public static Command replRole(boolean leader){
+		return new Command(REPL_ROLE, leader ? ROLE_LEADER : ROLE_FOLLOWER);
+	}
+
+	/**
+	 * A user was created. Sessions are not replicated, clients log in
+	 * again to whichever node serves them.
+	 * @return Command
+	 */
+	public static Command replLogin(String username){
+		return new Command(REPL_LOGIN, username);
+	}
+
+	/**
+	 * A topic was added: name, CONFLATED if it is, keywords
+	 * @param t Topic
+	 * @return Command
+	 */
+	public static Command replTopic(Topic t){
+		Command c = peerTopic(t);
+		return new Command(REPL_TOPIC, c.args);
+	}
+
+	/**
+	 * A user subscribed to a topic: user, then the topic as in replTopic. Carries the
+	 * topic since it may overtake the topic's own REPL_TOPIC.
+	 * @return Command
+	 */
+	public static Command replSubscribe(String username, Topic t){
+		String[] topicArgs = peerTopic(t).args;
+		String[] args = new String[topicArgs.length + 1];
+		args[0] = username;
+		System.arraycopy(topicArgs, 0, args, 1, topicArgs.length);
+		return new Command(REPL_SUBSCRIBE, args);
+	}
+
+	public static Command replUnsubscribe(String username, String topicName){
+		return new Command(REPL_UNSUBSCRIBE, username, topicName);
+	}
+
+	/**
+	 * A user's keywords and keyword patterns, all of them
+	 * @param username user
+	 * @param keywords keywords, may be empty
+	 * @return Command
+	 */
+	public static Command replKeywords(String username, List<String> keywords){
+		String[] args = new String[keywords.size() + 1];
+		args[0] = username;
+		for(int i = 0; i < keywords.size(); i++){
+			args[i + 1] = keywords.get(i);
+		}
+		return new Command(REPL_KEYWORDS, args);
+	}
+
+	/**
+	 * A user's wildcard topic patterns, all of them
+	 * @param username user
+	 * @param patterns patterns, may be empty
+	 * @return Command
+	 */
+	public static Command replPatterns(String username, List<String> patterns){
+		String[] args = new String[patterns.size() + 1];
+		args[0] = username;
+		for(int i = 0; i < patterns.size(); i++){
+			args[i + 1] = patterns.get(i);
+		}
+		return new Command(REPL_PATTERNS, args);
+	}
+
+	/**
+	 * An event cached for an offline user at the leader's offset
+	 * @return Command
+	 */
+	public static Command replCache(String username, long offset, Event e){
+		return new Command(REPL_CACHE, username, Long.toString(offset), e.getTopic().getName(), e.getTitle(), e.getContent(),
+				Long.toString(e.getTimestamp()), Long.toString(e.getOffset()));
+	}
+
+	/**
+	 * Every filter a user has on a topic: username, topic, then for each
+	 * filter its predicate count and predicates. None means unfiltered.
+	 * @return Command
+	 */
+	public static Command replFilters(String username, String topicName, List<FilterMatcher.Filter> filters){
+		List<String> args = new ArrayList<>();
+		args.add(username);
+		args.add(topicName);
+		for(FilterMatcher.Filter f : filters){
+			args.add(Integer.toString(f.getPredicates().size()));
+			args.addAll(f.getPredicates());
+		}
+		return new Command(REPL_FILTERS, args.toArray(new String[0]));
+	}
+
+	/**
+	 * Filters of a REPL_FILTERS
+	 * @return filters in the order sent
+	 */
+	public List<FilterMatcher.Filter> getFilters(){
+		List<FilterMatcher.Filter> filters = new ArrayList<>();
+		int i = 2;
+		while(i < this.args.length){
+			int n = Integer.parseInt(this.args[i]);
+			filters.add(FilterMatcher.Filter.parse(Arrays.asList(this.args).subList(i + 1, i + 1 + n)));
+			i += 1 + n;
+		}
+		return filters;
+	}
+
+	/**
+	 * A user's cached events were delivered up to the leader's offset
+	 * @return Command
+	 */
+	public static Command replCommit(String username, long offset){
+		return new Command(REPL_COMMIT, username, Long.toString(offset));
+	}
+
+	public static Command replHeartbeat(){
+		return new Command(REPL_HEARTBEAT);
+	}
+
+	/**
+	 * @return true for leader to standby opcodes
+	 */
+	public boolean isReplicationCommand(){
+		return this.opcode >= REPL_HELLO && this.opcode <= REPL_PATTERNS;
+	}
+
+	/**
+	 * @return true for broker to broker opcodes
+	 */
+	public boolean isPeerCommand(){
+		return this.opcode >= PEER_HELLO && this.opcode <= PEER_DELIVER;
+	}
+
+	/**
+	 * Whether the argument count fits the opcode, frames from the wire are untrusted
+	 * @return true if well formed
+	 */
+	public boolean hasValidArgs(){
+		switch(this.opcode){
+			case LOGIN:
+			case SUBSCRIBE_TOPIC:
+			case UNSUBSCRIBE:
+			case REPLY:
+			case NOTICE:
+				return this.args.length == 1;
+			case PUBLISH:
+			case EVENT:
+				//Optional fourth argument is the timestamp, fifth the topic offset, sixth the delivery tag
+				return this.args.length == 3 || (this.args.length == 4 && isLong(this.args[3]))
+						|| (this.args.length == 5 && isLong(this.args[3]) && isLong(this.args[4]))
+						|| (this.opcode == EVENT && this.args.length == 6 && isLong(this.args[3]) && isLong(this.args[4])
+							&& isLong(this.args[5]));
+			case ENABLE_ACKS:
+				return this.args.length == 1 && isLong(this.args[0]) && Long.parseLong(this.args[0]) > 0;
+			case COMPRESS:
+				return this.args.length == 1 && isLong(this.args[0]) && Long.parseLong(this.args[0]) >= 0
+						&& Long.parseLong(this.args[0]) <= Integer.MAX_VALUE;
+			case ACK:
+				if(this.args.length == 0){
+					return false;
+				}
+				for(String tag : this.args){
+					if(!isLong(tag)){
+						return false;
+					}
+				}
+				return true;
+			case SUBSCRIBE_FROM:
+			case SUBSCRIBE_SINCE:
+				return this.args.length == 2 && isLong(this.args[1]);
+			case SUBSCRIBE_FILTER:
+				return this.args.length >= 2;
+			case PUBLISH_BATCH:
+				return this.args.length > 0 && this.args.length % 3 == 0;
+			case ADVERTISE:
+				return this.args.length >= 2;
+			case SUBSCRIBE_KEYWORDS:
+				return this.args.length >= 1;
+			case UNSUBSCRIBE_ALL:
+			case LIST_SUBSCRIBED_TOPICS:
+			case LIST_ALL_TOPICS:
+			case EXIT:
+				return this.args.length == 0;
+			case PEER_HELLO:
+				return this.args.length == 1;
+			case PEER_TOPIC:
+				return this.args.length >= 2;
+			case PEER_INTEREST:
+				return this.args.length == 3;
+			case PEER_PUBLISH:
+				return this.args.length == 4 && isLong(this.args[3]);
+			case PEER_DELIVER:
+				return (this.args.length == 4 || (this.args.length == 5 && isLong(this.args[4]))) && isLong(this.args[3]);
+			case REPL_HELLO:
+			case REPL_ROLE:
+				return this.args.length == 1;
+			case REPL_LOGIN:
+				//Logs written before sessions carry the ip first
+				return this.args.length == 1 || this.args.length == 2;
+			case REPL_UNSUBSCRIBE:
+				return this.args.length == 2;
+			case REPL_SUBSCRIBE:
+				return this.args.length >= 3;
+			case REPL_TOPIC:
+				return this.args.length >= 2;
+			case REPL_KEYWORDS:
+			case REPL_PATTERNS:
+				return this.args.length >= 1;
+			case REPL_CACHE:
+				return this.args.length == 7 && isLong(this.args[1]) && isLong(this.args[5]) && isLong(this.args[6]);
+			case REPL_COMMIT:
+				return this.args.length == 2 && isLong(this.args[1]);
+			case REPL_HEARTBEAT:
+				return this.args.length == 0;
+			case REPL_FILTERS:
+				if(this.args.length < 2){
+					return false;
+				}
+				//Each filter is a predicate count and that many predicates
+				int i = 2;
+				while(i < this.args.length){
+					if(!isLong(this.args[i]) || Long.parseLong(this.args[i]) < 1 || Long.parseLong(this.args[i]) > this.args.length - i - 1){
+						return false;
+					}
+					i += 1 + Integer.parseInt(this.args[i]);
+				}
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	private static boolean isLong(String s){
+		try{
+			Long.parseLong(s);
+			return true;
+		}
+		catch(NumberFormatException e){
+			return false;
+		}
+	}
+
+	/**
+	 * Parses a console line (see EventManager.BAD_PUB_SUB_INPUT) into a Command
+	 * @param line user input
+	 * @return Command, or null if the line is not valid input
+	 */
+	public static Command parse(String line){
+		String[] split = line.trim().split(" ", 4);
+		switch(split[0]){
+			case "login":
+				if(split.length != 2){
+					return null;
+				}
+				return new Command(LOGIN, split[1]);
+			case "publish":
+				if(split.length != 4){
+					return null;
+				}
+				return new Command(PUBLISH, split[1], split[2], split[3]);
+			case "advertise":
+				if(split.length != 3 && !(split.length == 4 && split[3].equals("conflated"))){
+					return null;
+				}
+				List<String> advertiseArgs = new ArrayList<>();
+				advertiseArgs.add(split[1]);
+				if(split.length == 4){
+					advertiseArgs.add(CONFLATED);
+				}
+				Collections.addAll(advertiseArgs, split[2].split(","));
+				return new Command(ADVERTISE, advertiseArgs.toArray(new String[0]));
+			case "subscribe":
+				if(split.length == 4 && split[1].equals("from")){
+					return new Command(SUBSCRIBE_FROM, split[2], split[3]);
+				}
+				if(split.length == 4 && split[1].equals("since")){
+					return new Command(SUBSCRIBE_SINCE, split[2], split[3]);
+				}
+				if(split.length == 4 && split[1].equals("filter")){
+					List<String> filterArgs = new ArrayList<>();
+					filterArgs.add(split[2]);
+					Collections.addAll(filterArgs, split[3].split(FilterMatcher.AND));
+					return new Command(SUBSCRIBE_FILTER, filterArgs.toArray(new String[0]));
+				}
+				if(split.length != 3){
+					return null;
+				}
+				if(split[1].equals("topic")){
+					return new Command(SUBSCRIBE_TOPIC, split[2]);
+				}
+				else if(split[1].equals("keywords")){
+					return new Command(SUBSCRIBE_KEYWORDS, split[2].split(","));
+				}
+				return null;
+			case "unsubscribe":
+				if(split.length != 2){
+					return null;
+				}
+				if(split[1].equals("*")){
+					return new Command(UNSUBSCRIBE_ALL);
+				}
+				return new Command(UNSUBSCRIBE, split[1]);
+			case "acks":
+				return (split.length == 2) ? new Command(ENABLE_ACKS, split[1]) : null;
+			case "compress":
+				return (split.length == 2) ? new Command(COMPRESS, split[1]) : null;
+			case "ack":
+				return (split.length == 2) ? new Command(ACK, split[1].split(",")) : null;
+			case "listSubscribedTopics":
+				return (split.length == 1) ? new Command(LIST_SUBSCRIBED_TOPICS) : null;
+			case "listAllTopics":
+				return (split.length == 1) ? new Command(LIST_ALL_TOPICS) : null;
+			case "exit":
+				return (split.length == 1) ? new Command(EXIT) : null;
+			default:
+				return null;
+		}
+	}
+
+	/**
+	 * Short name of a client to server opcode, e.g. for metrics
+	 * @param opcode opcode
+	 * @return name, or null for server to client and unknown opcodes
+	 */
+	public static String opcodeName(byte opcode){
+		switch(opcode){
+			case LOGIN: return "login";
+			case PUBLISH: return "publish";
+			case ADVERTISE: return "advertise";
+			case SUBSCRIBE_TOPIC: return "subscribe_topic";
+			case SUBSCRIBE_KEYWORDS: return "subscribe_keywords";
+			case UNSUBSCRIBE: return "unsubscribe";
+			case UNSUBSCRIBE_ALL: return "unsubscribe_all";
+			case LIST_SUBSCRIBED_TOPICS: return "list_subscribed_topics";
+			case LIST_ALL_TOPICS: return "list_all_topics";
+			case EXIT: return "exit";
+			case PUBLISH_BATCH: return "publish_batch";
+			case SUBSCRIBE_FROM: return "subscribe_from";
+			case SUBSCRIBE_SINCE: return "subscribe_since";
+			case ENABLE_ACKS: return "enable_acks";
+			case ACK: return "ack";
+			case SUBSCRIBE_FILTER: return "subscribe_filter";
+			case COMPRESS: return "compress";
+			default: return null;
+		}
+	}
+
+	/**
+	 * Human readable form. Replies/notices print their text,
+	 * events print like Event.toString, commands print like console input.
+	 */
+	@Override
+	public String toString(){
+		switch(this.opcode){
+			case REPLY:
+			case NOTICE:
+				return this.args[0];
+			case EVENT:
+				return "Event [" + this.args[1] + "] for [" + this.args[0] + "]: " + this.args[2];
+			case LOGIN:
+				return "login " + String.join(" ", this.args);
+			case PUBLISH:
+				return "publish " + String.join(" ", Arrays.copyOf(this.args, Math.min(3, this.args.length)));
+			case PUBLISH_BATCH:
+				return "publishBatch of " + (this.args.length / 3) + " events";
+			case ADVERTISE:
+				Topic advertised = getTopic(0);
+				return "advertise " + advertised.getName() + " " + String.join(",", advertised.getKeywords())
+						+ (advertised.isConflated() ? " conflated" : "");
+			case SUBSCRIBE_TOPIC:
+				return "subscribe topic " + this.args[0];
+			case SUBSCRIBE_KEYWORDS:
+				return "subscribe keywords " + String.join(",", this.args);
+			case SUBSCRIBE_FROM:
+				return "subscribe from " + this.args[0] + " " + this.args[1];
+			case SUBSCRIBE_SINCE:
+				return "subscribe since " + this.args[0] + " " + this.args[1];
+			case SUBSCRIBE_FILTER:
+				return "subscribe filter " + this.args[0] + " " + String.join(FilterMatcher.AND, getArgsFrom(1));
+			case ENABLE_ACKS:
+				return "acks " + this.args[0];
+			case COMPRESS:
+				return "compress " + this.args[0];
+			case ACK:
+				return "ack " + String.join(",", this.args);
+			case UNSUBSCRIBE:
+				return "unsubscribe " + this.args[0];
+			case UNSUBSCRIBE_ALL:
+				return "unsubscribe *";
+			case LIST_SUBSCRIBED_TOPICS:
+				return "listSubscribedTopics";
+			case LIST_ALL_TOPICS:
+				return "listAllTopics";
+			case EXIT:
+				return "exit";
+			default:
+				return "opcode " + this.opcode + " " + String.join(" ", this.args);
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package edu.rit.cs.pubsub;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One client connection as seen by the EventManager, whichever
+ * Transport it arrived on (Server's Handler or NioServer's NioConnection).
+ * Cluster and replication links are Connections too, so replays and
+ * SharedFrames reach them the same way.
+ */
+public interface Connection {
+
+    /**
+     * @return ip of the client, no leading slash
+     */
+    public String getClientIP();
+
+    /**
+     * @return id of this connection's session, unique within the broker;
+     * the EventManager ties it to a user at login
+     */
+    public String getSessionId();
+
+    /**
+     * @return true until the connection is closed
+     */
+    public boolean isOpen();
+
+    /**
+     * Queues a message for the client. Never blocks.
+     * @param message Command to send
+     */
+    public default void writeToClient(Command message) {
+        writeToClient(WireProtocol.encode(message), null);
+    }
+
+    /**
+     * Queues an encoded frame for the client. Never blocks.
+     * @param frame WireProtocol frame
+     * @param listener told whether the frame reached the socket, may be null
+     */
+    public default void writeToClient(ByteBuffer frame, OutboundQueue.FrameListener listener) {
+        writeToClient(frame, listener, null);
+    }
+
+    /**
+     * Queues an encoded frame for the client, in place of a frame with the
+     * same conflation key still in the queue. Never blocks.
+     * @param frame WireProtocol frame
+     * @param listener told whether the frame reached the socket, may be null
+     * @param conflationKey see OutboundQueue, null to always queue
+     */
+    public void writeToClient(ByteBuffer frame, OutboundQueue.FrameListener listener, String conflationKey);
+
+    /**
+     * Deflates every frame of at least minBytes written from now on, see
+     * FrameCompressor. Compression cannot be turned off or changed again.
+     * @param minBytes smallest frame to compress
+     * @return false if compression is already on or not supported
+     */
+    public default boolean enableCompression(int minBytes) {
+        return false;
+    }
+
+    /**
+     * @return the connection's outbound queue
+     */
+    public OutboundQueue getOutbound();
+
+    /**
+     * @return bytes read from the client so far, 0 for links that only write
+     */
+    public default long getBytesIn() {
+        return 0;
+    }
+
+    /**
+     * @return bytes written to the client so far
+     */
+    public long getBytesOut();
+
+    /**
+     * Closes the connection
+     * @return true for kill success, false for fail
+     */
+    public boolean kill();
+}
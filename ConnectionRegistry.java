@@ -0,0 +1,175 @@
+package edu.rit.cs.pubsub;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Open connections of one Transport, indexed by session id.
+ * The transport adds a connection on accept and removes it on close, so
+ * online checks and writes to a session cost the same no matter how many
+ * clients are connected, or how many of them share an ip.
+ * @param <C> the transport's connection type
+ */
+public class ConnectionRegistry<C extends Connection> {
+
+    // Most clients listed individually in a scrape
+    private static final int MAX_CLIENTS_SCRAPED = 1000;
+
+    private final Set<C> all;
+    private final ConcurrentHashMap<String, C> connectionGivenSession;
+    private final AtomicLong nextSession;
+    private volatile Consumer<? super C> onRemove;
+
+    // Totals of connections that have since closed, so byte counts never go back
+    private final AtomicLong accepted;
+    private final AtomicLong closedBytesIn;
+    private final AtomicLong closedBytesOut;
+
+    /**
+     * ConnectionRegistry constructor
+     */
+    public ConnectionRegistry() {
+        this.all = ConcurrentHashMap.newKeySet();
+        this.connectionGivenSession = new ConcurrentHashMap<>();
+        this.nextSession = new AtomicLong();
+        this.accepted = new AtomicLong();
+        this.closedBytesIn = new AtomicLong();
+        this.closedBytesOut = new AtomicLong();
+    }
+
+    /**
+     * @return a session id no other connection of this registry has had
+     */
+    public String newSessionId() {
+        return Long.toString(this.nextSession.incrementAndGet(), 36);
+    }
+
+    /**
+     * Registers a newly accepted connection
+     * @param connection connection with a session id from newSessionId
+     */
+    public void add(C connection) {
+        this.accepted.incrementAndGet();
+        this.all.add(connection);
+        this.connectionGivenSession.put(connection.getSessionId(), connection);
+    }
+
+    /**
+     * @param listener told about every connection once it is removed
+     */
+    public void setOnRemove(Consumer<? super C> listener) {
+        this.onRemove = listener;
+    }
+
+    /**
+     * Forgets a closed connection. Safe to call more than once.
+     * @param connection connection to remove
+     */
+    public void remove(C connection) {
+        if (!this.all.remove(connection)) {
+            return;
+        }
+        this.closedBytesIn.addAndGet(connection.getBytesIn());
+        this.closedBytesOut.addAndGet(connection.getBytesOut());
+        this.connectionGivenSession.remove(connection.getSessionId());
+        Consumer<? super C> listener = this.onRemove;
+        if (listener != null) {
+            listener.accept(connection);
+        }
+    }
+
+    /**
+     * @param sessionId session id
+     * @return the session's connection, null once it is closed
+     */
+    public C forSession(String sessionId) {
+        if (sessionId == null) {
+            return null;
+        }
+        return this.connectionGivenSession.get(sessionId);
+    }
+
+    /**
+     * Whether a session's connection is open
+     * @param sessionId session id
+     * @return true if online
+     */
+    public boolean isOnline(String sessionId) {
+        C c = forSession(sessionId);
+        return c != null && c.isOpen();
+    }
+
+    /**
+     * @return every registered connection
+     */
+    public Set<C> all() {
+        return this.all;
+    }
+
+    /**
+     * Registers connection, traffic and queue metrics. Connections keep
+     * their own byte counts, so these are summed at scrape time and the
+     * read and write paths never touch a shared counter.
+     * @param metrics registry to add to
+     * @param stats the transport's queue drop counters
+     */
+    public void registerMetrics(Metrics metrics, OutboundQueue.Stats stats) {
+        metrics.gauge("pubsub_connections", "Open client connections", () -> this.all.size());
+        metrics.counter("pubsub_connections_accepted_total", "Client connections accepted", this.accepted::get);
+        metrics.counter("pubsub_bytes_in_total", "Bytes read from clients", () -> {
+            long total = this.closedBytesIn.get();
+            for (C c : this.all) {
+                total += c.getBytesIn();
+            }
+            return total;
+        });
+        metrics.counter("pubsub_bytes_out_total", "Bytes written to clients", () -> {
+            long total = this.closedBytesOut.get();
+            for (C c : this.all) {
+                total += c.getBytesOut();
+            }
+            return total;
+        });
+        metrics.gaugeFamily("pubsub_client_bytes_in", "Bytes read from each client ip over its open connections",
+                () -> perClient(true));
+        metrics.gaugeFamily("pubsub_client_bytes_out", "Bytes written to each client ip over its open connections",
+                () -> perClient(false));
+        metrics.gauge("pubsub_outbound_queue_frames", "Frames waiting in all outbound queues", () -> {
+            long total = 0;
+            for (C c : this.all) {
+                total += c.getOutbound().size();
+            }
+            return total;
+        });
+        metrics.gauge("pubsub_outbound_queue_frames_max", "Frames waiting in the fullest outbound queue", () -> {
+            long max = 0;
+            for (C c : this.all) {
+                max = Math.max(max, c.getOutbound().size());
+            }
+            return max;
+        });
+        metrics.counter("pubsub_outbound_dropped_oldest_total", "Queued frames dropped for newer ones", stats::getDroppedOldest);
+        metrics.counter("pubsub_outbound_dropped_newest_total", "New frames dropped on a full queue", stats::getDroppedNewest);
+        metrics.counter("pubsub_outbound_disconnects_total", "Slow clients disconnected on a full queue", stats::getDisconnects);
+        metrics.counter("pubsub_outbound_conflated_total", "Queued frames replaced by a newer value of their key", stats::getConflated);
+    }
+
+    /**
+     * Totals by ip, grouped at scrape time; nothing on the delivery path is keyed by ip
+     */
+    private Map<String, Long> perClient(boolean in) {
+        Map<String, Long> bytes = new TreeMap<>();
+        for (C c : this.all) {
+            String label = "ip=\"" + c.getClientIP() + "\"";
+            if (bytes.size() >= MAX_CLIENTS_SCRAPED && !bytes.containsKey(label)) {
+                continue;
+            }
+            bytes.merge(label, in ? c.getBytesIn() : c.getBytesOut(), Long::sum);
+        }
+        return bytes;
+    }
+}
@@ -1,26 +1,75 @@
 package edu.rit.cs.pubsub;
 
+import java.time.Instant;
+
 public class Event {
-	private int id;
+	// Offset of an event not retained by its topic's history
+	public static final long NO_OFFSET = -1;
+
+	// Position in the topic's history, the event's id
+	private long offset;
 	private Topic topic;
 	private String title;
 	private String content;
+	// When the event was sent, microseconds since the epoch
+	private long timestamp;
 
 	/**
-	 * Internal model of an event
+	 * Internal model of an event, sent now
 	 * @param t Topic the event parents to
 	 * @param title Title of the event
 	 * @param content Content of the event
 	 */
 	public Event(Topic t, String title, String content){
-		this.id = EventManager.hash(title);
+		this(t, title, content, currentTimeMicros());
+	}
+
+	/**
+	 * Internal model of an event
+	 * @param t Topic the event parents to
+	 * @param title Title of the event
+	 * @param content Content of the event
+	 * @param timestamp when the event was sent, microseconds since the epoch
+	 */
+	public Event(Topic t, String title, String content, long timestamp){
+		this(t, title, content, timestamp, NO_OFFSET);
+	}
+
+	/**
+	 * Internal model of an event already given an offset
+	 * @param t Topic the event parents to
+	 * @param title Title of the event
+	 * @param content Content of the event
+	 * @param timestamp when the event was sent, microseconds since the epoch
+	 * @param offset position in the topic's history, or NO_OFFSET
+	 */
+	public Event(Topic t, String title, String content, long timestamp, long offset){
+		this.offset = offset;
 		this.topic = t;
 		this.title = title;
 		this.content = content;
+		this.timestamp = timestamp;
 	}
 
-	public int getHash(){
-		return this.id;
+	/**
+	 * Wall clock in microseconds, the unit of event timestamps
+	 * @return microseconds since the epoch
+	 */
+	public static long currentTimeMicros(){
+		Instant now = Instant.now();
+		return now.getEpochSecond() * 1_000_000L + now.getNano() / 1_000;
+	}
+
+	public long getOffset(){
+		return this.offset;
+	}
+
+	/**
+	 * Set once, by the topic's history, before the event is delivered
+	 * @param offset position in the topic's history
+	 */
+	void setOffset(long offset){
+		this.offset = offset;
 	}
 
 	public Topic getTopic(){
@@ -35,6 +84,34 @@ public class Event {
 		return this.content;
 	}
 
+	public long getTimestamp(){
+		return this.timestamp;
+	}
+
+	/**
+	 * Events of a conflated topic with the same key replace each other
+	 * @return topic and title, or null if the topic is not conflated
+	 */
+	public String getConflationKey(){
+		if(!this.topic.isConflated()){
+			return null;
+		}
+		//Length prefixed, no topic name and title pair can spell another's key
+		return this.topic.getName().length() + ":" + this.topic.getName() + this.title;
+	}
+
+	/**
+	 * Orders events of one topic by offset, by timestamp if either has none
+	 * @param other Event of the same topic
+	 * @return true if this event was published after other
+	 */
+	public boolean isNewerThan(Event other){
+		if(this.offset != NO_OFFSET && other.offset != NO_OFFSET){
+			return this.offset > other.offset;
+		}
+		return this.timestamp >= other.timestamp;
+	}
+
 	@Override
 	public String toString(){
 		String temp = "Event [" + this.title + "] for [" + this.topic.getName() + "]: " + this.content;
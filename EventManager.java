@@ -1,9 +1,32 @@
 package edu.rit.cs.pubsub;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Event Manager is the Server. Dispatches Topics and Events.
+ *
+ * Every connection is a session, and a user is online while any of their
+ * sessions is open; events are routed to sessions, never to ips, so many
+ * clients behind one address cost no more than the same clients apart.
+ *
+ * passCommand is called concurrently from every connection's thread.
+ * All maps are concurrent; per-user lists are copy-on-write (read far more
+ * often than changed) and every change to one user's state happens under
+ * that user's striped lock, so subscribes/logins of different users and
+ * all publishes proceed in parallel.
+ *
+ * With peers configured the EventManager is one node of a Cluster: it
+ * publishes only the topics it owns, forwards other publishes to their
+ * owner, and delivers events the owners send it to its own users.
  */
 public class EventManager{
 
@@ -12,260 +35,610 @@ public class EventManager{
 	public static final String BAD_PUB_SUB_INPUT = "Incorrect input. \n" +
 			"Usage:	publish TopicName EventTitle all of my content here \n" +
 			"		advertise TopicName keyword1,keyword2,keyword3 \n" +
+			"		advertise TopicName keyword1,keyword2,keyword3 conflated \n" +
 			"		subscribe topic TopicName \n" +
-			"		subscribe keywords keyword1,keyword2,keyword3 \n" +
+			"		subscribe topic Levels/+/OfTopicName/# \n" +
+			"		subscribe keywords keyword1,keyword2,prefix* \n" +
+			"		subscribe from TopicName Offset \n" +
+			"		subscribe since TopicName EpochMillis \n" +
+			"		subscribe filter TopicName title^=Prefix and content*=Text \n" +
+			"		acks MaxUnacknowledged \n" +
+			"		ack DeliveryTag1,DeliveryTag2 \n" +
 			"		unsubscribe TopicName \n" +
+			"		unsubscribe Levels/+/OfTopicName/# \n" +
 			"		unsubscribe * \n" +
 			"		listSubscribedTopics \n" +
 			"		listAllTopics \n" +
 			"		login UserName \n" +
 			"		exit \n" +
-            "       Separate keywords by commas, no spaces needed";
+            "       Separate keywords by commas, no spaces needed \n" +
+            "       Separate topic levels by /, + matches one level and a last # any number \n" +
+            "       A conflated topic only keeps and sends the latest event of each title";
 
-	public static final String NO_USER_EXISTS = "No user found for this ip. \n " +
+	public static final String NO_USER_EXISTS = "No user logged in on this connection. \n " +
 			"Please type 'user <userName>' to make a user or login.";
 
-	// All Clients we have seen
-	private List<String> knownClients;
+	// Number of locks user state is striped over
+	private static final int USER_LOCK_STRIPES = 64;
 
-	// Map of usernames to clients (ip) - could have multiple devices, so multiple ips
-	private HashMap<String,ArrayList<String>> usernamesToIps;
+	// Map of usernames to open sessions - could have multiple devices, so multiple sessions
+	private ConcurrentHashMap<String, List<String>> sessionsGivenUsername;
+
+	// Username logged in on each session (inverse of sessionsGivenUsername)
+	private ConcurrentHashMap<String, String> usernameGivenSession;
 
 	// All Topics we have seen
 	private List<Topic> topics;
 
-	// All Topics a user is subscribed to
-	private HashMap<String, ArrayList<Topic>> subscribedTopicsGivenUsername;
+	// All Topics by name
+	private ConcurrentHashMap<String, Topic> topicsGivenName;
+	// Held from the duplicate check until a new topic is indexed, so only a new topic opens a history
+	private ReentrantLock topicLock;
 
 	// All Topics a user is subscribed to
-	private HashMap<String, ArrayList<String>> subscribedKeywordsGivenUsername;
+	private ConcurrentHashMap<String, List<Topic>> subscribedTopicsGivenUsername;
+
+	// All keywords and keyword patterns a user is subscribed to
+	private ConcurrentHashMap<String, List<String>> subscribedKeywordsGivenUsername;
+
+	// Indexes keyword subscriptions against topic keywords
+	private KeywordMatcher keywordMatcher;
+
+	// All wildcard topic patterns a user is subscribed to
+	private ConcurrentHashMap<String, List<String>> subscribedPatternsGivenUsername;
+
+	// Indexes wildcard topic patterns against topic names
+	private TopicMatcher topicMatcher;
+
+	// Events cached on disk for users that were offline when they were published
+	private OfflineStore offlineStore;
+
+	// Replays in progress, at most one per user
+	private ConcurrentHashMap<String, ReplayTask> activeReplays;
+
+	// Runs replay refills and cursor commits off the connection threads
+	private ExecutorService replayExecutor;
+
+	// Users that acknowledge their events, with what they have not acknowledged yet
+	private ConcurrentHashMap<String, AckedDelivery> ackedGivenUsername;
+	private long ackTimeoutMillis;
+	private int maxInFlight;
+
+	// Smallest frame compressed for clients that ask, FrameCompressor.OFF if they may not
+	private int compressMinBytes;
+
+	// Sends unacknowledged events again once they time out
+	private ScheduledExecutorService ackTimer;
+
+	// All usernames subscribed to a topic (inverse of subscribedTopicsGivenUsername)
+	private ConcurrentHashMap<Topic, Set<String>> subscribersGivenTopic;
 
-	// All IPs mapped to a list of items cached for them
-	private HashMap<String, ArrayList<Event>> cachedEventsGivenUsername;
+	// Content filters of a topic's subscribers; subscribers without any get every event
+	private ConcurrentHashMap<Topic, FilterMatcher> filtersGivenTopic;
+
+	// Guards changes to a user's entries in the maps above, striped by username
+	private ReentrantLock[] userLocks;
+
+	// Orders the cluster interest updates of a topic, striped by topic name
+	private ReentrantLock[] topicLocks;
+
+	// Other broker nodes, null when running alone
+	private Cluster cluster;
+
+	// Standbys of this node, null if not replicated
+	private Replication replication;
+
+	// Registry write-ahead log, null if not persisted
+	private StateLog stateLog;
+
+	// Retained events of every topic
+	private ConcurrentHashMap<Topic, TopicHistory> historyGivenTopic;
+	private File historyDirectory;
+	private int historyEvents;
+	private long historyRetentionBytes;
+
+	// Transport modes selectable at startup
+	public static final String BLOCKING_TRANSPORT = "blocking";
+	public static final String NIO_TRANSPORT = "nio";
 
 	// The server instance
-	private Server serverInstance;
+	private Transport serverInstance;
+
+	// Counters, gauges and histograms published over JMX and HTTP
+	private Metrics metrics;
+	private int metricsPort;
+	private Metrics.Counter[] commandsGivenOpcode;
+	private Metrics.Counter otherCommands;
+	private LatencyHistogram commandMicros;
+	private Metrics.Counter eventsPublished;
+	private Metrics.Counter eventsDelivered;
+	private Metrics.Counter eventsCached;
+	private Metrics.Counter eventsFiltered;
+	private LatencyHistogram fanOut;
+	private LatencyHistogram deliveryMicros;
+	private Metrics.Counter acksReceived;
+	private Metrics.Counter redeliveries;
 
 	/**
 	 * EventManager is the "server", sending and receiving requests.
+	 * Uses the blocking thread-per-connection transport.
 	 * @param port port to host server on
 	 */
 	public EventManager(int port){
+		this(new BrokerConfig(port));
+	}
+
+	/**
+	 * EventManager is the "server", sending and receiving requests.
+	 * @param port port to host server on
+	 * @param transportMode BLOCKING_TRANSPORT or NIO_TRANSPORT
+	 */
+	public EventManager(int port, String transportMode){
+		this(configWithTransport(port, transportMode));
+	}
 
-		// Make a list to store clients
-		this.knownClients = new ArrayList<>();
+	/**
+	 * EventManager is the "server", sending and receiving requests.
+	 * @param config startup options
+	 */
+	public EventManager(BrokerConfig config){
+		this(config, newTransport(config));
+	}
+
+	/**
+	 * EventManager on a given transport, e.g. an in-memory one for benchmarks
+	 * @param config startup options, transport mode is ignored
+	 * @param transport transport clients connect through
+	 */
+	EventManager(BrokerConfig config, Transport transport){
 
 		// Make a list to store topics
-		this.topics = new ArrayList<>();
+		this.topics = new CopyOnWriteArrayList<>();
+		this.topicsGivenName = new ConcurrentHashMap<>();
+		this.topicLock = new ReentrantLock();
 
         // Declare internal data structures.
 		//this.getPublishedTopicsGivenIP = new HashMap<>();
-		this.usernamesToIps = new HashMap<>();
-		this.subscribedTopicsGivenUsername = new HashMap<>();
-		this.subscribedKeywordsGivenUsername = new HashMap<>();
-		this.cachedEventsGivenUsername = new HashMap<>();
+		this.sessionsGivenUsername = new ConcurrentHashMap<>();
+		this.usernameGivenSession = new ConcurrentHashMap<>();
+		this.subscribedTopicsGivenUsername = new ConcurrentHashMap<>();
+		this.subscribedKeywordsGivenUsername = new ConcurrentHashMap<>();
+		this.keywordMatcher = new KeywordMatcher();
+		this.subscribedPatternsGivenUsername = new ConcurrentHashMap<>();
+		this.topicMatcher = new TopicMatcher();
+		try{
+			this.offlineStore = new OfflineStore(new File(config.getOfflineDirectory()),
+					OfflineStore.DEFAULT_SEGMENT_BYTES, config.getOfflineRetentionBytes(), config.getOfflineRetentionMillis(),
+					config.getOfflineCompressMinBytes());
+		}
+		catch(IOException e){
+			Log.error("EVENTMANAGER", "Could not open offline store " + config.getOfflineDirectory(), e);
+			System.exit(1);
+		}
+		this.subscribersGivenTopic = new ConcurrentHashMap<>();
+		this.filtersGivenTopic = new ConcurrentHashMap<>();
+		this.historyGivenTopic = new ConcurrentHashMap<>();
+		this.historyDirectory = (config.getHistoryDirectory() == null) ? null : new File(config.getHistoryDirectory());
+		this.historyEvents = config.getHistoryEvents();
+		this.historyRetentionBytes = config.getHistoryRetentionBytes();
+		if(this.historyDirectory != null){
+			//Spill what is still in memory, the next run picks up at the same offsets
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+				for(TopicHistory h : this.historyGivenTopic.values()){
+					h.close();
+				}
+			}, "history-close"));
+		}
+		this.activeReplays = new ConcurrentHashMap<>();
+		this.replayExecutor = Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r, "replay");
+			t.setDaemon(true);
+			return t;
+		});
+		this.ackedGivenUsername = new ConcurrentHashMap<>();
+		this.ackTimeoutMillis = config.getAckTimeoutMillis();
+		this.maxInFlight = config.getMaxInFlight();
+		this.compressMinBytes = config.getCompressMinBytes();
+		this.ackTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "ack-timer");
+			t.setDaemon(true);
+			return t;
+		});
+		long ackCheckMillis = Math.max(1, this.ackTimeoutMillis / 4);
+		this.ackTimer.scheduleAtFixedRate(() -> {
+			long now = System.currentTimeMillis();
+			for(AckedDelivery acked : this.ackedGivenUsername.values()){
+				acked.redeliverExpired(now);
+			}
+		}, ackCheckMillis, ackCheckMillis, TimeUnit.MILLISECONDS);
 
-		// Create a server listening on port
-		this.serverInstance = new Server(port);
-	}
+		this.userLocks = new ReentrantLock[USER_LOCK_STRIPES];
+		this.topicLocks = new ReentrantLock[USER_LOCK_STRIPES];
+		for(int i = 0; i < USER_LOCK_STRIPES; i++){
+			this.userLocks[i] = new ReentrantLock();
+			this.topicLocks[i] = new ReentrantLock();
+		}
 
-	public String getUsernameFromIP(String ip){
-		if(!this.knownClients.contains(ip)){
-			return null;
+		this.serverInstance = transport;
+		this.metricsPort = config.getMetricsPort();
+		registerMetrics();
+		if(config.isClustered()){
+			this.cluster = new Cluster(config, this);
+		}
+		if(config.isReplicated()){
+			this.replication = new Replication(config, this, this.offlineStore);
+			this.offlineStore.setCommitListener((user, offset) -> replicate(Command.replCommit(user, offset)));
+		}
+		if(config.getStateDirectory() != null){
+			try{
+				StateLog log = new StateLog(new File(config.getStateDirectory()), config.getSnapshotEvery(),
+						config.getStateSyncPolicy(), this.metrics);
+				//Not logged while it is replayed, stateLog is still null
+				log.restore(this::applyReplicated, this::snapshot);
+				this.stateLog = log;
+			}
+			catch(IOException e){
+				Log.error("EVENTMANAGER", "Could not restore state from " + config.getStateDirectory(), e);
+				System.exit(1);
+			}
 		}
+	}
 
-		for(String username : this.usernamesToIps.keySet()){
-			if(this.usernamesToIps.get(username).contains(ip)){
-				return username;
+	/**
+	 * Creates the broker's own metrics; transports add theirs in listen
+	 */
+	private void registerMetrics(){
+		this.metrics = new Metrics();
+		this.commandsGivenOpcode = new Metrics.Counter[Byte.MAX_VALUE + 1];
+		for(int op = 0; op <= Byte.MAX_VALUE; op++){
+			String name = Command.opcodeName((byte) op);
+			if(name != null){
+				this.commandsGivenOpcode[op] = this.metrics.counter("pubsub_commands_total{type=\"" + name + "\"}", "Commands received by type");
 			}
 		}
+		this.otherCommands = this.metrics.counter("pubsub_commands_total{type=\"other\"}", "Commands received by type");
+		this.commandMicros = this.metrics.histogram("pubsub_command_duration_us", "Time to execute a command in microseconds");
+		this.eventsPublished = this.metrics.counter("pubsub_events_published_total", "Events published to existing topics");
+		this.eventsDelivered = this.metrics.counter("pubsub_events_delivered_total", "Live event frames written to subscribers");
+		this.eventsCached = this.metrics.counter("pubsub_events_cached_total", "Events cached for offline subscribers");
+		this.eventsFiltered = this.metrics.counter("pubsub_events_filtered_total", "Events not sent to subscribers whose filters rejected them");
+		this.fanOut = this.metrics.histogram("pubsub_publish_fanout", "Subscribers of the topic of each published event");
+		this.deliveryMicros = this.metrics.histogram("pubsub_delivery_latency_us", "Publish to socket write time of live events in microseconds");
+
+		this.acksReceived = this.metrics.counter("pubsub_acks_total", "Events acknowledged by subscribers");
+		this.redeliveries = this.metrics.counter("pubsub_redeliveries_total", "Unacknowledged events sent again after the ack timeout");
+
+		this.metrics.gauge("pubsub_users", "Known users", () -> this.sessionsGivenUsername.size());
+		this.metrics.gauge("pubsub_sessions", "Sessions with a user logged in", () -> this.usernameGivenSession.size());
+		this.metrics.gauge("pubsub_topics", "Advertised topics", () -> this.topics.size());
+		this.metrics.gauge("pubsub_offline_pending_events", "Events cached for offline users and not yet delivered", this.offlineStore::pendingTotal);
+		this.metrics.gauge("pubsub_offline_store_bytes", "Size of the offline store on disk", this.offlineStore::sizeBytes);
+		this.metrics.gauge("pubsub_replays_active", "Cached event replays in progress", () -> this.activeReplays.size());
+		this.metrics.gauge("pubsub_unacked_events", "Events sent to subscribers and not yet acknowledged", () -> {
+			long total = 0;
+			for(AckedDelivery acked : this.ackedGivenUsername.values()){
+				total += acked.getInFlight();
+			}
+			return total;
+		});
+		this.metrics.gauge("pubsub_history_memory_events", "Retained topic events held in memory", () -> {
+			long total = 0;
+			for(TopicHistory h : this.historyGivenTopic.values()){
+				total += h.getMemoryEvents();
+			}
+			return total;
+		});
+		this.metrics.gauge("pubsub_history_disk_bytes", "Retained topic events spilled to disk", () -> {
+			long total = 0;
+			for(TopicHistory h : this.historyGivenTopic.values()){
+				total += h.getDiskBytes();
+			}
+			return total;
+		});
+		this.metrics.counter("pubsub_log_dropped_total", "Log messages dropped on a full log queue", Log::getDropped);
+	}
 
-		return null;
+	public Metrics getMetrics(){
+		return this.metrics;
 	}
 
 	/**
-	 * Parse input, get and send response to thread which forwards to client
-	 * @param myInput
-	 * @return String - message to send to calling client
+	 * Create a server listening on config's port
+	 * @param config startup options
+	 * @return Transport
 	 */
-	public String passInput(String myInput){
-		//Command passed as "IP", space, usage commands
+	private static Transport newTransport(BrokerConfig config){
+		if(config.getTransportMode().equals(NIO_TRANSPORT)){
+			return new NioServer(config, Runtime.getRuntime().availableProcessors());
+		}
+		return new Server(config);
+	}
 
-		String[] splitInput = myInput.split(" ", 5);
-		/*
-		 * splitInput[0] is the IP from
-		 * splitInput[1] is the commandWord
-		 * everything after is arguments
-		 */
+	private static BrokerConfig configWithTransport(int port, String transportMode){
+		BrokerConfig config = new BrokerConfig(port);
+		config.setTransportMode(transportMode);
+		return config;
+	}
 
-        //Get the ip
-        String ip = splitInput[0];
+	/**
+	 * Lock guarding one user's subscriptions, keywords, sessions and cache
+	 * @param username username
+	 * @return striped lock
+	 */
+	private ReentrantLock lockFor(String username){
+		return this.userLocks[(username.hashCode() & 0x7fffffff) % USER_LOCK_STRIPES];
+	}
 
-        //Get the command word
-        String commandWord = splitInput[1];
+	public String getUsernameFromSession(String sessionId){
+		if(sessionId == null){
+			return null;
+		}
+		return this.usernameGivenSession.get(sessionId);
+	}
 
-		//Get the username for the ip client
-		String username = getUsernameFromIP(ip);
+	/**
+	 * Parse a console line, get and send response to thread which forwards to client
+	 * Kept for text input; the transports decode frames and call passCommand directly.
+	 * @param myInput session id (any name for the caller), space, usage command
+	 * @return String - message to send to calling client, null if already written
+	 */
+	public String passInput(String myInput){
+		String[] splitInput = myInput.split(" ", 2);
+		if(splitInput.length != 2){
+			return BAD_PUB_SUB_INPUT;
+		}
 
-		System.out.println("==============================");
-		System.out.println("IP:           " + ip);
-		System.out.println("Username:     " + username);
-		System.out.println("Message:      " + (Arrays.asList(splitInput).subList(1, splitInput.length)).toString());
-		//System.out.println("Command Word: " + commandWord);
+		Command command = Command.parse(splitInput[1]);
+		if(command == null){
+			return BAD_PUB_SUB_INPUT;
+		}
+		return passCommand(splitInput[0], command);
+	}
 
-        //GUID
-        if(commandWord.equals("login")){
-            if(this.usernamesToIps.containsKey(username)){
-            	if(!this.usernamesToIps.get(username).contains(ip)){
-					this.usernamesToIps.get(username).add(ip);
-				}
+	/**
+	 * Execute a decoded command, get and send response to thread which forwards to client
+	 * Without a connection cached events are not replayed at login.
+	 * @param sessionId session of the calling client
+	 * @param command decoded Command
+	 * @return String - message to send to calling client
+	 */
+	public String passCommand(String sessionId, Command command){
+		return execute(sessionId, null, command);
+	}
 
-				//Forward all cached events to user under username
-				String eventsToReturn = "";
-				if(this.cachedEventsGivenUsername.get(username).size() > 0){
-					System.out.println("Cached Events: ");
-					for(Event e : this.cachedEventsGivenUsername.get(username)){
-						eventsToReturn = eventsToReturn.concat("\n").concat("     ");
-						eventsToReturn = eventsToReturn.concat(e.toString());
-					}
-				}
+	/**
+	 * Execute a decoded command from a transport connection
+	 * @param connection the calling client's connection
+	 * @param command decoded Command
+	 * @return String - message to send to calling client,
+	 * null if the reply has already been written (login with cached events)
+	 */
+	public String passCommand(Connection connection, Command command){
+		return execute(connection.getSessionId(), connection, command);
+	}
 
-                return "Login successful. Welcome back.".concat(eventsToReturn);
-            }
-            else{
-				//Add ip to "known clients"
-				if(!this.knownClients.contains(ip)){
-					this.knownClients.add(ip);
-				}
+	/**
+	 * Counts and times every command, then runs it
+	 */
+	private String execute(String sessionId, Connection connection, Command command){
+		long start = System.nanoTime();
+		try{
+			return dispatch(sessionId, connection, command);
+		}
+		finally{
+			byte op = command.getOpcode();
+			Metrics.Counter counter = (op >= 0) ? this.commandsGivenOpcode[op] : null;
+			(counter != null ? counter : this.otherCommands).increment();
+			this.commandMicros.record((System.nanoTime() - start) / 1000);
+		}
+	}
 
-            	//Add username association with ip (splitInput[2])
-				this.usernamesToIps.put(splitInput[2],new ArrayList<>());
-                this.usernamesToIps.get(splitInput[2]).add(ip);
+	private String dispatch(String sessionId, Connection connection, Command command){
+		if(!command.hasValidArgs()){
+			return BAD_PUB_SUB_INPUT;
+		}
 
-                //Instantiate the list of the subscribed topics for the username
-                this.subscribedTopicsGivenUsername.put(splitInput[2],new ArrayList<>());
-				this.subscribedKeywordsGivenUsername.put(splitInput[2],new ArrayList<>());
+		//Get the username for the session
+		String username = getUsernameFromSession(sessionId);
 
-                //Instantiate the cached events given username
-				this.cachedEventsGivenUsername.put(splitInput[2], new ArrayList<>());
+		Log.debug("EVENTMANAGER", () -> "Session: " + sessionId + " Username: " + username + " Message: " + command);
 
-                return "User created.";
-            }
+        //GUID
+        if(command.getOpcode() == Command.LOGIN){
+			// A logged in session stays its user, a new one logs in as the given name
+			String loginName = (username != null) ? username : command.getArg(0);
+			ReentrantLock lock = lockFor(loginName);
+			lock.lock();
+			try{
+				String session = " Session " + sessionId + ".";
+				if(registerLogin(sessionId, connection, loginName)){
+					return replyAndReplay(loginName, connection, command, "Login successful. Welcome back." + session);
+				}
+				//The offline store outlives restarts, so a "new" user may have events waiting
+				return replyAndReplay(loginName, connection, command, "User created." + session);
+			}
+			finally{
+				lock.unlock();
+			}
         }
 
-        //Parse the actual command from the client
-        //Return the result so the handler can forward to client
-		//System.out.println("At Switch boi");
-		switch(commandWord){
-			case "publish":
-				String topicName = splitInput[2];
-				String eventTitle = splitInput[3];
-				String content = splitInput[4];
-				System.out.println("publishing event...");
-
-				if(topicName == null || eventTitle == null || content == null){
-					return "One or more publish parameters are null.";
+		//Subscription commands need a user to attach to
+		switch(command.getOpcode()){
+			case Command.SUBSCRIBE_TOPIC:
+			case Command.SUBSCRIBE_KEYWORDS:
+			case Command.SUBSCRIBE_FROM:
+			case Command.SUBSCRIBE_SINCE:
+			case Command.SUBSCRIBE_FILTER:
+			case Command.ENABLE_ACKS:
+			case Command.ACK:
+			case Command.UNSUBSCRIBE:
+			case Command.UNSUBSCRIBE_ALL:
+			case Command.LIST_SUBSCRIBED_TOPICS:
+				if(username == null){
+					return NO_USER_EXISTS;
 				}
+		}
 
-				Topic correspondingTopic = getTopicFromName(topicName);
-				if(correspondingTopic == null) {
+        //Execute the actual command from the client
+        //Return the result so the handler can forward to client
+		switch(command.getOpcode()){
+			case Command.PUBLISH:
+				long sentAt = command.getTimestamp(Event.currentTimeMicros());
+				if(!publishEvent(command.getArg(0), command.getArg(1), command.getArg(2), sentAt)) {
 					return "Topic does not exist. Cannot publish event.";
 				}
-
-				Event tempEvent = new Event(correspondingTopic,eventTitle,content);
-
-				notifySubscribers(tempEvent);
-
-				System.out.println(tempEvent.toString());
-
 				return "Event Published";
-			case "advertise":
-				System.out.println("advertising");
-
+			case Command.PUBLISH_BATCH:
+				// Args are (topic, title, content) triples
+				int published = 0;
+				Set<String> unknownTopics = new LinkedHashSet<>();
+				for(int i = 0; i < command.getArgs().length; i += 3){
+					if(publishEvent(command.getArg(i), command.getArg(i + 1), command.getArg(i + 2), Event.currentTimeMicros())){
+						published++;
+					}
+					else{
+						unknownTopics.add(command.getArg(i));
+					}
+				}
+				int batchSize = command.getArgs().length / 3;
+				if(unknownTopics.isEmpty()){
+					return "Published " + published + " events";
+				}
+				return "Published " + published + " of " + batchSize + " events. Topics do not exist: " + unknownTopics;
+			case Command.ADVERTISE:
 				// Get the topic name and keywords and make a new topic
-				String[] keywordsArray = splitInput[3].split(",");
-				List<String> keywords = new ArrayList<>();
-				Collections.addAll(keywords, keywordsArray);
-				Topic myNewTopic = new Topic(splitInput[2], keywords);
+				if(TopicMatcher.isPattern(command.getArg(0))){
+					return "Error: Topic names cannot have a " + TopicMatcher.SINGLE_LEVEL + " or " + TopicMatcher.MULTI_LEVEL + " level.";
+				}
+				Topic myNewTopic = command.getTopic(0);
 
 				// Add topic to the data structures and broadcast to clients
-				addTopic(myNewTopic);
-                System.out.println(myNewTopic.toString());
+				if(!addTopic(myNewTopic)){
+					return "Error: Topic " + myNewTopic.getName() + " already exists.";
+				}
+				if(this.cluster != null){
+					this.cluster.announceTopic(myNewTopic);
+				}
+                Log.debug("EVENTMANAGER", myNewTopic::toString);
 				return "Topic Created.";
-			case "subscribe":
-				System.out.println("subscribing");
-				if(splitInput[2].equals("topic")){
-					// Check if Topic exists
-					// Sub to topic if exists, else say topic does not exist
-                    for(Topic t : this.topics){
-                        if( (t.getName()).equals(splitInput[3]) ){
-                            if((subscribedTopicsGivenUsername.get(username)).contains(t)){
-                                String alreadySubscribed = "Error: Already subscribed to topic " + splitInput[3] + ".\n";
-                                return alreadySubscribed;
-                            }
-                            else {
-                                addSubscriber( username, t );
-                                return "You are subscribed to topic: " + t.getName();
-                            }
-                        }
-                        else {
-                        	continue;
-                        }
+			case Command.SUBSCRIBE_TOPIC:
+				// Check if Topic exists
+				// Sub to topic if exists, else say topic does not exist
+				String subscribeTopicName = command.getArg(0);
+                if(TopicMatcher.isPattern(subscribeTopicName)){
+                    return subscribeToPattern(username, subscribeTopicName);
+                }
+                Topic subscribeTopic = getTopicFromName(subscribeTopicName);
+                if(subscribeTopic == null){
+                    String topicNotFound = "Error: Topic " + subscribeTopicName + " does not exist.\n";
+                    return topicNotFound;
+                }
+                if( !addSubscriber( username, subscribeTopic ) ){
+                    if(clearFilters(username, subscribeTopic)){
+                        return "You are subscribed to every event of topic: " + subscribeTopic.getName();
                     }
-					String topicNotFound = "Error: Topic " + splitInput[3] + " does not exist.\n";
-					return topicNotFound;
+                    String alreadySubscribed = "Error: Already subscribed to topic " + subscribeTopicName + ".\n";
+                    return alreadySubscribed;
+                }
+                return replyWithLatest(subscribeTopic, connection, command, "You are subscribed to topic: " + subscribeTopic.getName());
+			case Command.SUBSCRIBE_FROM:
+			case Command.SUBSCRIBE_SINCE:
+				return subscribeWithHistory(username, connection, command);
+			case Command.SUBSCRIBE_FILTER:
+				return subscribeWithFilter(username, command);
+			case Command.ENABLE_ACKS:
+				return enableAcks(username, connection, command);
+			case Command.ACK:
+				AckedDelivery acked = this.ackedGivenUsername.get(username);
+				if(acked == null){
+					return "Error: Acks are not enabled.";
+				}
+				long[] tags = new long[command.getArgs().length];
+				for(int i = 0; i < tags.length; i++){
+					tags[i] = Long.parseLong(command.getArg(i));
 				}
-				else if(splitInput[2].equals("keywords")){
-					// Check if keywords exist in any topic
-					// Sub to topic(s), else say topic does not exist.
-                    String[] keywordArray = splitInput[3].split(",");
-                    List<String> keywordList = new ArrayList<>();
-                    Collections.addAll( keywordList, keywordArray );
-                    for(String k : keywordList){
-                        for(Topic t : this.topics){
-                            if( t.getKeywords().contains(k) ){
-                                if( !subscribedTopicsGivenUsername.get(username).contains(t) ){
-                                    addSubscriber( username, t );
-                                }
-                            }
+				acked.ack(tags);
+				//Acks are never answered, they would double the traffic they save
+				return null;
+			case Command.COMPRESS:
+				return enableCompression(connection, command);
+			case Command.SUBSCRIBE_KEYWORDS:
+				// Sub to every topic matching a keyword or keyword* pattern
+                for(String k : command.getArgs()){
+                    Set<Topic> matching;
+                    ReentrantLock keywordLock = lockFor(username);
+                    keywordLock.lock();
+                    try{
+                        List<String> keywords = this.subscribedKeywordsGivenUsername.get(username);
+                        if(!keywords.contains(k)){
+                            keywords.add(k);
+                            replicate(Command.replKeywords(username, keywords));
                         }
-                        //Add keyword to subscriptions
-                        this.subscribedKeywordsGivenUsername.get(username).add(k);
+                        //Matcher indexes the keyword before matching so a concurrent advertise sees it
+                        matching = this.keywordMatcher.subscribe(username, k);
+                    }
+                    finally{
+                        keywordLock.unlock();
                     }
+                    for(Topic t : matching){
+                        addSubscriber( username, t );
+                    }
+                }
 
-                    return "Subscribed to all topics with keywords: " + splitInput[3];
-				}
-				else{
-					return "Invalid syntax. Must specify 'topic' or 'keywords'. ";
-				}
-            case "unsubscribe":
-                System.out.println("unsubscribing");
+                return "Subscribed to all topics with keywords: " + String.join(",", command.getArgs());
+            case Command.UNSUBSCRIBE_ALL:
+                if(subscribedTopicsGivenUsername.get(username).size() == 0 && subscribedPatternsGivenUsername.get(username).isEmpty()){
+                    return "No subscribed topics";
+                }
+                // Unsubscribe from all subscribed topics
+                List<Topic> unsubscribed;
+                ReentrantLock userLock = lockFor(username);
+                userLock.lock();
+                try{
+                    unsubscribed = new ArrayList<>(subscribedTopicsGivenUsername.get(username));
+                    for(Topic t : unsubscribed){
+                        this.subscribersGivenTopic.get(t).remove(username);
+                        this.filtersGivenTopic.get(t).set(username, Collections.emptyList());
+                    }
+                    subscribedTopicsGivenUsername.get(username).clear();
+                    //Recorded once the change is visible, a snapshot taken meanwhile must not miss it
+                    for(Topic t : unsubscribed){
+                        replicate(Command.replUnsubscribe(username, t.getName()));
+                    }
+                    this.keywordMatcher.unsubscribe(username, subscribedKeywordsGivenUsername.get(username));
+                    subscribedKeywordsGivenUsername.get(username).clear();
+                    replicate(Command.replKeywords(username, Collections.emptyList()));
+                    this.topicMatcher.unsubscribe(username, subscribedPatternsGivenUsername.get(username));
+                    subscribedPatternsGivenUsername.get(username).clear();
+                    replicate(Command.replPatterns(username, Collections.emptyList()));
+                }
+                finally{
+                    userLock.unlock();
+                }
+                for(Topic t : unsubscribed){
+                    updateInterest(t);
+                }
+                return "Unsubscribed from all topics";
+            case Command.UNSUBSCRIBE:
+                if(TopicMatcher.isPattern(command.getArg(0))){
+                    return unsubscribeFromPattern(username, command.getArg(0));
+                }
                 if((subscribedTopicsGivenUsername.get(username).size() == 0)){
                     return "No subscribed topics";
                 }
-                else if(splitInput[2].equals("*")){ // Unsubscribe from all subscribed topics
-                	subscribedTopicsGivenUsername.get(username).clear();
-                	subscribedKeywordsGivenUsername.get(username).clear();
-                    return "Unsubscribed from all topics";
+                // Unsubscribe from a specified topic
+                String unsubscribeTopicName = command.getArg(0);
+                Topic usTopic = getTopicFromName(unsubscribeTopicName);
+                if(usTopic == null){
+                    return "Topic " + unsubscribeTopicName + " does not exist.";
                 }
-                else{ // Unsubscribe from a specified topic
-                	Topic usTopic = getTopicFromName(splitInput[2]);
-                	if(usTopic == null){
-                		return "Topic " + splitInput[2] + " does not exist.";
-					}
-					else if((subscribedTopicsGivenUsername.get(username)).contains(usTopic)){
-						removeSubscriber( username, usTopic );
-						return "Unsubscribed successfully";
-
-					}
-					else if(!((subscribedTopicsGivenUsername.get(username)).contains(usTopic))){
-						return "Topic " + splitInput[2] + " not in subscriptions";
-					}
-					else{
-						return "ERROR when unsubscribing";
-					}
+                else if( removeSubscriber( username, usTopic ) ){
+                    return "Unsubscribed successfully";
+                }
+                else{
+                    return "Topic " + unsubscribeTopicName + " not in subscriptions";
                 }
-			case "listAllTopics":
+			case Command.LIST_ALL_TOPICS:
 				String temp = "";
 				if(topics.size() == 0){
 					return "No topics exist.";
@@ -274,31 +647,34 @@ public class EventManager{
 					temp = temp.concat(t.toString().concat("    "));
 				}
 				return temp;
-            case "listSubscribedTopics":
-                List<Topic> seenTopics = new ArrayList<>();
-
-            	if(splitInput.length != 2){
-            		return BAD_PUB_SUB_INPUT;
-				}
-
-            	System.out.println("Listing subscribed topics... ");
+            case Command.LIST_SUBSCRIBED_TOPICS:
                 // Return a String that has all subscribed topics along with their keywords
 				List<Topic> tList = subscribedTopicsGivenUsername.get(username);
+				List<String> patterns = subscribedPatternsGivenUsername.get(username);
 
-				if(tList.isEmpty()){
+				if(tList.isEmpty() && patterns.isEmpty()){
 					return "No subscribed topics to display. ";
 				}
 
                 String subscribedTopics = "Subscribed Topics:\n";
+                for( String p : patterns ){
+                    subscribedTopics = subscribedTopics.concat("    Topics matching [").concat(p).concat("]");
+                }
                 for( Topic t : tList ){
-                    seenTopics.add(t);
                     subscribedTopics = subscribedTopics.concat("    ").concat(t.toString());
+                    List<FilterMatcher.Filter> filters = this.filtersGivenTopic.get(t).get(username);
+                    if(!filters.isEmpty()){
+                        List<String> alternatives = new ArrayList<>();
+                        for(FilterMatcher.Filter f : filters){
+                            alternatives.add(f.toString());
+                        }
+                        subscribedTopics = subscribedTopics.concat(" where ").concat(String.join(" or ", alternatives));
+                    }
                 }
 
                 return subscribedTopics;
-			case "exit":
+			case Command.EXIT:
 				//Send response back to client through handler somehow
-				System.out.println("Client requests disconnect...");
 				return "exit good";
 			default:
 				return BAD_PUB_SUB_INPUT;
@@ -311,14 +687,14 @@ public class EventManager{
 	 * @return boolean true or false
 	 */
 	public boolean queryUsernameOnline(String username){
-		List<String> ipsForUsername = usernamesToIps.get(username);
+		List<String> sessionsForUsername = sessionsGivenUsername.get(username);
 
-		if(ipsForUsername == null || ipsForUsername.isEmpty()){
+		if(sessionsForUsername == null || sessionsForUsername.isEmpty()){
 			return false;
 		}
 		else{
-			for(String ip : ipsForUsername){
-				if(this.serverInstance.isClientOnline(ip)){
+			for(String sessionId : sessionsForUsername){
+				if(this.serverInstance.isSessionOnline(sessionId)){
 					return true;
 				}
 			}
@@ -326,18 +702,42 @@ public class EventManager{
 		}
 	}
 
+	/**
+	 * Forgets a session whose connection closed, called by the transport.
+	 * The user stays known and their events are cached until the next login.
+	 * @param connection closed connection
+	 */
+	void sessionClosed(Connection connection){
+		String sessionId = connection.getSessionId();
+		String username = this.usernameGivenSession.get(sessionId);
+		if(username == null){
+			return;
+		}
+		ReentrantLock lock = lockFor(username);
+		lock.lock();
+		try{
+			this.usernameGivenSession.remove(sessionId);
+			List<String> sessions = this.sessionsGivenUsername.get(username);
+			if(sessions != null){
+				sessions.remove(sessionId);
+			}
+		}
+		finally{
+			lock.unlock();
+		}
+		Log.debug("EVENTMANAGER", () -> "Session " + sessionId + " of " + username + " closed");
+	}
+
 	/**
 	 * Returns a topic object from a topic name
 	 * @param topicName name of a topic
 	 * @return Topic object
 	 */
     public Topic getTopicFromName(String topicName){
-		for(Topic t : topics){
-			if(t.getName().equals(topicName)){
-				return t;
-			}
+		if(topicName == null){
+			return null;
 		}
-		return null;
+		return this.topicsGivenName.get(topicName);
 	}
 
 	/**
@@ -353,88 +753,877 @@ public class EventManager{
 	 * Starts the listen service
 	 */
 	private void startService(){
+		this.metrics.registerMBean();
+		if(this.metricsPort > 0){
+			try{
+				this.metrics.startHttp(this.metricsPort);
+			}
+			catch(IOException e){
+				Log.error("EVENTMANAGER", "Could not serve metrics on port " + this.metricsPort, e);
+				System.exit(1);
+			}
+		}
+		if(this.replication != null){
+			try{
+				this.replication.start();
+			}
+			catch(IOException e){
+				Log.error("EVENTMANAGER", "Could not open replication port", e);
+				System.exit(1);
+			}
+			//Standbys stop here until the leader is lost; clients queue in the listen backlog
+			this.replication.awaitLeadership();
+		}
+		if(this.cluster != null){
+			try{
+				this.cluster.start();
+			}
+			catch(IOException e){
+				Log.error("EVENTMANAGER", "Could not open cluster port", e);
+				System.exit(1);
+			}
+		}
 	    this.serverInstance.listen(this);
     }
 
+	/**
+	 * Associates a session with a user, creating the user if new.
+	 * Caller holds the user's lock.
+	 * @param sessionId session logging in
+	 * @param connection the session's connection, null for callers without one
+	 * @param loginName username
+	 * @return true if the user already existed
+	 */
+	private boolean registerLogin(String sessionId, Connection connection, String loginName){
+		boolean existed = !createUser(loginName);
+		List<String> sessions = this.sessionsGivenUsername.get(loginName);
+		if(!sessions.contains(sessionId)){
+			sessions.add(sessionId);
+		}
+		this.usernameGivenSession.put(sessionId, loginName);
+		//Closed before it was bound, sessionClosed found no user to remove it from
+		if(connection != null && !this.serverInstance.isSessionOnline(sessionId)){
+			sessions.remove(sessionId);
+			this.usernameGivenSession.remove(sessionId);
+		}
+		return existed;
+	}
+
+	/**
+	 * Creates a user with no sessions, subscriptions or keywords.
+	 * Caller holds the user's lock.
+	 * @param username username
+	 * @return false if the user already existed
+	 */
+	private boolean createUser(String username){
+		if(this.sessionsGivenUsername.containsKey(username)){
+			return false;
+		}
+
+		//Instantiate the list of the subscribed topics for the username
+		this.subscribedTopicsGivenUsername.put(username, new CopyOnWriteArrayList<>());
+		this.subscribedKeywordsGivenUsername.put(username, new CopyOnWriteArrayList<>());
+		this.subscribedPatternsGivenUsername.put(username, new CopyOnWriteArrayList<>());
+
+		//Add the sessions entry last, it makes the user visible to publishers
+		this.sessionsGivenUsername.put(username, new CopyOnWriteArrayList<>());
+		replicate(Command.replLogin(username));
+		return true;
+	}
+
+	/**
+	 * Answers a login and then starts streaming the user's cached events to
+	 * the connection. The ReplayTask paces itself on the connection's queue
+	 * and advances the user's cursor as events are written, so a replay cut
+	 * short resumes at the next login. Live events may interleave with it.
+	 * Caller holds the user's lock.
+	 * @param username user logging in
+	 * @param connection connection the user logged in on, may be null
+	 * @param command the LOGIN command
+	 * @param greeting reply text
+	 * @return greeting if nothing is replayed, else null (reply already written)
+	 */
+	private String replyAndReplay(String username, Connection connection, Command command, String greeting){
+		int cached = this.offlineStore.pendingCount(username);
+		AckedDelivery acked = this.ackedGivenUsername.get(username);
+		if(acked != null && connection != null){
+			//Unacknowledged events are sent again from the cursor, not replayed
+			acked.attach(connection, acked.getWindow());
+			connection.writeToClient(Command.reply(greeting + " Delivering " + cached + " unacknowledged events.", command));
+			acked.schedule();
+			return null;
+		}
+		if(cached == 0 || connection == null){
+			return greeting;
+		}
+		if(this.activeReplays.containsKey(username)){
+			return greeting + " Cached events are being replayed to another device.";
+		}
+
+		//Reply first so it is not queued behind the replayed events
+		connection.writeToClient(Command.reply(greeting + " Replaying " + cached + " cached events.", command));
+
+		Log.info("EVENTMANAGER", "Replaying " + cached + " cached events to " + username);
+		ReplayTask replay = new ReplayTask(username, connection, this.offlineStore, this::getTopicFromName,
+				this.replayExecutor, () -> replayFinished(username));
+		this.activeReplays.put(username, replay);
+		replay.start();
+		return null;
+	}
+
+	/**
+	 * Ends a user's replay under the user's lock, the lock a login checks
+	 * for a replay under and cacheEvent decides under
+	 * @param username user whose replay completed or stopped
+	 */
+	private void replayFinished(String username){
+		ReentrantLock lock = lockFor(username);
+		lock.lock();
+		try{
+			this.activeReplays.remove(username);
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Switches a user to acknowledged delivery on this connection: from now
+	 * on every event is stored until the client acks it. Not replicated or
+	 * persisted; a client enables acks again after each login to a new
+	 * broker, and the events stored meanwhile are delivered then.
+	 * @return reply, or null if already written ahead of the first events
+	 */
+	private String enableAcks(String username, Connection connection, Command command){
+		if(connection == null){
+			return "Error: Acks need a connection.";
+		}
+		int requested = (int) Math.min(Long.parseLong(command.getArg(0)), this.maxInFlight);
+		ReentrantLock lock = lockFor(username);
+		lock.lock();
+		try{
+			if(this.activeReplays.containsKey(username)){
+				return "Error: Cached events are still being replayed. Enable acks once they are delivered.";
+			}
+			AckedDelivery acked = this.ackedGivenUsername.computeIfAbsent(username, u -> new AckedDelivery(u, this.offlineStore,
+					this::getTopicFromName, this.replayExecutor, this.ackTimeoutMillis, this.acksReceived, this.redeliveries));
+			int window = acked.attach(connection, requested);
+			//Reply first so it is not queued behind the stored events
+			connection.writeToClient(Command.reply("Acks enabled, up to " + window + " events in flight.", command));
+			acked.schedule();
+			return null;
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Deflates the frames sent on this connection from now on, this reply
+	 * included. Needs no login, so a client can ask before its replay.
+	 * @return reply
+	 */
+	private String enableCompression(Connection connection, Command command){
+		if(this.compressMinBytes == FrameCompressor.OFF){
+			return "Error: Compression is turned off on this broker.";
+		}
+		int minBytes = (int) Math.max(Long.parseLong(command.getArg(0)), this.compressMinBytes);
+		if(connection == null || !connection.enableCompression(minBytes)){
+			return "Error: Compression is already on.";
+		}
+		return "Compressing frames of " + minBytes + " bytes or more.";
+	}
+
+	/**
+	 * Subscribes to a topic and replays its retained events from an offset
+	 * or a time. Events from the subscribe on arrive live; the replay stops
+	 * before the first of them, though one may arrive both ways. Clients
+	 * tell them apart by offset.
+	 * @return reply, or null if already written ahead of the replay
+	 */
+	private String subscribeWithHistory(String username, Connection connection, Command command){
+		Topic topic = getTopicFromName(command.getArg(0));
+		if(topic == null){
+			return "Error: Topic " + command.getArg(0) + " does not exist.\n";
+		}
+		if(this.cluster != null && !this.cluster.isOwner(topic)){
+			return "Error: History of topic " + topic.getName() + " is kept on node " + this.cluster.ownerOf(topic) + ".";
+		}
+		TopicHistory history = this.historyGivenTopic.get(topic);
+		addSubscriber(username, topic);
+		long end = history.getNextOffset();
+
+		long from;
+		try{
+			from = (command.getOpcode() == Command.SUBSCRIBE_FROM) ? Long.parseLong(command.getArg(1))
+					: history.offsetAt(Long.parseLong(command.getArg(1)));
+		}
+		catch(IOException e){
+			Log.error("EVENTMANAGER", "Could not search history of " + topic.getName(), e);
+			return "Error: Could not read history of topic " + topic.getName() + ".";
+		}
+		from = Math.max(from, history.getFirstOffset());
+		String subscribed = "You are subscribed to topic: " + topic.getName();
+		if(from >= end || connection == null){
+			return subscribed + " from offset " + end;
+		}
+
+		//Reply first so it is not queued behind the replayed events
+		connection.writeToClient(Command.reply(subscribed + ". Replaying offsets " + from + " to " + (end - 1) + ".", command));
+		new ReplayTask(username + " history of " + topic.getName(), connection, history.replaySource(end), from - 1,
+				this.replayExecutor, () -> {}).start();
+		return null;
+	}
+
+	/**
+	 * Answers a subscribe to a conflated topic, then sends the latest
+	 * event of each title so the subscriber starts from current values
+	 * @param reply answer to the subscribe
+	 * @return reply, or null once written
+	 */
+	private String replyWithLatest(Topic topic, Connection connection, Command command, String reply){
+		List<Event> latest = topic.getLatest();
+		if(connection == null || latest.isEmpty()){
+			return reply;
+		}
+		//Reply first so it is not queued behind the values
+		connection.writeToClient(Command.reply(reply + ". Sending the latest of " + latest.size() + " titles.", command));
+		for(Event e : latest){
+			connection.writeToClient(WireProtocol.encode(Command.event(e)), null, e.getConflationKey());
+		}
+		return null;
+	}
+
+	/**
+	 * Subscribes to the events of a topic that pass a filter. Filters of
+	 * one user on one topic add up: an event passing any of them is sent.
+	 * @return reply
+	 */
+	private String subscribeWithFilter(String username, Command command){
+		Topic topic = getTopicFromName(command.getArg(0));
+		if(topic == null){
+			return "Error: Topic " + command.getArg(0) + " does not exist.\n";
+		}
+		FilterMatcher.Filter filter;
+		try{
+			filter = FilterMatcher.Filter.parse(command.getArgsFrom(1));
+		}
+		catch(IllegalArgumentException e){
+			return "Error: " + e.getMessage() + ".";
+		}
+
+		FilterMatcher matcher = this.filtersGivenTopic.get(topic);
+		ReentrantLock lock = lockFor(username);
+		lock.lock();
+		try{
+			if(this.subscribedTopicsGivenUsername.get(username).contains(topic) && matcher.get(username).isEmpty()){
+				return "Error: Already subscribed to every event of topic " + topic.getName() + ".";
+			}
+			if(!matcher.add(username, filter)){
+				return "Error: Already subscribed to topic " + topic.getName() + " where " + filter + ".";
+			}
+			replicate(Command.replFilters(username, topic.getName(), matcher.get(username)));
+		}
+		finally{
+			lock.unlock();
+		}
+		//Filter first, so no unfiltered event is sent in between
+		addSubscriber(username, topic);
+		return "You are subscribed to topic: " + topic.getName() + " where " + filter;
+	}
+
+	/**
+	 * Subscribes to every topic matching a wildcard pattern, now and
+	 * advertised later
+	 * @return reply
+	 */
+	private String subscribeToPattern(String username, String pattern){
+		try{
+			TopicMatcher.validatePattern(pattern);
+		}
+		catch(IllegalArgumentException e){
+			return "Error: " + e.getMessage() + ".";
+		}
+		Set<Topic> matching;
+		ReentrantLock lock = lockFor(username);
+		lock.lock();
+		try{
+			List<String> patterns = this.subscribedPatternsGivenUsername.get(username);
+			if(patterns.contains(pattern)){
+				return "Error: Already subscribed to topics matching " + pattern + ".";
+			}
+			patterns.add(pattern);
+			replicate(Command.replPatterns(username, patterns));
+			//Matcher indexes the pattern before matching so a concurrent advertise sees it
+			matching = this.topicMatcher.subscribe(username, pattern);
+		}
+		finally{
+			lock.unlock();
+		}
+		for(Topic t : matching){
+			addSubscriber(username, t);
+		}
+		return "You are subscribed to topics matching: " + pattern + ", " + matching.size() + " so far";
+	}
+
+	/**
+	 * Drops a wildcard pattern and unsubscribes from the topics matching it,
+	 * including ones also subscribed to by name or another pattern
+	 * @return reply
+	 */
+	private String unsubscribeFromPattern(String username, String pattern){
+		ReentrantLock lock = lockFor(username);
+		lock.lock();
+		try{
+			List<String> patterns = this.subscribedPatternsGivenUsername.get(username);
+			if(!patterns.remove(pattern)){
+				return "Pattern " + pattern + " not in subscriptions";
+			}
+			replicate(Command.replPatterns(username, patterns));
+			this.topicMatcher.unsubscribe(username, Collections.singletonList(pattern));
+		}
+		finally{
+			lock.unlock();
+		}
+		for(Topic t : this.topicMatcher.matchTopics(pattern)){
+			removeSubscriber(username, t);
+		}
+		return "Unsubscribed from topics matching " + pattern;
+	}
+
+	/**
+	 * Drops a user's filters on a topic, they get every event of it again
+	 * @return false if the user had none
+	 */
+	private boolean clearFilters(String username, Topic topic){
+		FilterMatcher matcher = this.filtersGivenTopic.get(topic);
+		ReentrantLock lock = lockFor(username);
+		lock.lock();
+		try{
+			if(matcher.get(username).isEmpty()){
+				return false;
+			}
+			matcher.set(username, Collections.emptyList());
+			replicate(Command.replFilters(username, topic.getName(), Collections.emptyList()));
+			return true;
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Creates an event on a topic and notifies its subscribers
+	 * @param topicName name of an existing topic
+	 * @param eventTitle title of the event
+	 * @param content content of the event
+	 * @param timestamp when the publisher sent it, microseconds since the epoch
+	 * @return false if the topic does not exist
+	 */
+	private boolean publishEvent(String topicName, String eventTitle, String content, long timestamp){
+		Topic correspondingTopic = getTopicFromName(topicName);
+		if(correspondingTopic == null) {
+			return false;
+		}
+
+		if(this.cluster != null && !this.cluster.isOwner(correspondingTopic)){
+			this.cluster.forwardPublish(correspondingTopic, eventTitle, content, timestamp);
+			return true;
+		}
+		publishOwned(correspondingTopic, eventTitle, content, timestamp);
+		return true;
+	}
+
+	/**
+	 * Publishes an event on a topic this node owns (every topic when not
+	 * clustered): local subscribers, then the other interested nodes
+	 */
+	private void publishOwned(Topic topic, String eventTitle, String content, long timestamp){
+		Event tempEvent = new Event(topic,eventTitle,content,timestamp);
+		this.historyGivenTopic.get(topic).append(tempEvent);
+		this.eventsPublished.increment();
+
+		notifySubscribers(tempEvent);
+		if(this.cluster != null){
+			this.cluster.deliver(tempEvent);
+		}
+
+		Log.debug("EVENTMANAGER", tempEvent::toString);
+	}
+
 	/**
 	 * Notifies subscribers of a topic/keywords to corresponding events
 	 * Supports if person is offline
+	 * Only walks the subscribers of the event's topic, not every known user.
 	 * @param event An Event
 	 */
 	private void notifySubscribers(Event event) {
-		System.out.println("Notifying subscribers of event...");
-		System.out.println(event.toString());
-        //Forward event to clients who subscribe
-        for(String user : this.usernamesToIps.keySet()){
-			System.out.println("For user " + user);
-
-			//User is offline
-			if(queryUsernameOnline(user) == false){
-				(this.cachedEventsGivenUsername.get(user)).add(event);
-			}
-            if((this.subscribedTopicsGivenUsername.get(user)).contains(event.getTopic())){
-				System.out.println("Broadcast to these ips: " + this.usernamesToIps.get(user).toString());
-                this.serverInstance.writeToClientGivenIPs(event.toString(), this.usernamesToIps.get(user));
-            }
-            else{
-            	continue;
+		event.getTopic().updateLatest(event);
+		Set<String> subscribers = this.subscribersGivenTopic.get(event.getTopic());
+		this.fanOut.record(subscribers == null ? 0 : subscribers.size());
+		if(subscribers == null || subscribers.isEmpty()){
+			return;
+		}
+		//Every filter on the topic is evaluated in one pass, not once per subscriber
+		FilterMatcher filters = this.filtersGivenTopic.get(event.getTopic());
+		Set<String> rejected = (filters == null) ? Collections.emptySet() : filters.rejected(event);
+
+        //Encoded once on the first online subscriber, every connection writes the same bytes
+        SharedFrame frame = null;
+        for(String user : subscribers){
+			Log.trace("EVENTMANAGER", () -> "For user " + user);
+			if(rejected.contains(user)){
+				this.eventsFiltered.increment();
+				continue;
+			}
+
+			//User is offline or acks, unless a login got in between the check and the lock
+			if((this.ackedGivenUsername.containsKey(user) || queryUsernameOnline(user) == false) && cacheEvent(user, event)){
+				continue;
+			}
+
+			Log.trace("EVENTMANAGER", () -> "Broadcast to these sessions: " + this.sessionsGivenUsername.get(user));
+			if(frame == null){
+				frame = this.serverInstance.share(Command.event(event));
+				//A queued older value of a conflated topic is replaced instead of sent
+				frame.setConflationKey(event.getConflationKey());
+				frame.setOnWritten(() -> {
+					this.eventsDelivered.increment();
+					this.deliveryMicros.record(Event.currentTimeMicros() - event.getTimestamp());
+				});
 			}
+			this.serverInstance.writeToSessions(frame, this.sessionsGivenUsername.get(user));
         }
+
+		//Drop the publisher's reference, the buffer is recycled once every connection wrote it
+		if(frame != null){
+			frame.release();
+		}
+	}
+
+	/**
+	 * Caches an event for a user who is offline or acknowledges events.
+	 * Decided again under the user's lock, which a login holds while it
+	 * registers the session and starts the replay: the event is stored
+	 * before the replay reads the store, or sent live after the login,
+	 * never stored once the replay has caught up.
+	 * @param user subscriber
+	 * @param event Event
+	 * @return false if the user is online without acks and gets it live
+	 */
+	private boolean cacheEvent(String user, Event event){
+		AckedDelivery acked;
+		ReentrantLock lock = lockFor(user);
+		lock.lock();
+		try{
+			acked = this.ackedGivenUsername.get(user);
+			if(acked == null && queryUsernameOnline(user)){
+				return false;
+			}
+			long offset = this.offlineStore.append(user, event);
+			replicate(Command.replCache(user, offset, event));
+			if(acked == null){
+				this.eventsCached.increment();
+			}
+		}
+		catch(IOException e){
+			Log.error("EVENTMANAGER", "Could not cache event for " + user, e);
+			return true;
+		}
+		finally{
+			lock.unlock();
+		}
+		if(acked != null){
+			acked.schedule();
+		}
+		return true;
 	}
 
 	/**
 	 * Adds a topic to the internal list of topics
 	 * @param topic A Topic
+	 * @return false if a topic with this name already exists
 	 */
-	private void addTopic(Topic topic){
-		//Add the topic to the internal list of topics
+	private boolean addTopic(Topic topic){
+		this.topicLock.lock();
+		try{
+			//A duplicate must not open a second history over the live topic's segments
+			if(this.topicsGivenName.containsKey(topic.getName())){
+				return false;
+			}
+			//Index the subscribers and history before the name, publishers look the topic up by name
+			this.subscribersGivenTopic.put(topic, ConcurrentHashMap.newKeySet());
+			this.filtersGivenTopic.put(topic, new FilterMatcher());
+			this.historyGivenTopic.put(topic, openHistory(topic));
+			this.topicsGivenName.put(topic.getName(), topic);
+		}
+		finally{
+			this.topicLock.unlock();
+		}
 		this.topics.add(topic);
+		replicate(Command.replTopic(topic));
 
-		//Check keywords and add to existing users
-		for(String user : usernamesToIps.keySet()){
-			List<String> keywords = this.subscribedKeywordsGivenUsername.get(user);
-			for (String keyword : keywords){
-				//for each topic, if it has these keywords and not already subscribed, subscribe user
-				if(topic.getKeywords().contains(keyword)){
-					this.subscribedTopicsGivenUsername.get(user).add(topic);
-				}
-			}
+		//Subscribe users whose keywords match, indexing the topic first so a concurrent keyword subscribe sees it
+		this.keywordMatcher.addTopic(topic);
+		for(String user : this.keywordMatcher.matchUsers(topic)){
+			addSubscriber(user, topic);
+		}
+		//Same for wildcard patterns, walking the pattern trie along the topic's levels
+		this.topicMatcher.addTopic(topic);
+		for(String user : this.topicMatcher.matchUsers(topic)){
+			addSubscriber(user, topic);
 		}
 
 		//Notify all clients that there is a new topic
-		this.serverInstance.writeToAllClients("New Topic: " + topic.getName() + "\n" + "Keywords: " + topic.getKeywords().toString());
+		this.serverInstance.writeToAllClients(Command.notice("New Topic: " + topic.getName() + "\n" + "Keywords: " + topic.getKeywords().toString()));
+		return true;
+	}
+
+	/**
+	 * @param topic new Topic
+	 * @return its history, memory only if its segments cannot be opened
+	 */
+	private TopicHistory openHistory(Topic topic){
+		try{
+			return new TopicHistory(topic, this.historyDirectory, this.historyEvents, this.historyRetentionBytes);
+		}
+		catch(IOException e){
+			Log.error("EVENTMANAGER", "Could not open history of " + topic.getName() + ", keeping it in memory only", e);
+			try{
+				return new TopicHistory(topic, null, this.historyEvents, this.historyRetentionBytes);
+			}
+			catch(IOException impossible){
+				throw new IllegalStateException(impossible);
+			}
+		}
 	}
 
 	/**
 	 * Adds a subscriber to the internal model
 	 * @param id username
 	 * @param t Topic
+	 * @return true if newly subscribed, false if already subscribed
 	 */
-	private void addSubscriber(String id, Topic t){
-		if(!((this.subscribedTopicsGivenUsername.get(id)).contains(t)))
+	private boolean addSubscriber(String id, Topic t){
+		ReentrantLock lock = lockFor(id);
+		lock.lock();
+		try{
+			if((this.subscribedTopicsGivenUsername.get(id)).contains(t)){
+				return false;
+			}
 			this.subscribedTopicsGivenUsername.get(id).add(t);
+			this.subscribersGivenTopic.get(t).add(id);
+			replicate(Command.replSubscribe(id, t));
+		}
+		finally{
+			lock.unlock();
+		}
+		updateInterest(t);
+		return true;
 	}
 
 	/**
 	 * Removes a subscriber from the internal model
 	 * @param id username
 	 * @param t Topics
+	 * @return true if removed, false if not subscribed
+	 */
+	private boolean removeSubscriber(String id, Topic t){
+		ReentrantLock lock = lockFor(id);
+		lock.lock();
+		try{
+			Log.debug("EVENTMANAGER", () -> "removing subscriber " + id + " from " + this.subscribedTopicsGivenUsername.get(id));
+			if(!(this.subscribedTopicsGivenUsername.get(id)).remove(t)){
+				return false;
+			}
+			this.subscribersGivenTopic.get(t).remove(id);
+			//Filters go with the subscription, a standby drops them on the same change
+			this.filtersGivenTopic.get(t).set(id, Collections.emptyList());
+			replicate(Command.replUnsubscribe(id, t.getName()));
+		}
+		finally{
+			lock.unlock();
+		}
+		updateInterest(t);
+		return true;
+	}
+
+	/**
+	 * Tells the cluster whether this node still has subscribers of a
+	 * topic. Runs after every local subscribe or unsubscribe; the topic's
+	 * lock keeps the last one sent matching the subscriber set.
+	 * @param t Topic
+	 */
+	private void updateInterest(Topic t){
+		if(this.cluster == null){
+			return;
+		}
+		ReentrantLock lock = topicLockFor(t);
+		lock.lock();
+		try{
+			this.cluster.setInterest(t, !this.subscribersGivenTopic.get(t).isEmpty());
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+
+	private ReentrantLock topicLockFor(Topic t){
+		return this.topicLocks[(t.getName().hashCode() & 0x7fffffff) % USER_LOCK_STRIPES];
+	}
+
+	/**
+	 * Runs a command from another cluster node
+	 * @param node sending node
+	 * @param command PEER_TOPIC, PEER_PUBLISH or PEER_DELIVER
 	 */
-	private void removeSubscriber(String id, Topic t){
-		System.out.println("removing subscriber...");
-		System.out.println(this.subscribedTopicsGivenUsername.get(id));
-		if((this.subscribedTopicsGivenUsername.get(id)).contains(t))
-			this.subscribedTopicsGivenUsername.get(id).remove(t);
+	void passPeerCommand(String node, Command command){
+		Log.debug("EVENTMANAGER", () -> "Node: " + node + " Message: " + command);
+		switch(command.getOpcode()){
+			case Command.PEER_TOPIC:
+				addTopic(command.getTopic(0));
+				break;
+			case Command.PEER_PUBLISH:
+				Topic owned = getTopicFromName(command.getArg(0));
+				if(owned != null){
+					publishOwned(owned, command.getArg(1), command.getArg(2), Long.parseLong(command.getArg(3)));
+				}
+				break;
+			case Command.PEER_DELIVER:
+				Topic delivered = getTopicFromName(command.getArg(0));
+				if(delivered != null){
+					//Keeps the owner's offset, the owner retains the history
+					notifySubscribers(new Event(delivered, command.getArg(1), command.getArg(2), Long.parseLong(command.getArg(3)),
+							command.getOffset()));
+				}
+				break;
+			default:
+				Log.warn("EVENTMANAGER", "Unexpected frame from node " + node + ": " + command);
+		}
+	}
+
+	/**
+	 * Resends every topic, and our interest in the ones it owns, to a
+	 * node that connected or reconnected
+	 * @param node peer node
+	 */
+	void syncPeer(String node){
+		for(Topic t : this.topics){
+			ReentrantLock lock = topicLockFor(t);
+			lock.lock();
+			try{
+				this.cluster.resend(node, t, !this.subscribersGivenTopic.get(t).isEmpty());
+			}
+			finally{
+				lock.unlock();
+			}
+		}
 	}
 	
+	/**
+	 * Sends a state change to this node's standbys and state log, if it
+	 * has any. Callers make the change visible first.
+	 * @param change REPL_* command
+	 */
+	private void replicate(Command change){
+		if(this.replication != null){
+			this.replication.record(change);
+		}
+		//Cached events and cursors are durable in the offline store already
+		if(this.stateLog != null && change.getOpcode() != Command.REPL_CACHE && change.getOpcode() != Command.REPL_COMMIT){
+			this.stateLog.append(change);
+		}
+	}
+
+	/**
+	 * Forgets every user and topic, on a standby about to copy a leader's
+	 * state. The standby has no clients to tell.
+	 */
+	void resetState(){
+		this.sessionsGivenUsername.clear();
+		this.usernameGivenSession.clear();
+		this.subscribedTopicsGivenUsername.clear();
+		this.subscribedKeywordsGivenUsername.clear();
+		this.subscribedPatternsGivenUsername.clear();
+		this.subscribersGivenTopic.clear();
+		this.filtersGivenTopic.clear();
+		this.historyGivenTopic.clear();
+		this.topicsGivenName.clear();
+		this.topics.clear();
+		this.keywordMatcher = new KeywordMatcher();
+		this.topicMatcher = new TopicMatcher();
+		if(this.stateLog != null){
+			try{
+				//Everything logged so far is void, start from the empty snapshot
+				this.stateLog.snapshot();
+			}
+			catch(IOException e){
+				Log.error("EVENTMANAGER", "Could not reset state log", e);
+			}
+		}
+	}
+
+	/**
+	 * Applies a state change from the leader, on a standby
+	 * @param change REPL_LOGIN, REPL_TOPIC, REPL_SUBSCRIBE, REPL_UNSUBSCRIBE, REPL_KEYWORDS, REPL_FILTERS or REPL_PATTERNS
+	 */
+	void applyReplicated(Command change){
+		Log.trace("EVENTMANAGER", () -> "Replicated: " + change);
+		switch(change.getOpcode()){
+			case Command.REPL_LOGIN:
+				//Older logs carry the ip first, the username is always last
+				String created = change.getArg(change.getArgs().length - 1);
+				ReentrantLock loginLock = lockFor(created);
+				loginLock.lock();
+				try{
+					createUser(created);
+				}
+				finally{
+					loginLock.unlock();
+				}
+				break;
+			case Command.REPL_TOPIC:
+				addTopic(change.getTopic(0));
+				break;
+			case Command.REPL_SUBSCRIBE:
+				if(!this.subscribedTopicsGivenUsername.containsKey(change.getArg(0))){
+					Log.warn("EVENTMANAGER", "Replicated subscribe of unknown user: " + change);
+					break;
+				}
+				addTopic(change.getTopic(1));
+				addSubscriber(change.getArg(0), getTopicFromName(change.getArg(1)));
+				break;
+			case Command.REPL_UNSUBSCRIBE:
+				Topic t = getTopicFromName(change.getArg(1));
+				if(t != null && this.subscribedTopicsGivenUsername.containsKey(change.getArg(0))){
+					removeSubscriber(change.getArg(0), t);
+				}
+				break;
+			case Command.REPL_KEYWORDS:
+				setKeywords(change.getArg(0), change.getArgsFrom(1));
+				break;
+			case Command.REPL_PATTERNS:
+				setPatterns(change.getArg(0), change.getArgsFrom(1));
+				break;
+			case Command.REPL_FILTERS:
+				Topic filtered = getTopicFromName(change.getArg(1));
+				if(filtered == null || !this.subscribedTopicsGivenUsername.containsKey(change.getArg(0))){
+					//Only overtakes its REPL_TOPIC in a race; the user then gets every event, not none
+					Log.warn("EVENTMANAGER", "Replicated filters of unknown user or topic: " + change);
+					break;
+				}
+				ReentrantLock filterLock = lockFor(change.getArg(0));
+				filterLock.lock();
+				try{
+					this.filtersGivenTopic.get(filtered).set(change.getArg(0), change.getFilters());
+				}
+				finally{
+					filterLock.unlock();
+				}
+				break;
+			default:
+				Log.warn("EVENTMANAGER", "Unexpected replicated change: " + change);
+		}
+	}
+
+	/**
+	 * Replaces a user's keywords without touching their subscriptions,
+	 * which are replicated one by one
+	 */
+	private void setKeywords(String username, List<String> keywords){
+		ReentrantLock lock = lockFor(username);
+		lock.lock();
+		try{
+			List<String> current = this.subscribedKeywordsGivenUsername.get(username);
+			if(current == null){
+				return;
+			}
+			List<String> removed = new ArrayList<>(current);
+			removed.removeAll(keywords);
+			this.keywordMatcher.unsubscribe(username, removed);
+			for(String k : keywords){
+				if(!current.contains(k)){
+					this.keywordMatcher.subscribe(username, k);
+				}
+			}
+			current.clear();
+			current.addAll(keywords);
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Replaces a user's wildcard patterns without touching their
+	 * subscriptions, which are replicated one by one
+	 */
+	private void setPatterns(String username, List<String> patterns){
+		ReentrantLock lock = lockFor(username);
+		lock.lock();
+		try{
+			List<String> current = this.subscribedPatternsGivenUsername.get(username);
+			if(current == null){
+				return;
+			}
+			List<String> removed = new ArrayList<>(current);
+			removed.removeAll(patterns);
+			this.topicMatcher.unsubscribe(username, removed);
+			for(String p : patterns){
+				if(!current.contains(p)){
+					this.topicMatcher.subscribe(username, p);
+				}
+			}
+			current.clear();
+			current.addAll(patterns);
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Writes the state a new standby starts from: users, topics, keywords,
+	 * patterns, subscriptions and their filters. Changes made meanwhile are already queued for it,
+	 * and applying one twice is harmless.
+	 * @param sink the standby's link
+	 * @throws IOException if the link fails
+	 */
+	void snapshot(Replication.Sink sink) throws IOException{
+		for(String user : this.sessionsGivenUsername.keySet()){
+			sink.accept(Command.replLogin(user));
+		}
+		for(Topic t : this.topics){
+			sink.accept(Command.replTopic(t));
+		}
+		for(Map.Entry<String, List<String>> keywords : this.subscribedKeywordsGivenUsername.entrySet()){
+			if(!keywords.getValue().isEmpty()){
+				sink.accept(Command.replKeywords(keywords.getKey(), keywords.getValue()));
+			}
+		}
+		for(Map.Entry<String, List<String>> patterns : this.subscribedPatternsGivenUsername.entrySet()){
+			if(!patterns.getValue().isEmpty()){
+				sink.accept(Command.replPatterns(patterns.getKey(), patterns.getValue()));
+			}
+		}
+		for(Map.Entry<String, List<Topic>> subscribed : this.subscribedTopicsGivenUsername.entrySet()){
+			for(Topic t : subscribed.getValue()){
+				sink.accept(Command.replSubscribe(subscribed.getKey(), t));
+			}
+		}
+		for(Topic t : this.topics){
+			for(Map.Entry<String, List<FilterMatcher.Filter>> filters : this.filtersGivenTopic.get(t).getAll().entrySet()){
+				sink.accept(Command.replFilters(filters.getKey(), t.getName(), filters.getValue()));
+			}
+		}
+	}
+
 	/**
 	 * show the list of subscriber for a specified topic
 	 */
 	private void showSubscribers(Topic topic){
-		for(String user : this.usernamesToIps.keySet()){
-			if((subscribedTopicsGivenUsername.get(user)).contains(topic)){
-				System.out.println(user);
-			}
+		for(String user : this.subscribersGivenTopic.get(topic)){
+			Log.debug("EVENTMANAGER", () -> user);
 		}
 	}
 
@@ -442,7 +1631,7 @@ public class EventManager{
 	 * Prints program usage and exits
 	 */
 	private static void printUsageAndExit(){
-		System.out.println("Usage: EventManager.java <PORT_NUMBER>");
+		System.out.println(BrokerConfig.USAGE);
 		System.exit(0);
 	}
 
@@ -451,10 +1640,16 @@ public class EventManager{
 	 * @param args
 	 */
 	public static void main(String[] args) {
-		if(args.length != 1){
+		BrokerConfig config = null;
+		try{
+			config = BrokerConfig.parse(args);
+		}
+		catch(IllegalArgumentException e){
+			System.out.println(e.getMessage());
 			printUsageAndExit();
 		}
-		EventManager eventManager = new EventManager(Integer.parseInt(args[0]));
+		Log.setLevel(config.getLogLevel());
+		EventManager eventManager = new EventManager(config);
 
 		// All Incoming/Outgoing processing performed in server Handler
 		eventManager.startService();
@@ -0,0 +1,370 @@
+package edu.rit.cs.pubsub;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Content filters of one topic's subscribers, matched against each event
+ * at publish time so events a subscriber would discard are never sent.
+ *
+ * A filter is a conjunction of predicates over event fields:
+ *   title^=PREFIX    the title starts with PREFIX
+ *   content*=TEXT    the content contains TEXT
+ * A user with several filters on the topic gets events passing any one.
+ *
+ * Filters are compiled into one matcher per topic. Equal predicates are
+ * shared across filters and users and evaluated once per event: title
+ * prefixes sit in a trie walked along the title, content needles in an
+ * Aho-Corasick automaton run over the content once. Each true predicate
+ * then bumps a counter on the filters that use it, and a filter whose
+ * count reaches its size passes. Work per event is the length of its
+ * fields plus the predicates it satisfies, not the number of filters.
+ *
+ * Filters change far less often than events arrive: changes only mark
+ * the matcher stale, and the next match recompiles it.
+ */
+public class FilterMatcher {
+
+    public static final String TITLE_PREFIX = "title^=";
+    public static final String CONTENT_CONTAINS = "content*=";
+    // Joins the predicates of a filter in console input and toString
+    public static final String AND = " and ";
+
+    /**
+     * A conjunction of predicates
+     */
+    public static class Filter {
+        private final List<String> predicates;
+
+        private Filter(List<String> predicates) {
+            this.predicates = predicates;
+        }
+
+        /**
+         * @param predicates e.g. "title^=Breaking", "content*=rate cut"
+         * @return Filter, duplicates removed
+         * @throws IllegalArgumentException if a predicate is not understood
+         */
+        public static Filter parse(List<String> predicates) {
+            if (predicates.isEmpty()) {
+                throw new IllegalArgumentException("A filter needs at least one predicate");
+            }
+            List<String> distinct = new ArrayList<>();
+            for (String p : predicates) {
+                if (!(valueOf(p, TITLE_PREFIX) != null || valueOf(p, CONTENT_CONTAINS) != null)) {
+                    throw new IllegalArgumentException("Unknown predicate " + p + ", expected "
+                            + TITLE_PREFIX + "Prefix or " + CONTENT_CONTAINS + "Text");
+                }
+                if (!distinct.contains(p)) {
+                    distinct.add(p);
+                }
+            }
+            Collections.sort(distinct);
+            return new Filter(distinct);
+        }
+
+        public List<String> getPredicates() {
+            return this.predicates;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Filter && ((Filter) o).predicates.equals(this.predicates);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.predicates.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return String.join(AND, this.predicates);
+        }
+    }
+
+    /**
+     * @return the predicate's value if it has this field prefix and a non-empty value, else null
+     */
+    private static String valueOf(String predicate, String field) {
+        if (predicate.startsWith(field) && predicate.length() > field.length()) {
+            return predicate.substring(field.length());
+        }
+        return null;
+    }
+
+    /**
+     * Trie node, keyed by character. The title trie uses the ids ending at
+     * a node; the content automaton also follows fail links.
+     */
+    private static class Node {
+        private final HashMap<Character, Node> children = new HashMap<>();
+        private Node fail;
+        // Predicates ending here, and for the automaton at any fail link below
+        private int[] ids = new int[0];
+
+        Node childOrCreate(char c) {
+            return this.children.computeIfAbsent(c, k -> new Node());
+        }
+
+        void addId(int id) {
+            this.ids = Arrays.copyOf(this.ids, this.ids.length + 1);
+            this.ids[this.ids.length - 1] = id;
+        }
+    }
+
+    /**
+     * The matcher compiled from the filters at one point in time
+     */
+    private static class Compiled {
+        private final Node titleTrie = new Node();
+        private final Node contentAutomaton = new Node();
+        // Filters using each predicate, by predicate id
+        private int[][] filtersGivenPredicate;
+        // Predicates in each filter and the user it belongs to, by filter id
+        private int[] sizes;
+        private String[] users;
+        private Set<String> filteredUsers;
+    }
+
+    private final ReentrantLock lock;
+    // Guarded by lock
+    private final Map<String, List<Filter>> filtersGivenUsername;
+    private volatile Compiled compiled;
+
+    /**
+     * FilterMatcher constructor
+     */
+    public FilterMatcher() {
+        this.lock = new ReentrantLock();
+        this.filtersGivenUsername = new LinkedHashMap<>();
+    }
+
+    /**
+     * Adds a filter for a user
+     * @param username user
+     * @param filter Filter
+     * @return false if the user already has this filter
+     */
+    public boolean add(String username, Filter filter) {
+        this.lock.lock();
+        try {
+            List<Filter> filters = this.filtersGivenUsername.computeIfAbsent(username, u -> new ArrayList<>());
+            if (filters.contains(filter)) {
+                return false;
+            }
+            filters.add(filter);
+            this.compiled = null;
+            return true;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Replaces every filter of a user
+     * @param username user
+     * @param filters new filters, empty to remove them all
+     */
+    public void set(String username, List<Filter> filters) {
+        this.lock.lock();
+        try {
+            if (filters.isEmpty()) {
+                this.filtersGivenUsername.remove(username);
+            } else {
+                this.filtersGivenUsername.put(username, new ArrayList<>(filters));
+            }
+            this.compiled = null;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @param username user
+     * @return the user's filters, empty if the user gets every event
+     */
+    public List<Filter> get(String username) {
+        this.lock.lock();
+        try {
+            List<Filter> filters = this.filtersGivenUsername.get(username);
+            return filters == null ? Collections.emptyList() : new ArrayList<>(filters);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return users with filters and their filters, a copy
+     */
+    public Map<String, List<Filter>> getAll() {
+        this.lock.lock();
+        try {
+            Map<String, List<Filter>> copy = new LinkedHashMap<>();
+            for (Map.Entry<String, List<Filter>> e : this.filtersGivenUsername.entrySet()) {
+                copy.put(e.getKey(), new ArrayList<>(e.getValue()));
+            }
+            return copy;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Users with filters that all reject an event. Users without filters
+     * are never rejected.
+     * @param event Event published on this matcher's topic
+     * @return usernames not to send the event to
+     */
+    public Set<String> rejected(Event event) {
+        Compiled c = this.compiled;
+        if (c == null) {
+            c = compile();
+        }
+        if (c.filteredUsers.isEmpty()) {
+            return Collections.emptySet();
+        }
+
+        int[] counts = new int[c.sizes.length];
+        Set<String> passed = new HashSet<>();
+        //A predicate can be reached twice, e.g. a needle found at two places
+        boolean[] seen = new boolean[c.filtersGivenPredicate.length];
+
+        Node node = c.titleTrie;
+        String title = event.getTitle();
+        for (int i = 0; i < title.length() && node != null; i++) {
+            node = node.children.get(title.charAt(i));
+            if (node != null) {
+                satisfy(c, node.ids, seen, counts, passed);
+            }
+        }
+
+        node = c.contentAutomaton;
+        String content = event.getContent();
+        for (int i = 0; i < content.length(); i++) {
+            char ch = content.charAt(i);
+            while (node != c.contentAutomaton && !node.children.containsKey(ch)) {
+                node = node.fail;
+            }
+            node = node.children.getOrDefault(ch, c.contentAutomaton);
+            satisfy(c, node.ids, seen, counts, passed);
+        }
+
+        if (passed.size() == c.filteredUsers.size()) {
+            return Collections.emptySet();
+        }
+        Set<String> rejected = new HashSet<>(c.filteredUsers);
+        rejected.removeAll(passed);
+        return rejected;
+    }
+
+    private static void satisfy(Compiled c, int[] predicateIds, boolean[] seen, int[] counts, Set<String> passed) {
+        for (int p : predicateIds) {
+            if (seen[p]) {
+                continue;
+            }
+            seen[p] = true;
+            for (int f : c.filtersGivenPredicate[p]) {
+                if (++counts[f] == c.sizes[f]) {
+                    passed.add(c.users[f]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds the matcher from the current filters
+     */
+    private Compiled compile() {
+        this.lock.lock();
+        try {
+            if (this.compiled != null) {
+                return this.compiled;
+            }
+            Compiled c = new Compiled();
+            Map<String, Integer> idGivenPredicate = new HashMap<>();
+            List<List<Integer>> filtersGivenPredicate = new ArrayList<>();
+            List<Integer> sizes = new ArrayList<>();
+            List<String> users = new ArrayList<>();
+
+            for (Map.Entry<String, List<Filter>> e : this.filtersGivenUsername.entrySet()) {
+                for (Filter filter : e.getValue()) {
+                    int f = sizes.size();
+                    sizes.add(filter.getPredicates().size());
+                    users.add(e.getKey());
+                    for (String p : filter.getPredicates()) {
+                        Integer id = idGivenPredicate.get(p);
+                        if (id == null) {
+                            //First use of this predicate, index it once for every filter sharing it
+                            id = filtersGivenPredicate.size();
+                            idGivenPredicate.put(p, id);
+                            filtersGivenPredicate.add(new ArrayList<>());
+                            String prefix = valueOf(p, TITLE_PREFIX);
+                            insert(prefix != null ? c.titleTrie : c.contentAutomaton,
+                                    prefix != null ? prefix : valueOf(p, CONTENT_CONTAINS), id);
+                        }
+                        filtersGivenPredicate.get(id).add(f);
+                    }
+                }
+            }
+            linkFails(c.contentAutomaton);
+
+            c.filtersGivenPredicate = new int[filtersGivenPredicate.size()][];
+            for (int p = 0; p < c.filtersGivenPredicate.length; p++) {
+                c.filtersGivenPredicate[p] = filtersGivenPredicate.get(p).stream().mapToInt(Integer::intValue).toArray();
+            }
+            c.sizes = sizes.stream().mapToInt(Integer::intValue).toArray();
+            c.users = users.toArray(new String[0]);
+            c.filteredUsers = new HashSet<>(this.filtersGivenUsername.keySet());
+            this.compiled = c;
+            return c;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private static void insert(Node root, String value, int id) {
+        Node node = root;
+        for (int i = 0; i < value.length(); i++) {
+            node = node.childOrCreate(value.charAt(i));
+        }
+        node.addId(id);
+    }
+
+    /**
+     * Aho-Corasick fail links, breadth first; every node also takes the
+     * ids of its fail node so a match never walks the fail chain
+     */
+    private static void linkFails(Node root) {
+        ArrayDeque<Node> queue = new ArrayDeque<>();
+        for (Node child : root.children.values()) {
+            child.fail = root;
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            Node node = queue.poll();
+            for (Map.Entry<Character, Node> e : node.children.entrySet()) {
+                Node child = e.getValue();
+                Node fail = node.fail;
+                while (fail != root && !fail.children.containsKey(e.getKey())) {
+                    fail = fail.fail;
+                }
+                Node target = fail.children.get(e.getKey());
+                child.fail = (target != null && target != child) ? target : root;
+                for (int id : child.fail.ids) {
+                    child.addId(id);
+                }
+                queue.add(child);
+            }
+        }
+    }
+}
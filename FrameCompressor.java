@@ -0,0 +1,73 @@
+package edu.rit.cs.pubsub;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Deflates the frames written to one connection that asked for it.
+ *
+ * One raw Deflater lives as long as the connection and every frame is
+ * sync flushed, so its 32 KB window carries over from frame to frame.
+ * Later frames are compressed against the earlier ones as a dictionary,
+ * which is where most of the saving comes from: a replay or a busy
+ * topic repeats its topic names, titles and much of its content.
+ *
+ * Frames below the threshold are sent as they are; the client's Inflater
+ * only ever sees compressed frames, so both windows stay in step.
+ *
+ * Not thread safe, only the connection's writer calls compress.
+ */
+public class FrameCompressor {
+
+    public static final int OFF = -1;
+    public static final int DEFAULT_MIN_BYTES = 256;
+
+    private final Deflater deflater;
+    private final int minBytes;
+    private byte[] output;
+
+    /**
+     * FrameCompressor constructor
+     * @param minBytes smallest frame to compress
+     */
+    public FrameCompressor(int minBytes) {
+        this.deflater = new Deflater(Deflater.BEST_SPEED, true);
+        this.minBytes = minBytes;
+        this.output = new byte[4096];
+    }
+
+    public int getMinBytes() {
+        return this.minBytes;
+    }
+
+    /**
+     * @param frame encoded frame, not modified
+     * @return a COMPRESSED frame holding it, or frame itself if it is small
+     */
+    public ByteBuffer compress(ByteBuffer frame) {
+        if (frame.remaining() < this.minBytes) {
+            return frame;
+        }
+        this.deflater.setInput(frame.duplicate());
+        int length = 0;
+        while (true) {
+            if (length == this.output.length) {
+                this.output = Arrays.copyOf(this.output, this.output.length * 2);
+            }
+            length += this.deflater.deflate(this.output, length, this.output.length - length, Deflater.SYNC_FLUSH);
+            //A sync flush is complete once it leaves room to spare
+            if (length < this.output.length && this.deflater.needsInput()) {
+                break;
+            }
+        }
+        return WireProtocol.compressed(this.output, length);
+    }
+
+    /**
+     * Frees the Deflater's native memory, once the connection is closed
+     */
+    public void end() {
+        this.deflater.end();
+    }
+}
@@ -0,0 +1,78 @@
+package edu.rit.cs.pubsub;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring over broker node ids.
+ *
+ * Every node is placed on the ring at VIRTUAL_NODES points; a topic
+ * belongs to the first node point at or after the topic's position
+ * (its Topic.getId(), mixed). Adding or removing a node only moves the
+ * topics between it and its neighbours, and the virtual points keep the
+ * share of each node close to even.
+ *
+ * Immutable; nodes joining or leaving means building a new ring.
+ */
+public final class HashRing {
+
+    // Points per node on the ring
+    public static final int VIRTUAL_NODES = 128;
+
+    private final TreeMap<Integer, String> ring;
+    private final List<String> nodes;
+
+    /**
+     * HashRing constructor
+     * @param nodes node ids, at least one
+     */
+    public HashRing(Collection<String> nodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("A ring needs at least one node");
+        }
+        this.ring = new TreeMap<>();
+        this.nodes = new ArrayList<>(nodes);
+        for (String node : nodes) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                //On a collision the smaller id wins, so every node builds the same ring
+                this.ring.merge(mix((node + "#" + i).hashCode()), node, (a, b) -> a.compareTo(b) <= 0 ? a : b);
+            }
+        }
+    }
+
+    /**
+     * @param topicId Topic.getId()
+     * @return id of the owning node
+     */
+    public String ownerOf(int topicId) {
+        Map.Entry<Integer, String> e = this.ring.ceilingEntry(mix(topicId));
+        return (e != null ? e : this.ring.firstEntry()).getValue();
+    }
+
+    public String ownerOf(Topic topic) {
+        return ownerOf(topic.getId());
+    }
+
+    /**
+     * @return node ids on the ring
+     */
+    public List<String> getNodes() {
+        return this.nodes;
+    }
+
+    /**
+     * Spreads String.hashCode values, which cluster for similar names,
+     * over the whole int range (murmur3 finalizer)
+     */
+    static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
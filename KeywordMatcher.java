@@ -0,0 +1,199 @@
+package edu.rit.cs.pubsub;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Matches keyword subscriptions against topic keywords.
+ *
+ * A subscription is either an exact keyword ("football") or a prefix
+ * pattern ending in '*' ("sports.*" matches "sports.football").
+ * Exact keywords are hash indexed both ways (keyword to topics, keyword to
+ * users). Prefixes live in two tries: one of topic keywords, walked down
+ * to the prefix to find matching topics, and one of user patterns, walked
+ * along a new topic keyword to find every pattern that is a prefix of it.
+ *
+ * Safe for concurrent use. Both sides index first and match second, so a
+ * subscribe racing an advertise is seen by at least one of them.
+ */
+public class KeywordMatcher {
+
+    public static final char WILDCARD = '*';
+
+    /**
+     * Trie node, keyed by character
+     */
+    private static class Node {
+        private final ConcurrentHashMap<Character, Node> children = new ConcurrentHashMap<>();
+        // Set when a topic keyword ends here (keyword trie)
+        private volatile String keyword;
+        // Users whose pattern prefix ends here (pattern trie)
+        private final Set<String> users = ConcurrentHashMap.newKeySet();
+
+        Node child(char c) {
+            return this.children.get(c);
+        }
+
+        Node childOrCreate(char c) {
+            return this.children.computeIfAbsent(c, k -> new Node());
+        }
+    }
+
+    private final ConcurrentHashMap<String, Set<Topic>> topicsGivenKeyword;
+    private final ConcurrentHashMap<String, Set<String>> usersGivenKeyword;
+    private final Node keywordTrie;
+    private final Node patternTrie;
+
+    /**
+     * KeywordMatcher constructor
+     */
+    public KeywordMatcher() {
+        this.topicsGivenKeyword = new ConcurrentHashMap<>();
+        this.usersGivenKeyword = new ConcurrentHashMap<>();
+        this.keywordTrie = new Node();
+        this.patternTrie = new Node();
+    }
+
+    /**
+     * @param keyword subscription keyword
+     * @return true if keyword is a prefix pattern
+     */
+    public static boolean isPattern(String keyword) {
+        return !keyword.isEmpty() && keyword.charAt(keyword.length() - 1) == WILDCARD;
+    }
+
+    private static String prefixOf(String pattern) {
+        return pattern.substring(0, pattern.length() - 1);
+    }
+
+    /**
+     * Indexes a new topic's keywords
+     * @param topic Topic
+     */
+    public void addTopic(Topic topic) {
+        for (String keyword : topic.getKeywords()) {
+            this.topicsGivenKeyword.computeIfAbsent(keyword, k -> ConcurrentHashMap.newKeySet()).add(topic);
+            Node node = this.keywordTrie;
+            for (int i = 0; i < keyword.length(); i++) {
+                node = node.childOrCreate(keyword.charAt(i));
+            }
+            node.keyword = keyword;
+        }
+    }
+
+    /**
+     * Users with a subscription matching any of the topic's keywords.
+     * Costs the length of the keywords plus the users found.
+     * @param topic Topic
+     * @return usernames
+     */
+    public Set<String> matchUsers(Topic topic) {
+        Set<String> matched = new HashSet<>();
+        for (String keyword : topic.getKeywords()) {
+            Set<String> exact = this.usersGivenKeyword.get(keyword);
+            if (exact != null) {
+                matched.addAll(exact);
+            }
+            //Every node on the keyword's path is a prefix of it
+            Node node = this.patternTrie;
+            for (int i = 0; node != null; i++) {
+                matched.addAll(node.users);
+                if (i == keyword.length()) {
+                    break;
+                }
+                node = node.child(keyword.charAt(i));
+            }
+        }
+        return matched;
+    }
+
+    /**
+     * Records a user's keyword subscription
+     * @param username user subscribing
+     * @param keyword exact keyword or prefix pattern
+     * @return topics that match it now
+     */
+    public Set<Topic> subscribe(String username, String keyword) {
+        if (isPattern(keyword)) {
+            String prefix = prefixOf(keyword);
+            Node node = this.patternTrie;
+            for (int i = 0; i < prefix.length(); i++) {
+                node = node.childOrCreate(prefix.charAt(i));
+            }
+            node.users.add(username);
+            return matchTopicsWithPrefix(prefix);
+        }
+
+        //Add inside compute so a concurrent unsubscribe cannot drop the set under us
+        this.usersGivenKeyword.compute(keyword, (k, users) -> {
+            if (users == null) {
+                users = ConcurrentHashMap.newKeySet();
+            }
+            users.add(username);
+            return users;
+        });
+        Set<Topic> topics = this.topicsGivenKeyword.get(keyword);
+        return topics == null ? Collections.emptySet() : new HashSet<>(topics);
+    }
+
+    /**
+     * Forgets a user's keyword subscriptions
+     * @param username user unsubscribing
+     * @param keywords keywords and patterns the user subscribed with
+     */
+    public void unsubscribe(String username, List<String> keywords) {
+        for (String keyword : keywords) {
+            if (isPattern(keyword)) {
+                Node node = findNode(this.patternTrie, prefixOf(keyword));
+                if (node != null) {
+                    node.users.remove(username);
+                }
+            } else {
+                this.usersGivenKeyword.computeIfPresent(keyword, (k, users) -> {
+                    users.remove(username);
+                    return users.isEmpty() ? null : users;
+                });
+            }
+        }
+    }
+
+    /**
+     * Topics with a keyword starting with prefix, found by walking the
+     * keyword trie below the prefix
+     */
+    private Set<Topic> matchTopicsWithPrefix(String prefix) {
+        Set<Topic> matched = new HashSet<>();
+        Node start = findNode(this.keywordTrie, prefix);
+        if (start == null) {
+            return matched;
+        }
+        ArrayDeque<Node> stack = new ArrayDeque<>();
+        stack.push(start);
+        while (!stack.isEmpty()) {
+            Node node = stack.pop();
+            String keyword = node.keyword;
+            if (keyword != null) {
+                Set<Topic> topics = this.topicsGivenKeyword.get(keyword);
+                if (topics != null) {
+                    matched.addAll(topics);
+                }
+            }
+            for (Node child : node.children.values()) {
+                stack.push(child);
+            }
+        }
+        return matched;
+    }
+
+    private static Node findNode(Node root, String path) {
+        Node node = root;
+        for (int i = 0; i < path.length() && node != null; i++) {
+            node = node.child(path.charAt(i));
+        }
+        return node;
+    }
+}
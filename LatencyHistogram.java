@@ -0,0 +1,123 @@
+package edu.rit.cs.pubsub;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-memory histogram of non-negative long values (e.g. microseconds),
+ * recorded lock-free from any number of threads.
+ *
+ * Buckets are log-linear like HdrHistogram's: values below 128 get their
+ * own bucket, above that every power of two is split into 64 linear
+ * sub-buckets, so any reported value is within 1/64 (about 1.6%) of the
+ * recorded one, from one microsecond to days.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 128;
+    private static final int HALF = SUB_BUCKETS / 2;
+    private static final int HALF_BITS = 6;
+    private static final int BUCKETS = SUB_BUCKETS + 57 * HALF;
+
+    private final AtomicLongArray counts;
+    private final AtomicLong count;
+    private final AtomicLong sum;
+    private final AtomicLong max;
+
+    /**
+     * LatencyHistogram constructor
+     */
+    public LatencyHistogram() {
+        this.counts = new AtomicLongArray(BUCKETS);
+        this.count = new AtomicLong();
+        this.sum = new AtomicLong();
+        this.max = new AtomicLong();
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - HALF_BITS;
+        int sub = (int) (value >>> shift);
+        return SUB_BUCKETS + (shift - 1) * HALF + (sub - HALF);
+    }
+
+    /**
+     * Largest value that falls in a bucket
+     */
+    private static long highestValueAt(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int k = index - SUB_BUCKETS;
+        int shift = k / HALF + 1;
+        long sub = k % HALF + HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * Records one value, negative values count as 0
+     * @param value value to record
+     */
+    public void record(long value) {
+        long v = Math.max(0, value);
+        this.counts.incrementAndGet(indexOf(v));
+        this.count.incrementAndGet();
+        this.sum.addAndGet(v);
+        long m;
+        while (v > (m = this.max.get()) && !this.max.compareAndSet(m, v)) {
+            //Retry until our value or a larger one is the max
+        }
+    }
+
+    public long getCount() {
+        return this.count.get();
+    }
+
+    public long getMax() {
+        return this.max.get();
+    }
+
+    public long getSum() {
+        return this.sum.get();
+    }
+
+    public double getMean() {
+        long n = getCount();
+        return n == 0 ? 0 : (double) this.sum.get() / n;
+    }
+
+    /**
+     * @param percentile 0 to 100
+     * @return value at or below which the given percent of recorded values fall
+     */
+    public long getValueAtPercentile(double percentile) {
+        long n = getCount();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += this.counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValueAt(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * One line summary, e.g. for a latency report
+     * @param unit unit label of the recorded values
+     * @return summary
+     */
+    public String summary(String unit) {
+        return String.format("count=%d mean=%.1f%s p50=%d%s p90=%d%s p99=%d%s p99.9=%d%s max=%d%s",
+                getCount(), getMean(), unit,
+                getValueAtPercentile(50), unit, getValueAtPercentile(90), unit,
+                getValueAtPercentile(99), unit, getValueAtPercentile(99.9), unit,
+                getMax(), unit);
+    }
+}
@@ -0,0 +1,303 @@
+package edu.rit.cs.pubsub;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * End-to-end load against a running EventManager on this host.
+ *
+ * Starts M subscriber and P publisher Clients, each from its own loopback
+ * address so large runs do not run out of ephemeral ports. Publishers pick topics
+ * uniformly or by a Zipf distribution and stamp every event with its send
+ * time; subscribers record publish to delivery latency in a
+ * LatencyHistogram. With a fixed rate the stamp is the time the event was
+ * scheduled, not when it got sent, so a stalled server shows up as latency
+ * instead of silently lowering the load.
+ *
+ * Usage: LoadGenerator [--option value ...], see USAGE
+ */
+public class LoadGenerator {
+
+    public static final String USAGE = "Usage: LoadGenerator [options] \n" +
+            "Options: \n" +
+            "		--host HOST                      EventManager address (127.0.0.1) \n" +
+            "		--port N                         EventManager port (9000) \n" +
+            "		--subscribers M                  subscriber clients (100) \n" +
+            "		--publishers P                   publisher clients (4) \n" +
+            "		--topics T                       topics to advertise and use (50) \n" +
+            "		--subscriptions K                topics each subscriber follows (5) \n" +
+            "		--rate N                         events per second per publisher, 0 for as fast as possible (1000) \n" +
+            "		--distribution uniform|zipf      how topics are picked (uniform) \n" +
+            "		--zipf-exponent S                skew of the zipf distribution (1.0) \n" +
+            "		--payload BYTES                  event content size (128) \n" +
+            "		--warmup SECONDS                 run before recording (2) \n" +
+            "		--duration SECONDS               recorded run (10)";
+
+    // Requests a publisher may have awaiting replies
+    private static final int PUBLISH_WINDOW = 256;
+
+    private String host = "127.0.0.1";
+    private int port = 9000;
+    private int subscriberCount = 100;
+    private int publisherCount = 4;
+    private int topicCount = 50;
+    private int subscriptions = 5;
+    private int rate = 1000;
+    private String distribution = "uniform";
+    private double zipfExponent = 1.0;
+    private int payloadBytes = 128;
+    private int warmupSeconds = 2;
+    private int durationSeconds = 10;
+
+    private final LongAdder published = new LongAdder();
+    private final LongAdder acknowledged = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private volatile boolean recording;
+    private volatile boolean running = true;
+
+    private PrintStream console;
+
+    /**
+     * Picks topic indexes
+     */
+    interface TopicChooser {
+        int next(Random random);
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        try {
+            generator.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println(USAGE);
+            System.exit(1);
+        }
+        generator.run();
+        System.exit(0);
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + args[i]);
+            }
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--host": this.host = value; break;
+                case "--port": this.port = Integer.parseInt(value); break;
+                case "--subscribers": this.subscriberCount = Integer.parseInt(value); break;
+                case "--publishers": this.publisherCount = Integer.parseInt(value); break;
+                case "--topics": this.topicCount = Integer.parseInt(value); break;
+                case "--subscriptions": this.subscriptions = Integer.parseInt(value); break;
+                case "--rate": this.rate = Integer.parseInt(value); break;
+                case "--distribution": this.distribution = value; break;
+                case "--zipf-exponent": this.zipfExponent = Double.parseDouble(value); break;
+                case "--payload": this.payloadBytes = Integer.parseInt(value); break;
+                case "--warmup": this.warmupSeconds = Integer.parseInt(value); break;
+                case "--duration": this.durationSeconds = Integer.parseInt(value); break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (!this.distribution.equals("uniform") && !this.distribution.equals("zipf")) {
+            throw new IllegalArgumentException("Unknown distribution " + this.distribution);
+        }
+        if (this.subscriberCount > 250 * 250 || this.publisherCount > 250 * 250) {
+            throw new IllegalArgumentException("At most 62500 subscribers and publishers");
+        }
+        this.subscriptions = Math.min(this.subscriptions, this.topicCount);
+    }
+
+    private void run() throws Exception {
+        //Client logs every connect, keep the report readable
+        this.console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        TopicChooser chooser = this.distribution.equals("zipf")
+                ? zipf(this.topicCount, this.zipfExponent)
+                : random -> random.nextInt(this.topicCount);
+
+        List<Client> clients = new ArrayList<>();
+        Client admin = new Client(this.host, this.port, "127.3.0.1");
+        admin.startReader(c -> { });
+        clients.add(admin);
+        admin.sendAsync(Command.parse("login load-admin")).get();
+        for (int t = 0; t < this.topicCount; t++) {
+            //Already exists on a rerun, which is fine
+            admin.sendAsync(Command.parse("advertise " + topicName(t) + " load")).get();
+        }
+
+        this.console.println("Connecting " + this.subscriberCount + " subscribers...");
+        for (int i = 0; i < this.subscriberCount; i++) {
+            clients.add(startSubscriber(i, chooser));
+        }
+
+        this.console.println("Starting " + this.publisherCount + " publishers, " + this.distribution
+                + " over " + this.topicCount + " topics, " + (this.rate == 0 ? "unthrottled" : this.rate + "/s each"));
+        List<Thread> publishers = new ArrayList<>();
+        for (int i = 0; i < this.publisherCount; i++) {
+            Client client = new Client(this.host, this.port, loopback(2, i));
+            client.setMaxInFlight(PUBLISH_WINDOW);
+            client.startReader(c -> { });
+            clients.add(client);
+            Thread t = new Thread(() -> publish(client, chooser), "load-publisher-" + i);
+            t.setDaemon(true);
+            publishers.add(t);
+        }
+        for (Thread t : publishers) {
+            t.start();
+        }
+
+        Thread.sleep(this.warmupSeconds * 1000L);
+        this.recording = true;
+        long startPublished = this.published.sum();
+        long startDelivered = this.delivered.sum();
+        long start = System.nanoTime();
+
+        long lastPublished = startPublished;
+        long lastDelivered = startDelivered;
+        for (int s = 1; s <= this.durationSeconds; s++) {
+            Thread.sleep(1000);
+            long p = this.published.sum();
+            long d = this.delivered.sum();
+            this.console.printf("t=%3ds published/s=%9d delivered/s=%10d p99=%dus%n",
+                    s, p - lastPublished, d - lastDelivered, this.latency.getValueAtPercentile(99));
+            lastPublished = p;
+            lastDelivered = d;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        this.recording = false;
+        this.running = false;
+
+        long totalPublished = this.published.sum() - startPublished;
+        long totalDelivered = this.delivered.sum() - startDelivered;
+        this.console.println("==============================");
+        this.console.printf("published  %d events, %.0f/s%n", totalPublished, totalPublished / seconds);
+        this.console.printf("delivered  %d events, %.0f/s (%.1f per publish)%n", totalDelivered, totalDelivered / seconds,
+                totalPublished == 0 ? 0.0 : (double) totalDelivered / totalPublished);
+        this.console.printf("acked      %d of %d sent including warmup, errors %d%n",
+                this.acknowledged.sum(), this.published.sum(), this.errors.sum());
+        this.console.println("latency    " + this.latency.summary("us"));
+
+        for (Client c : clients) {
+            c.kill();
+        }
+    }
+
+    private Client startSubscriber(int i, TopicChooser chooser) throws Exception {
+        Client client = new Client(this.host, this.port, loopback(1, i));
+        client.startReader(command -> {
+            if (command.getOpcode() != Command.EVENT) {
+                return;
+            }
+            this.delivered.increment();
+            if (this.recording) {
+                this.latency.record(Event.currentTimeMicros() - command.getTimestamp(Event.currentTimeMicros()));
+            }
+        });
+        client.sendAsync(Command.parse("login load-sub-" + i)).get();
+
+        //Subscribers follow topics by the same distribution publishers use
+        Random random = ThreadLocalRandom.current();
+        Set<Integer> topics = new LinkedHashSet<>();
+        while (topics.size() < this.subscriptions) {
+            topics.add(chooser.next(random));
+        }
+        for (int t : topics) {
+            client.sendAsync(Command.parse("subscribe topic " + topicName(t))).get();
+        }
+        return client;
+    }
+
+    private void publish(Client client, TopicChooser chooser) {
+        Random random = ThreadLocalRandom.current();
+        String content = "x".repeat(this.payloadBytes);
+        long intervalNanos = this.rate == 0 ? 0 : 1_000_000_000L / this.rate;
+        long startNanos = System.nanoTime();
+        long startMicros = Event.currentTimeMicros();
+        long n = 0;
+
+        while (this.running) {
+            long sentAt;
+            if (intervalNanos > 0) {
+                long intended = startNanos + n * intervalNanos;
+                long wait = intended - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                sentAt = startMicros + (intended - startNanos) / 1000;
+            } else {
+                sentAt = Event.currentTimeMicros();
+            }
+            n++;
+
+            Command command = Command.publish(topicName(chooser.next(random)), "load-" + n, content, sentAt);
+            try {
+                client.sendAsync(command).whenComplete((reply, e) -> {
+                    if (e != null || !reply.getArg(0).equals("Event Published")) {
+                        this.errors.increment();
+                    } else {
+                        this.acknowledged.increment();
+                    }
+                });
+            } catch (InterruptedException e) {
+                return;
+            }
+            this.published.increment();
+        }
+    }
+
+    private static String topicName(int t) {
+        return "load-topic-" + t;
+    }
+
+    /**
+     * @param group second octet, one per client role
+     * @param i client number
+     * @return 127.group.x.y
+     */
+    private static String loopback(int group, int i) {
+        return "127." + group + "." + (i / 250) + "." + (i % 250 + 1);
+    }
+
+    /**
+     * Zipf over n topics: topic k is picked with weight 1/(k+1)^s,
+     * sampled by binary search over the cumulative distribution
+     */
+    private static TopicChooser zipf(int n, double s) {
+        double[] cdf = new double[n];
+        double total = 0;
+        for (int k = 0; k < n; k++) {
+            total += 1.0 / Math.pow(k + 1, s);
+            cdf[k] = total;
+        }
+        for (int k = 0; k < n; k++) {
+            cdf[k] /= total;
+        }
+        return random -> {
+            double u = random.nextDouble();
+            int lo = 0;
+            int hi = n - 1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (cdf[mid] < u) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        };
+    }
+}
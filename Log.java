@@ -0,0 +1,175 @@
+package edu.rit.cs.pubsub;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Broker log: level controlled and asynchronous.
+ *
+ * Callers only format a message if its level is enabled (debug and trace
+ * take a Supplier) and then hand it to a bounded queue; a single daemon
+ * thread writes batches to System.out. Logging never blocks the caller:
+ * when the queue is full the message is dropped and counted, and the
+ * count is reported once the writer catches up.
+ *
+ * Lines keep the "[TAG] message" form used across the broker.
+ */
+public final class Log {
+
+    /**
+     * Most to least severe
+     */
+    public enum Level {
+        ERROR, WARN, INFO, DEBUG, TRACE;
+
+        /**
+         * @param s level name, any case
+         * @return Level
+         */
+        public static Level fromOption(String s) {
+            return valueOf(s.trim().toUpperCase());
+        }
+    }
+
+    private static final int QUEUE_CAPACITY = 8192;
+    private static final int BATCH_SIZE = 256;
+
+    private static volatile Level level = Level.INFO;
+    private static final BlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private static final AtomicLong dropped = new AtomicLong();
+
+    static {
+        Thread writer = new Thread(Log::drain, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        //Whatever is still queued goes out before the JVM exits
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+    }
+
+    private Log() {
+    }
+
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    public static Level getLevel() {
+        return level;
+    }
+
+    public static boolean isEnabled(Level l) {
+        return l.ordinal() <= level.ordinal();
+    }
+
+    public static void error(String tag, String message) {
+        log(Level.ERROR, tag, message);
+    }
+
+    public static void error(String tag, String message, Throwable t) {
+        if (isEnabled(Level.ERROR)) {
+            StringWriter trace = new StringWriter();
+            t.printStackTrace(new PrintWriter(trace));
+            enqueue("[" + tag + "] ERROR: " + message + "\n" + trace.toString().trim());
+        }
+    }
+
+    public static void warn(String tag, String message) {
+        log(Level.WARN, tag, message);
+    }
+
+    public static void info(String tag, String message) {
+        log(Level.INFO, tag, message);
+    }
+
+    /**
+     * @param message built only if DEBUG is enabled
+     */
+    public static void debug(String tag, Supplier<String> message) {
+        if (isEnabled(Level.DEBUG)) {
+            enqueue("[" + tag + "] " + message.get());
+        }
+    }
+
+    /**
+     * @param message built only if TRACE is enabled
+     */
+    public static void trace(String tag, Supplier<String> message) {
+        if (isEnabled(Level.TRACE)) {
+            enqueue("[" + tag + "] " + message.get());
+        }
+    }
+
+    /**
+     * @return messages dropped because the queue was full
+     */
+    public static long getDropped() {
+        return dropped.get();
+    }
+
+    private static void log(Level l, String tag, String message) {
+        if (isEnabled(l)) {
+            enqueue("[" + tag + "] " + (l.ordinal() <= Level.WARN.ordinal() ? l + ": " : "") + message);
+        }
+    }
+
+    private static void enqueue(String line) {
+        if (!queue.offer(line)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private static void drain() {
+        List<String> batch = new ArrayList<>(BATCH_SIZE);
+        long reportedDropped = 0;
+        while (true) {
+            try {
+                String first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, BATCH_SIZE - 1);
+                long nowDropped = dropped.get();
+                if (nowDropped != reportedDropped) {
+                    batch.add("[LOG] WARN: dropped " + (nowDropped - reportedDropped) + " messages, log queue full");
+                    reportedDropped = nowDropped;
+                }
+                write(batch);
+                batch.clear();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes out everything queued so far, on the calling thread
+     */
+    public static void flush() {
+        List<String> rest = new ArrayList<>();
+        queue.drainTo(rest);
+        write(rest);
+    }
+
+    private static void write(List<String> lines) {
+        if (lines.isEmpty()) {
+            return;
+        }
+        //Looked up per batch so System.setOut redirects apply
+        PrintStream out = System.out;
+        StringBuilder sb = new StringBuilder();
+        for (String line : lines) {
+            sb.append(line).append('\n');
+        }
+        out.print(sb);
+        out.flush();
+    }
+}
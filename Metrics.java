@@ -0,0 +1,309 @@
+package edu.rit.cs.pubsub;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Broker metrics: counters, gauges and histograms registered by name.
+ *
+ * Hot paths only touch a LongAdder or a LatencyHistogram; gauges are read
+ * when someone looks. Everything registered is published two ways: as
+ * attributes of one JMX MBean, and as Prometheus style text served over
+ * HTTP at /metrics.
+ *
+ * A name may carry labels, e.g. pubsub_commands_total{type="publish"}.
+ * Metrics sharing the text before the '{' form one family.
+ */
+public class Metrics {
+
+    public static final String OBJECT_NAME = "edu.rit.cs.pubsub:type=Broker";
+    public static final String SCRAPE_PATH = "/metrics";
+
+    // Percentiles reported for every histogram
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final String[] QUANTILE_LABELS = {"0.5", "0.9", "0.99", "0.999"};
+    private static final String[] PERCENTILE_SUFFIXES = {"_p50", "_p90", "_p99", "_p99_9"};
+
+    /**
+     * Monotonic count
+     */
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void increment() {
+            this.value.increment();
+        }
+
+        public void add(long n) {
+            this.value.add(n);
+        }
+
+        public long get() {
+            return this.value.sum();
+        }
+    }
+
+    /**
+     * One registered metric, or a family of labelled gauges
+     */
+    private static final class Entry {
+        private final String help;
+        private final String type;
+        private final Object source;
+
+        Entry(String help, String type, Object source) {
+            this.help = help;
+            this.type = type;
+            this.source = source;
+        }
+    }
+
+    // Sorted so the members of a family are written together
+    private final ConcurrentSkipListMap<String, Entry> entries;
+    private HttpServer httpServer;
+
+    /**
+     * Metrics constructor
+     */
+    public Metrics() {
+        this.entries = new ConcurrentSkipListMap<>();
+    }
+
+    /**
+     * @param name metric name, optionally with labels
+     * @param help one line description
+     * @return the counter registered under name
+     */
+    public Counter counter(String name, String help) {
+        Entry e = this.entries.computeIfAbsent(name, n -> new Entry(help, "counter", new Counter()));
+        return (Counter) e.source;
+    }
+
+    /**
+     * @param name metric name, optionally with labels
+     * @param help one line description
+     * @param value read on every scrape, from any thread
+     */
+    public void gauge(String name, String help, LongSupplier value) {
+        this.entries.put(name, new Entry(help, "gauge", value));
+    }
+
+    /**
+     * A count kept somewhere else, e.g. by OutboundQueue.Stats
+     * @param name metric name, optionally with labels
+     * @param help one line description
+     * @param value read on every scrape, never decreasing
+     */
+    public void counter(String name, String help, LongSupplier value) {
+        this.entries.put(name, new Entry(help, "counter", value));
+    }
+
+    /**
+     * @param name metric name
+     * @param help one line description, including the unit
+     * @return the histogram registered under name
+     */
+    public LatencyHistogram histogram(String name, String help) {
+        Entry e = this.entries.computeIfAbsent(name, n -> new Entry(help, "summary", new LatencyHistogram()));
+        return (LatencyHistogram) e.source;
+    }
+
+    /**
+     * Gauges whose label values are only known at scrape time, e.g. one
+     * per client. Only served over HTTP, JMX attributes are fixed.
+     * @param name metric name
+     * @param help one line description
+     * @param values label set (e.g. ip="10.0.0.1") to value
+     */
+    public void gaugeFamily(String name, String help, Supplier<Map<String, Long>> values) {
+        this.entries.put(name, new Entry(help, "gauge", values));
+    }
+
+    /**
+     * Writes every metric in the Prometheus text format
+     * @return scrape body
+     */
+    @SuppressWarnings("unchecked")
+    public String scrape() {
+        StringBuilder sb = new StringBuilder();
+        String lastFamily = null;
+        for (Map.Entry<String, Entry> me : this.entries.entrySet()) {
+            String name = me.getKey();
+            Entry e = me.getValue();
+            String family = familyOf(name);
+            if (!family.equals(lastFamily)) {
+                sb.append("# HELP ").append(family).append(' ').append(e.help).append('\n');
+                sb.append("# TYPE ").append(family).append(' ').append(e.type).append('\n');
+                lastFamily = family;
+            }
+
+            if (e.source instanceof LatencyHistogram) {
+                LatencyHistogram h = (LatencyHistogram) e.source;
+                for (int i = 0; i < PERCENTILES.length; i++) {
+                    sb.append(name).append("{quantile=\"").append(QUANTILE_LABELS[i]).append("\"} ")
+                            .append(h.getValueAtPercentile(PERCENTILES[i])).append('\n');
+                }
+                sb.append(name).append("_sum ").append(h.getSum()).append('\n');
+                sb.append(name).append("_count ").append(h.getCount()).append('\n');
+            } else if (e.source instanceof Supplier) {
+                for (Map.Entry<String, Long> v : ((Supplier<Map<String, Long>>) e.source).get().entrySet()) {
+                    sb.append(name).append('{').append(v.getKey()).append("} ").append(v.getValue()).append('\n');
+                }
+            } else {
+                sb.append(name).append(' ').append(valueOf(e)).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String familyOf(String name) {
+        int brace = name.indexOf('{');
+        return brace < 0 ? name : name.substring(0, brace);
+    }
+
+    private static long valueOf(Entry e) {
+        if (e.source instanceof Counter) {
+            return ((Counter) e.source).get();
+        }
+        return ((LongSupplier) e.source).getAsLong();
+    }
+
+    /**
+     * Serves scrape() at SCRAPE_PATH on its own daemon thread
+     * @param port HTTP port
+     * @throws IOException if the port cannot be bound
+     */
+    public void startHttp(int port) throws IOException {
+        this.httpServer = HttpServer.create(new InetSocketAddress(port), 0);
+        this.httpServer.createContext(SCRAPE_PATH, exchange -> {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        this.httpServer.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "metrics-http");
+            t.setDaemon(true);
+            return t;
+        }));
+        this.httpServer.start();
+        Log.info("METRICS", "Serving http://0.0.0.0:" + port + SCRAPE_PATH);
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server under OBJECT_NAME
+     */
+    public void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), new ObjectName(OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException e) {
+            //Another broker in this JVM got there first, e.g. in benchmarks
+            Log.warn("METRICS", OBJECT_NAME + " already registered");
+        } catch (JMException e) {
+            Log.error("METRICS", "Could not register " + OBJECT_NAME, e);
+        }
+    }
+
+    /**
+     * Read only view of the metrics as JMX attributes. A histogram
+     * becomes name_count, name_max and one attribute per quantile.
+     * Attribute names are the metric names with labels flattened,
+     * e.g. pubsub_commands_total_type_publish.
+     */
+    private class MetricsMBean implements DynamicMBean {
+
+        private Map<String, Long> snapshot() {
+            Map<String, Long> values = new ConcurrentSkipListMap<>();
+            for (Map.Entry<String, Entry> me : entries.entrySet()) {
+                Entry e = me.getValue();
+                String attribute = attributeName(me.getKey());
+                if (e.source instanceof LatencyHistogram) {
+                    LatencyHistogram h = (LatencyHistogram) e.source;
+                    values.put(attribute + "_count", h.getCount());
+                    values.put(attribute + "_max", h.getMax());
+                    for (int i = 0; i < PERCENTILES.length; i++) {
+                        values.put(attribute + PERCENTILE_SUFFIXES[i], h.getValueAtPercentile(PERCENTILES[i]));
+                    }
+                } else if (!(e.source instanceof Supplier)) {
+                    values.put(attribute, valueOf(e));
+                }
+            }
+            return values;
+        }
+
+        private String attributeName(String name) {
+            return name.replaceAll("[{}\"]", "").replaceAll("[^A-Za-z0-9_]", "_");
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Long value = snapshot().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Long> values = snapshot();
+            AttributeList list = new AttributeList();
+            for (String a : attributes) {
+                if (values.containsKey(a)) {
+                    list.add(new Attribute(a, values.get(a)));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Broker metrics are read only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(actionName);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (String name : snapshot().keySet()) {
+                attributes.add(new MBeanAttributeInfo(name, "long", name, true, false, false));
+            }
+            return new MBeanInfo(Metrics.class.getName(), "Publish/subscribe broker metrics",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[0], null);
+        }
+    }
+}
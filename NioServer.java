@@ -0,0 +1,770 @@
+package edu.rit.cs.pubsub;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking TCP Server built on a java.nio Selector.
+ * The listen thread accepts connections and hands them round-robin to a
+ * small fixed set of EventLoop threads, each owning its own Selector.
+ * Reads and writes never block; every connection buffers its pending
+ * output in a bounded OutboundQueue.
+ *
+ * Frames are encoded and decoded with WireProtocol directly on ByteBuffers.
+ *
+ * Event loops only move bytes. Decoded commands run on worker threads,
+ * since a command may wait on user locks or on disk (offline store,
+ * state log, topic history) and would stall every connection of its loop.
+ * A connection's commands still run one at a time and in order; replies
+ * go through the outbound queue, and the loop writes them.
+ */
+public class NioServer implements Transport {
+    private ServerSocketChannel listenChannel;
+    private EventLoop[] eventLoops;
+    private ConnectionRegistry<NioConnection> connections;
+    private int queueCapacity;
+    private OutboundQueue.OverflowPolicy overflowPolicy;
+    private OutboundQueue.Stats outboundStats;
+    private ExecutorService workers;
+
+    /**
+     * NioServer constructor
+     * @param config - Make a new server accepting connections on config's port.
+     * @param eventLoopCount - number of selector threads
+     */
+    public NioServer(BrokerConfig config, int eventLoopCount) {
+        int port = config.getPort();
+
+        //Try to bind to port until successful (only halts on success), same as Server
+        while (listenChannel == null) {
+            try {
+                this.listenChannel = ServerSocketChannel.open();
+                this.listenChannel.bind(new InetSocketAddress(port));
+            } catch (IOException e) {
+                closeQuietly(this.listenChannel);
+                this.listenChannel = null;
+            }
+        }
+
+        this.connections = new ConnectionRegistry<>();
+        this.eventLoops = new EventLoop[Math.max(1, eventLoopCount)];
+        this.queueCapacity = config.getQueueCapacity();
+        this.overflowPolicy = config.getOverflowPolicy();
+        this.outboundStats = new OutboundQueue.Stats();
+        this.workers = Server.newHandlerExecutor(config.getThreadMode());
+    }
+
+    /**
+     * Accepts clients (blocking) and assigns each to an event loop.
+     * @param eventManager the EventManager commands are passed to
+     */
+    @Override
+    public void listen(EventManager eventManager) {
+        this.connections.registerMetrics(eventManager.getMetrics(), this.outboundStats);
+        this.connections.setOnRemove(eventManager::sessionClosed);
+        for (int i = 0; i < this.eventLoops.length; i++) {
+            try {
+                this.eventLoops[i] = new EventLoop(this, eventManager, this.workers, i);
+            } catch (IOException e) {
+                Log.error("NIOSERVER", "Could not open selector", e);
+                System.exit(1);
+            }
+            Thread loopThread = new Thread(this.eventLoops[i], "nio-event-loop-" + i);
+            loopThread.setDaemon(true);
+            loopThread.start();
+        }
+
+        int next = 0;
+        while (true) {
+            try {
+                SocketChannel channel = this.listenChannel.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+
+                EventLoop loop = this.eventLoops[next];
+                next = (next + 1) % this.eventLoops.length;
+
+                OutboundQueue outbound = new OutboundQueue(this.queueCapacity, this.overflowPolicy, this.outboundStats);
+                NioConnection connection = new NioConnection(channel, this.connections.newSessionId(), loop, outbound);
+                this.connections.add(connection);
+                loop.register(connection);
+            } catch (IOException e) {
+                Log.error("NIOSERVER", "Incoming Connection Problem", e);
+                System.exit(1);
+            }
+        }
+    }
+
+    @Override
+    public boolean isSessionOnline(String sessionId) {
+        return this.connections.isOnline(sessionId);
+    }
+
+    @Override
+    public void writeToSessions(Command message, List<String> sessionIds) {
+        SharedFrame frame = share(message);
+        try {
+            writeToSessions(frame, sessionIds);
+        } finally {
+            frame.release();
+        }
+    }
+
+    /**
+     * Pooled direct frames, channels write them without a copy
+     * @param message Command to encode
+     * @return SharedFrame
+     */
+    @Override
+    public SharedFrame share(Command message) {
+        return SharedFrame.encode(message, true);
+    }
+
+    @Override
+    public void writeToSessions(SharedFrame frame, List<String> sessionIds) {
+        for (String sessionId : sessionIds) {
+            NioConnection c = this.connections.forSession(sessionId);
+            if (c != null && c.isOpen()) {
+                frame.writeTo(c);
+            }
+        }
+    }
+
+    @Override
+    public void writeToSession(Command message, String sessionId) {
+        NioConnection c = this.connections.forSession(sessionId);
+        if (c != null && c.isOpen()) {
+            c.writeToClient(message);
+        }
+    }
+
+    @Override
+    public void writeToAllClients(Command message) {
+        SharedFrame frame = share(message);
+        try {
+            for (NioConnection c : this.connections.all()) {
+                if (c.isOpen()) {
+                    frame.writeTo(c);
+                }
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    @Override
+    public OutboundQueue.Stats getOutboundStats() {
+        return this.outboundStats;
+    }
+
+    /**
+     * Called by an event loop once a connection has been closed
+     * @param connection closed connection
+     */
+    void removeConnection(NioConnection connection) {
+        this.connections.remove(connection);
+    }
+
+    @Override
+    public boolean shutdownServer() {
+        try {
+            Log.info("NIOSERVER", "Killing Server...");
+            this.listenChannel.close();
+            for (EventLoop loop : this.eventLoops) {
+                if (loop != null) {
+                    loop.shutdown();
+                }
+            }
+            this.workers.shutdown();
+            Log.info("NIOSERVER", "Killed");
+            return true;
+        } catch (IOException e) {
+            Log.warn("NIOSERVER", "Connection Close Failure:" + e.getMessage());
+            return false;
+        }
+    }
+
+    static void closeQuietly(Closeable c) {
+        if (c == null) {
+            return;
+        }
+        try {
+            c.close();
+        } catch (IOException e) {
+            //Nothing to do, already closing
+        }
+    }
+}
+
+/**
+ * A single selector thread. Owns the read and write side of every
+ * connection registered to it; other threads only queue work for it.
+ */
+class EventLoop implements Runnable {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    //A connection stops being read with this many commands waiting to run, and resumes at half
+    private static final int MAX_PENDING_COMMANDS = 1024;
+
+    private NioServer server;
+    private EventManager currentEventManager;
+    private ExecutorService workers;
+    private Selector selector;
+    private ConcurrentLinkedQueue<NioConnection> pendingRegistrations;
+    private ConcurrentLinkedQueue<NioConnection> pendingFlushes;
+    private ConcurrentLinkedQueue<NioConnection> pendingResumes;
+    private ByteBuffer readBuffer;
+    private Thread loopThread;
+    private volatile boolean running;
+
+    public EventLoop(NioServer server, EventManager eventManager, ExecutorService workers, int index) throws IOException {
+        this.server = server;
+        this.currentEventManager = eventManager;
+        this.workers = workers;
+        this.selector = Selector.open();
+        this.pendingRegistrations = new ConcurrentLinkedQueue<>();
+        this.pendingFlushes = new ConcurrentLinkedQueue<>();
+        this.pendingResumes = new ConcurrentLinkedQueue<>();
+        this.readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        this.running = true;
+    }
+
+    /**
+     * Hands a freshly accepted connection to this loop
+     * @param connection connection to register
+     */
+    public void register(NioConnection connection) {
+        this.pendingRegistrations.add(connection);
+        this.selector.wakeup();
+    }
+
+    /**
+     * Asks the loop to write out a connection's pending output.
+     * Safe to call from any thread.
+     * @param connection connection with queued output
+     */
+    public void requestFlush(NioConnection connection) {
+        if (Thread.currentThread() == this.loopThread) {
+            flush(connection);
+            return;
+        }
+        this.pendingFlushes.add(connection);
+        this.selector.wakeup();
+    }
+
+    /**
+     * Asks the loop to read a paused connection again. Safe to call from any thread.
+     * @param connection connection whose commands have caught up
+     */
+    private void requestResume(NioConnection connection) {
+        this.pendingResumes.add(connection);
+        this.selector.wakeup();
+    }
+
+    public void shutdown() {
+        this.running = false;
+        this.selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        this.loopThread = Thread.currentThread();
+        while (this.running) {
+            try {
+                this.selector.select();
+            } catch (IOException e) {
+                Log.error("EVENTLOOP", "Select failed", e);
+                continue;
+            }
+
+            processRegistrations();
+            processFlushes();
+            processResumes();
+
+            Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                NioConnection connection = (NioConnection) key.attachment();
+
+                if (!key.isValid()) {
+                    close(connection);
+                    continue;
+                }
+                if (key.isReadable()) {
+                    read(connection);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    flush(connection);
+                }
+            }
+        }
+
+        for (SelectionKey key : this.selector.keys()) {
+            close((NioConnection) key.attachment());
+        }
+        NioServer.closeQuietly(this.selector);
+    }
+
+    private void processRegistrations() {
+        NioConnection connection;
+        while ((connection = this.pendingRegistrations.poll()) != null) {
+            try {
+                SelectionKey key = connection.getChannel().register(this.selector, SelectionKey.OP_READ, connection);
+                connection.setKey(key);
+                NioConnection registered = connection;
+                Log.debug("EVENTLOOP", () -> "ip = " + registered.getClientIP() + " session = " + registered.getSessionId());
+            } catch (ClosedChannelException e) {
+                close(connection);
+            }
+        }
+    }
+
+    private void processFlushes() {
+        NioConnection connection;
+        while ((connection = this.pendingFlushes.poll()) != null) {
+            flush(connection);
+        }
+    }
+
+    private void processResumes() {
+        NioConnection connection;
+        while ((connection = this.pendingResumes.poll()) != null) {
+            SelectionKey key = connection.getKey();
+            if (!connection.isReadPaused() || key == null || !key.isValid()) {
+                continue;
+            }
+            connection.setReadPaused(false);
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            //Frames already buffered get no read event of their own
+            this.readBuffer.clear().flip();
+            dispatch(connection, this.readBuffer);
+        }
+    }
+
+    /**
+     * Reads whatever is available and dispatches every complete command
+     * @param connection readable connection
+     */
+    private void read(NioConnection connection) {
+        int bytesRead;
+        try {
+            this.readBuffer.clear();
+            bytesRead = connection.getChannel().read(this.readBuffer);
+        } catch (IOException e) {
+            close(connection);
+            return;
+        }
+        if (bytesRead < 0) {
+            close(connection);
+            return;
+        }
+        connection.addBytesIn(bytesRead);
+        this.readBuffer.flip();
+        dispatch(connection, this.readBuffer);
+    }
+
+    /**
+     * Decodes every complete command and queues it for the connection's
+     * worker. Stops reading the connection once too many are waiting.
+     * @param connection connection the bytes came from
+     * @param bytes bytes just read, may be empty
+     */
+    private void dispatch(NioConnection connection, ByteBuffer bytes) {
+        try {
+            Command command;
+            while ((command = connection.decode(bytes)) != null) {
+                if (connection.queueCommand(command)) {
+                    this.workers.execute(() -> runCommands(connection));
+                }
+                if (command.getOpcode() == Command.EXIT) {
+                    break;
+                }
+                if (connection.pendingCommandCount() >= MAX_PENDING_COMMANDS) {
+                    pauseReading(connection);
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            Log.warn("EVENTLOOP", "Bad input from " + connection.getClientIP() + ": " + e.getMessage());
+            close(connection);
+        }
+    }
+
+    private void pauseReading(NioConnection connection) {
+        SelectionKey key = connection.getKey();
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        connection.setReadPaused(true);
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        //The worker may have caught up before the flag was set and will not ask
+        if (connection.pendingCommandCount() <= MAX_PENDING_COMMANDS / 2) {
+            requestResume(connection);
+        }
+    }
+
+    /**
+     * Runs a connection's queued commands in order, on a worker thread.
+     * Only one runs per connection at a time.
+     * @param connection connection with queued commands
+     */
+    private void runCommands(NioConnection connection) {
+        do {
+            Command command;
+            while ((command = connection.pollCommand()) != null) {
+                try {
+                    execute(connection, command);
+                } catch (RuntimeException e) {
+                    Log.error("EVENTLOOP", "Command " + command + " from " + connection.getClientIP() + " failed", e);
+                    connection.writeToClient(Command.reply(Server.COMMAND_FAILED, command));
+                }
+                if (connection.commandDone() <= MAX_PENDING_COMMANDS / 2 && connection.isReadPaused()) {
+                    requestResume(connection);
+                }
+            }
+        } while (connection.finishCommands());
+    }
+
+    private void execute(NioConnection connection, Command command) {
+        String response = this.currentEventManager.passCommand(connection, command);
+        if (response != null) {
+            connection.writeToClient(Command.reply(response, command));
+        }
+        if (command.getOpcode() == Command.EXIT) {
+            //Flushed again in case the reply went out before the flag was set
+            connection.closeAfterFlush();
+            requestFlush(connection);
+        }
+    }
+
+    /**
+     * Writes as much pending output as the socket accepts without blocking.
+     * Leaves OP_WRITE registered while output remains.
+     * @param connection connection to flush
+     */
+    private void flush(NioConnection connection) {
+        SelectionKey key = connection.getKey();
+        if (key == null || !key.isValid()) {
+            connection.dropWritingFrames();
+            //Killed off the loop, e.g. a slow consumer: forget it here, kill() asks for this flush
+            if (!connection.getChannel().isOpen()) {
+                this.server.removeConnection(connection);
+            }
+            return;
+        }
+        try {
+            boolean drained = connection.writePending();
+            int readOps = connection.isReadPaused() ? 0 : SelectionKey.OP_READ;
+            if (drained) {
+                if (connection.isClosingAfterFlush()) {
+                    close(connection);
+                    return;
+                }
+                key.interestOps(readOps);
+            } else {
+                key.interestOps(readOps | SelectionKey.OP_WRITE);
+            }
+        } catch (IOException e) {
+            close(connection);
+        }
+    }
+
+    private void close(NioConnection connection) {
+        if (connection == null) {
+            return;
+        }
+        connection.kill();
+        connection.dropWritingFrames();
+        this.server.removeConnection(connection);
+    }
+}
+
+/**
+ * One client connection on an EventLoop.
+ * Holds the partially read input and the pending output buffers.
+ */
+class NioConnection implements Connection {
+    private SocketChannel channel;
+    private EventLoop eventLoop;
+    private SelectionKey key;
+    private String clientIP;
+    private String sessionId;
+
+    //Bytes of a frame not yet complete
+    private ByteBuffer inbound;
+
+    //Decoded commands waiting for a worker, oldest first
+    private ConcurrentLinkedQueue<Command> pendingCommands;
+    private AtomicInteger pendingCommandCount;
+    //Set while a worker runs this connection's commands
+    private AtomicBoolean runningCommands;
+    //Only the event loop thread sets this
+    private volatile boolean readPaused;
+
+    //Output waiting for the socket to accept it
+    private OutboundQueue outbound;
+    //Most frames handed to one gathering write
+    private static final int GATHER_LIMIT = 64;
+
+    //Frames taken off the queue but not yet fully written, oldest first
+    private ArrayDeque<OutboundQueue.Frame> writing;
+    private ByteBuffer[] gather;
+    private volatile boolean closeAfterFlush;
+    //Only the event loop thread adds to these
+    private volatile long bytesIn;
+    private volatile long bytesOut;
+    //Set once when the client asks, only the event loop uses it
+    private volatile FrameCompressor compressor;
+
+    public NioConnection(SocketChannel channel, String sessionId, EventLoop eventLoop, OutboundQueue outbound) throws IOException {
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+        this.clientIP = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().toString().replace("/", "");
+        this.sessionId = sessionId;
+        this.inbound = ByteBuffer.allocate(1024);
+        this.pendingCommands = new ConcurrentLinkedQueue<>();
+        this.pendingCommandCount = new AtomicInteger();
+        this.runningCommands = new AtomicBoolean();
+        this.outbound = outbound;
+        this.writing = new ArrayDeque<>();
+        this.gather = new ByteBuffer[GATHER_LIMIT];
+    }
+
+    @Override
+    public String getClientIP() {
+        return this.clientIP;
+    }
+
+    @Override
+    public String getSessionId() {
+        return this.sessionId;
+    }
+
+    public SocketChannel getChannel() {
+        return this.channel;
+    }
+
+    public SelectionKey getKey() {
+        return this.key;
+    }
+
+    public void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return this.channel.isOpen();
+    }
+
+    @Override
+    public OutboundQueue getOutbound() {
+        return this.outbound;
+    }
+
+    @Override
+    public long getBytesIn() {
+        return this.bytesIn;
+    }
+
+    @Override
+    public long getBytesOut() {
+        return this.bytesOut;
+    }
+
+    @Override
+    public synchronized boolean enableCompression(int minBytes) {
+        if (this.compressor != null) {
+            return false;
+        }
+        this.compressor = new FrameCompressor(minBytes);
+        return true;
+    }
+
+    void addBytesIn(int n) {
+        this.bytesIn += n;
+    }
+
+    /**
+     * Queues a frame and asks the event loop to send it.
+     * Never blocks on the socket. If the queue is full and the policy
+     * is DISCONNECT the slow client is disconnected.
+     */
+    @Override
+    public void writeToClient(ByteBuffer frame, OutboundQueue.FrameListener listener, String conflationKey) {
+        if (!this.outbound.offer(frame, listener, conflationKey)) {
+            Log.warn("EVENTLOOP", this.clientIP + " too slow, disconnecting");
+            kill();
+            return;
+        }
+        this.eventLoop.requestFlush(this);
+    }
+
+    /**
+     * Writes pending frames until drained or the socket is full.
+     * Up to GATHER_LIMIT frames go out in one gathering write.
+     * Only called on the event loop thread.
+     * @return true if nothing is left to write
+     * @throws IOException on a dead socket
+     */
+    boolean writePending() throws IOException {
+        while (true) {
+            int partlyWritten = this.writing.size();
+            this.outbound.drainTo(this.writing, GATHER_LIMIT - this.writing.size());
+            if (this.writing.isEmpty()) {
+                return true;
+            }
+            FrameCompressor compressing = this.compressor;
+            if (compressing != null) {
+                //Compressed in write order, frames carried over from the last round already are
+                int i = 0;
+                for (OutboundQueue.Frame f : this.writing) {
+                    if (i++ >= partlyWritten) {
+                        f.setBuffer(compressing.compress(f.getBuffer()));
+                    }
+                }
+            }
+
+            int n = 0;
+            for (OutboundQueue.Frame f : this.writing) {
+                this.gather[n++] = f.getBuffer();
+            }
+            try {
+                this.bytesOut += this.channel.write(this.gather, 0, n);
+            } finally {
+                Arrays.fill(this.gather, 0, n, null);
+            }
+
+            while (!this.writing.isEmpty() && !this.writing.peekFirst().getBuffer().hasRemaining()) {
+                this.writing.pollFirst().written();
+            }
+            if (!this.writing.isEmpty()) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Queues a decoded command. Only called on the event loop thread.
+     * @param command Command to run
+     * @return true if no worker is running this connection's commands and one must be started
+     */
+    boolean queueCommand(Command command) {
+        this.pendingCommands.add(command);
+        this.pendingCommandCount.incrementAndGet();
+        return this.runningCommands.compareAndSet(false, true);
+    }
+
+    /**
+     * @return the next command to run, null if none is queued
+     */
+    Command pollCommand() {
+        return this.pendingCommands.poll();
+    }
+
+    /**
+     * A polled command has run
+     * @return commands still waiting
+     */
+    int commandDone() {
+        return this.pendingCommandCount.decrementAndGet();
+    }
+
+    int pendingCommandCount() {
+        return this.pendingCommandCount.get();
+    }
+
+    /**
+     * Called by the worker once the queue looked empty
+     * @return true if a command was queued meanwhile and this worker must run it
+     */
+    boolean finishCommands() {
+        this.runningCommands.set(false);
+        return !this.pendingCommands.isEmpty() && this.runningCommands.compareAndSet(false, true);
+    }
+
+    boolean isReadPaused() {
+        return this.readPaused;
+    }
+
+    void setReadPaused(boolean readPaused) {
+        this.readPaused = readPaused;
+    }
+
+    void closeAfterFlush() {
+        this.closeAfterFlush = true;
+    }
+
+    boolean isClosingAfterFlush() {
+        return this.closeAfterFlush;
+    }
+
+    /**
+     * Appends newly read bytes and decodes the next complete frame
+     * @param readBuffer bytes just read from the channel
+     * @return Command, or null if more input is needed
+     * @throws IOException on a malformed frame
+     */
+    Command decode(ByteBuffer readBuffer) throws IOException {
+        if (readBuffer.hasRemaining()) {
+            if (this.inbound.remaining() < readBuffer.remaining()) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(this.inbound.capacity() * 2,
+                        this.inbound.position() + readBuffer.remaining()));
+                this.inbound.flip();
+                bigger.put(this.inbound);
+                this.inbound = bigger;
+            }
+            this.inbound.put(readBuffer);
+        }
+
+        this.inbound.flip();
+        try {
+            return WireProtocol.decode(this.inbound);
+        } finally {
+            this.inbound.compact();
+        }
+    }
+
+    /**
+     * Drops frames taken off the queue but not written. Only called on the event loop thread.
+     */
+    void dropWritingFrames() {
+        OutboundQueue.Frame f;
+        while ((f = this.writing.pollFirst()) != null) {
+            f.dropped();
+        }
+        FrameCompressor compressing = this.compressor;
+        if (compressing != null) {
+            compressing.end();
+        }
+    }
+
+    /**
+     * Closes the connection. Safe from any thread; the event loop
+     * cleans up the frames it was writing.
+     * @return true for kill success, false for fail
+     */
+    @Override
+    public boolean kill() {
+        this.outbound.discard();
+        if (this.key != null) {
+            this.key.cancel();
+        }
+        try {
+            this.channel.close();
+            return true;
+        } catch (IOException e) {
+            Log.warn("EVENTLOOP", "Connection Close Failure:" + e.getMessage());
+            return false;
+        } finally {
+            this.eventLoop.requestFlush(this);
+        }
+    }
+}
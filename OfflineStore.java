@@ -0,0 +1,823 @@
+package edu.rit.cs.pubsub;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.ObjLongConsumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Append-only, segmented on-disk log of events cached for offline users.
+ *
+ * Every record is addressed by its global byte offset (segment base + position).
+ * Each user has a cursor: the offset of the last record delivered to them.
+ * Only the offsets of a user's undelivered records are kept in memory, the
+ * events themselves stay on disk until replayed. Cursors are journaled so
+ * both the log and the delivery position survive a restart.
+ *
+ * Whole segments are deleted once the log exceeds the retention size or
+ * a segment is older than the retention age.
+ *
+ * Events of conflated topics are stored with their conflation key. A
+ * user's pending record is superseded by a newer one with the same key
+ * and skipped on read, so a user catching up gets only the newest value
+ * per key, and the pending offsets of a user stay within about twice the
+ * keys plus the other events waiting for them.
+ *
+ * Contents of at least the compression threshold are stored deflated.
+ * Each record is compressed on its own since records are read back one
+ * at a time at arbitrary offsets; a compressed connection replaying them
+ * gets the cross-record saving from its own streaming window.
+ */
+public class OfflineStore implements Closeable {
+
+    public static final long DEFAULT_SEGMENT_BYTES = 64L * 1024 * 1024;
+    public static final int DEFAULT_COMPRESS_MIN_BYTES = 512;
+
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CURSOR_JOURNAL = "cursors.journal";
+    private static final String CURSOR_JOURNAL_COMPACTING = "cursors.journal.tmp";
+
+    /**
+     * One stored event and where it lives in the log
+     */
+    public static class Record {
+        private final long offset;
+        private final long appendedAt;
+        private final Event event;
+
+        Record(long offset, long appendedAt, Event event) {
+            this.offset = offset;
+            this.appendedAt = appendedAt;
+            this.event = event;
+        }
+
+        public long getOffset() {
+            return this.offset;
+        }
+
+        public long getAppendedAt() {
+            return this.appendedAt;
+        }
+
+        public Event getEvent() {
+            return this.event;
+        }
+    }
+
+    /**
+     * One segment file, named by its base offset
+     */
+    private static class Segment {
+        private final long baseOffset;
+        private final Path path;
+        private final FileChannel channel;
+
+        Segment(long baseOffset, Path path) throws IOException {
+            this.baseOffset = baseOffset;
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        long size() throws IOException {
+            return this.channel.size();
+        }
+
+        long endOffset() throws IOException {
+            return this.baseOffset + size();
+        }
+    }
+
+    /**
+     * Growable ring of offsets, cheaper than a List of Longs
+     */
+    private static class OffsetQueue {
+        private long[] offsets = new long[16];
+        private int head;
+        private int size;
+        // Newest offset per conflation key, and offsets still queued that a newer one replaced
+        private final HashMap<String, Long> latestGivenKey = new HashMap<>();
+        private final HashSet<Long> superseded = new HashSet<>();
+
+        /**
+         * Queues an offset, superseding the queued one with the same key
+         * @param offset record offset
+         * @param conflationKey key of the record, null if it has none
+         */
+        void add(long offset, String conflationKey) {
+            if (conflationKey != null) {
+                Long previous = this.latestGivenKey.put(conflationKey, offset);
+                //A previous offset before the head was delivered already
+                if (previous != null && this.size > 0 && previous >= get(0)) {
+                    this.superseded.add(previous);
+                }
+            }
+            add(offset);
+            if (this.superseded.size() > 16 && this.superseded.size() > this.size / 2) {
+                compact();
+            }
+        }
+
+        /**
+         * @return true if a newer record with the same key was queued after it
+         */
+        boolean isSuperseded(long offset) {
+            return this.superseded.contains(offset);
+        }
+
+        /**
+         * @return queued offsets not superseded
+         */
+        int live() {
+            return this.size - this.superseded.size();
+        }
+
+        /**
+         * Drops superseded offsets from the ring
+         */
+        private void compact() {
+            long[] kept = new long[this.offsets.length];
+            int n = 0;
+            for (int i = 0; i < this.size; i++) {
+                long offset = get(i);
+                if (!this.superseded.contains(offset)) {
+                    kept[n++] = offset;
+                }
+            }
+            this.offsets = kept;
+            this.head = 0;
+            this.size = n;
+            this.superseded.clear();
+        }
+
+        void add(long offset) {
+            if (this.size == this.offsets.length) {
+                long[] bigger = new long[this.offsets.length * 2];
+                for (int i = 0; i < this.size; i++) {
+                    bigger[i] = get(i);
+                }
+                this.offsets = bigger;
+                this.head = 0;
+            }
+            this.offsets[(this.head + this.size) % this.offsets.length] = offset;
+            this.size++;
+        }
+
+        long get(int i) {
+            return this.offsets[(this.head + i) % this.offsets.length];
+        }
+
+        /**
+         * Offsets are appended in increasing order, so binary search
+         * @return index of the first offset greater than offset
+         */
+        int indexAfter(long offset) {
+            int low = 0;
+            int high = this.size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (get(mid) <= offset) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        void removeFirst() {
+            this.superseded.remove(get(0));
+            this.head = (this.head + 1) % this.offsets.length;
+            this.size--;
+            if (this.size == 0) {
+                //Nothing left to supersede, keys are not kept for delivered records
+                this.latestGivenKey.clear();
+            }
+        }
+
+        int size() {
+            return this.size;
+        }
+    }
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final long retentionBytes;
+    private final long retentionMillis;
+    // Smallest content stored deflated, FrameCompressor.OFF for none
+    private final int compressMinBytes;
+
+    // Segments by base offset, the last one is appended to
+    private final TreeMap<Long, Segment> segments;
+    private final ReentrantLock appendLock;
+
+    // Undelivered offsets per user, and the last delivered offset per user
+    private final ConcurrentHashMap<String, OffsetQueue> pendingGivenUsername;
+    private final ConcurrentHashMap<String, Long> cursorGivenUsername;
+    private DataOutputStream cursorJournal;
+    private final ReentrantLock cursorLock;
+
+    private final ScheduledExecutorService retentionTimer;
+
+    // Told of every cursor advance, e.g. to replicate it
+    private volatile ObjLongConsumer<String> commitListener;
+
+    /**
+     * Opens (or creates) the store and rebuilds the pending offsets from disk
+     * @param directory where segments and cursors live
+     * @param segmentBytes size at which a new segment is started
+     * @param retentionBytes total log size to keep
+     * @param retentionMillis age of segments to keep
+     * @param compressMinBytes smallest content to deflate, FrameCompressor.OFF for none
+     * @throws IOException
+     */
+    public OfflineStore(File directory, long segmentBytes, long retentionBytes, long retentionMillis,
+                        int compressMinBytes) throws IOException {
+        this.directory = directory.toPath();
+        this.segmentBytes = segmentBytes;
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+        this.compressMinBytes = compressMinBytes;
+        this.segments = new TreeMap<>();
+        this.appendLock = new ReentrantLock();
+        this.pendingGivenUsername = new ConcurrentHashMap<>();
+        this.cursorGivenUsername = new ConcurrentHashMap<>();
+        this.cursorLock = new ReentrantLock();
+
+        Files.createDirectories(this.directory);
+        loadCursors();
+        loadSegments();
+        enforceRetention();
+
+        this.retentionTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "offline-store-retention");
+            t.setDaemon(true);
+            return t;
+        });
+        this.retentionTimer.scheduleAtFixedRate(() -> {
+            try {
+                enforceRetention();
+            } catch (IOException e) {
+                Log.error("OFFLINESTORE", "Retention failed", e);
+            }
+        }, 1, 1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Appends an event for an offline user
+     * @param username user the event is cached for
+     * @param event Event
+     * @return offset of the record
+     * @throws IOException
+     */
+    public long append(String username, Event event) throws IOException {
+        String conflationKey = event.getConflationKey();
+        ByteBuffer record = encode(username, System.currentTimeMillis(), event, conflationKey, this.compressMinBytes);
+
+        this.appendLock.lock();
+        try {
+            Segment active = this.segments.lastEntry().getValue();
+            if (active.size() + record.remaining() > this.segmentBytes && active.size() > 0) {
+                active = roll(active);
+            }
+
+            long offset = active.endOffset();
+            long position = active.size();
+            while (record.hasRemaining()) {
+                position += active.channel.write(record, position);
+            }
+
+            OffsetQueue pending = this.pendingGivenUsername.computeIfAbsent(username, u -> new OffsetQueue());
+            synchronized (pending) {
+                pending.add(offset, conflationKey);
+            }
+            return offset;
+        } finally {
+            this.appendLock.unlock();
+        }
+    }
+
+    /**
+     * Number of events waiting for a user, superseded ones not counted
+     * @param username user
+     * @return count
+     */
+    public int pendingCount(String username) {
+        OffsetQueue pending = this.pendingGivenUsername.get(username);
+        if (pending == null) {
+            return 0;
+        }
+        synchronized (pending) {
+            return pending.live();
+        }
+    }
+
+    /**
+     * Number of events waiting for all users
+     * @return count
+     */
+    public long pendingTotal() {
+        long total = 0;
+        for (OffsetQueue pending : this.pendingGivenUsername.values()) {
+            synchronized (pending) {
+                total += pending.live();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @return bytes in all segments on disk
+     */
+    public long sizeBytes() {
+        this.appendLock.lock();
+        try {
+            long total = 0;
+            for (Segment s : this.segments.values()) {
+                total += s.size();
+            }
+            return total;
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            this.appendLock.unlock();
+        }
+    }
+
+    /**
+     * Reads the next undelivered events of a user without advancing the cursor.
+     * Records lost to retention or superseded by a newer value are skipped.
+     * @param username user
+     * @param afterOffset only records after this offset (e.g. the last one already sent)
+     * @param max most records to return
+     * @param topicResolver maps stored topic names back to Topics
+     * @return records in offset order, empty when caught up
+     * @throws IOException
+     */
+    public List<Record> read(String username, long afterOffset, int max, Function<String, Topic> topicResolver) throws IOException {
+        List<Record> records = new ArrayList<>();
+        OffsetQueue pending = this.pendingGivenUsername.get(username);
+        if (pending == null) {
+            return records;
+        }
+
+        long oldestRetained;
+        this.appendLock.lock();
+        try {
+            oldestRetained = this.segments.firstKey();
+        } finally {
+            this.appendLock.unlock();
+        }
+
+        long[] offsets;
+        synchronized (pending) {
+            //Offsets in segments removed by retention are gone for good
+            while (pending.size() > 0 && pending.get(0) < oldestRetained) {
+                pending.removeFirst();
+            }
+
+            int first = pending.indexAfter(afterOffset);
+            offsets = new long[Math.min(max, pending.size() - first)];
+            int n = 0;
+            for (int i = first; i < pending.size() && n < offsets.length; i++) {
+                long offset = pending.get(i);
+                if (!pending.isSuperseded(offset)) {
+                    offsets[n++] = offset;
+                }
+            }
+            offsets = Arrays.copyOf(offsets, n);
+        }
+
+        for (long offset : offsets) {
+            Record r = readRecord(offset, topicResolver);
+            if (r != null) {
+                records.add(r);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Marks everything up to and including offset as delivered to a user
+     * @param username user
+     * @param offset offset of the last delivered record
+     * @throws IOException
+     */
+    public void commit(String username, long offset) throws IOException {
+        OffsetQueue pending = this.pendingGivenUsername.get(username);
+        if (pending != null) {
+            synchronized (pending) {
+                while (pending.size() > 0 && pending.get(0) <= offset) {
+                    pending.removeFirst();
+                }
+            }
+        }
+
+        this.cursorLock.lock();
+        try {
+            Long previous = this.cursorGivenUsername.get(username);
+            if (previous != null && previous >= offset) {
+                return;
+            }
+            this.cursorGivenUsername.put(username, offset);
+            this.cursorJournal.writeUTF(username);
+            this.cursorJournal.writeLong(offset);
+            this.cursorJournal.flush();
+            ObjLongConsumer<String> listener = this.commitListener;
+            if (listener != null) {
+                listener.accept(username, offset);
+            }
+        } finally {
+            this.cursorLock.unlock();
+        }
+    }
+
+    /**
+     * @param listener called with (username, offset) after each cursor
+     * advance, in order, with the cursor lock held
+     */
+    public void setCommitListener(ObjLongConsumer<String> listener) {
+        this.commitListener = listener;
+    }
+
+    /**
+     * @return users with undelivered events
+     */
+    public Set<String> pendingUsers() {
+        Set<String> users = new HashSet<>();
+        for (Map.Entry<String, OffsetQueue> e : this.pendingGivenUsername.entrySet()) {
+            synchronized (e.getValue()) {
+                if (e.getValue().live() > 0) {
+                    users.add(e.getKey());
+                }
+            }
+        }
+        return users;
+    }
+
+    /**
+     * Deletes every record and cursor, e.g. before a standby copies its
+     * leader's cache. Offsets start again from 0.
+     * @throws IOException
+     */
+    public void reset() throws IOException {
+        this.appendLock.lock();
+        this.cursorLock.lock();
+        try {
+            for (Segment s : this.segments.values()) {
+                s.channel.close();
+                Files.deleteIfExists(s.path);
+            }
+            this.segments.clear();
+            this.pendingGivenUsername.clear();
+            this.cursorGivenUsername.clear();
+
+            this.cursorJournal.close();
+            this.cursorJournal = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(this.directory.resolve(CURSOR_JOURNAL))));
+            this.segments.put(0L, new Segment(0L, segmentPath(0L)));
+        } finally {
+            this.cursorLock.unlock();
+            this.appendLock.unlock();
+        }
+    }
+
+    /**
+     * Deletes the oldest segments beyond the size or age limits.
+     * The active segment is never deleted.
+     * @throws IOException
+     */
+    public void enforceRetention() throws IOException {
+        this.appendLock.lock();
+        try {
+            long total = 0;
+            for (Segment s : this.segments.values()) {
+                total += s.size();
+            }
+            long now = System.currentTimeMillis();
+            while (this.segments.size() > 1) {
+                Segment oldest = this.segments.firstEntry().getValue();
+                boolean tooBig = total > this.retentionBytes;
+                boolean tooOld = now - Files.getLastModifiedTime(oldest.path).toMillis() > this.retentionMillis;
+                if (!tooBig && !tooOld) {
+                    break;
+                }
+                total -= oldest.size();
+                oldest.channel.close();
+                Files.deleteIfExists(oldest.path);
+                this.segments.remove(oldest.baseOffset);
+                Log.info("OFFLINESTORE", "Retention removed segment " + oldest.path.getFileName());
+            }
+        } finally {
+            this.appendLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.retentionTimer.shutdownNow();
+        this.appendLock.lock();
+        try {
+            for (Segment s : this.segments.values()) {
+                s.channel.close();
+            }
+        } finally {
+            this.appendLock.unlock();
+        }
+        this.cursorLock.lock();
+        try {
+            this.cursorJournal.close();
+        } finally {
+            this.cursorLock.unlock();
+        }
+    }
+
+    private Segment roll(Segment active) throws IOException {
+        long base = active.endOffset();
+        Segment next = new Segment(base, segmentPath(base));
+        this.segments.put(base, next);
+        return next;
+    }
+
+    private Path segmentPath(long baseOffset) {
+        return this.directory.resolve(String.format("%020d%s", baseOffset, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Reads one record, null if its segment has been deleted
+     */
+    private Record readRecord(long offset, Function<String, Topic> topicResolver) throws IOException {
+        Segment segment;
+        this.appendLock.lock();
+        try {
+            Map.Entry<Long, Segment> entry = this.segments.floorEntry(offset);
+            if (entry == null) {
+                return null;
+            }
+            segment = entry.getValue();
+        } finally {
+            this.appendLock.unlock();
+        }
+
+        long position = offset - segment.baseOffset;
+        ByteBuffer length = ByteBuffer.allocate(4);
+        if (!readFully(segment.channel, length, position)) {
+            return null;
+        }
+        ByteBuffer body = ByteBuffer.allocate(length.getInt(0));
+        if (!readFully(segment.channel, body, position + 4)) {
+            return null;
+        }
+        body.flip();
+        return decode(offset, body, topicResolver);
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        try {
+            while (buffer.hasRemaining()) {
+                int n = channel.read(buffer, position + buffer.position());
+                if (n < 0) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (java.nio.channels.ClosedChannelException e) {
+            //Segment removed by retention while reading
+            return false;
+        }
+    }
+
+    /**
+     * Record: int body length, long appendedAt, then username, topic, title, content,
+     * then the event's topic offset, then the conflation key if there is one.
+     * A deflated content has a negated length followed by its inflated length.
+     */
+    private static ByteBuffer encode(String username, long appendedAt, Event event, String conflationKey,
+                                     int compressMinBytes) {
+        byte[][] fields = {
+                username.getBytes(StandardCharsets.UTF_8),
+                event.getTopic().getName().getBytes(StandardCharsets.UTF_8),
+                event.getTitle().getBytes(StandardCharsets.UTF_8),
+                event.getContent().getBytes(StandardCharsets.UTF_8)
+        };
+        byte[] content = fields[3];
+        byte[] deflated = null;
+        if (compressMinBytes != FrameCompressor.OFF && content.length >= compressMinBytes) {
+            deflated = deflate(content);
+            if (deflated.length + 4 >= content.length) {
+                //Not worth it, e.g. already compressed data
+                deflated = null;
+            }
+        }
+        byte[] key = (conflationKey == null) ? null : conflationKey.getBytes(StandardCharsets.UTF_8);
+        int bodyLength = 8 + 8 + (key == null ? 0 : 4 + key.length);
+        for (int i = 0; i < 3; i++) {
+            bodyLength += 4 + fields[i].length;
+        }
+        bodyLength += (deflated == null) ? 4 + content.length : 4 + 4 + deflated.length;
+        ByteBuffer buffer = ByteBuffer.allocate(4 + bodyLength);
+        buffer.putInt(bodyLength);
+        buffer.putLong(appendedAt);
+        for (int i = 0; i < 3; i++) {
+            buffer.putInt(fields[i].length);
+            buffer.put(fields[i]);
+        }
+        if (deflated == null) {
+            buffer.putInt(content.length);
+            buffer.put(content);
+        } else {
+            buffer.putInt(-deflated.length);
+            buffer.putInt(content.length);
+            buffer.put(deflated);
+        }
+        buffer.putLong(event.getOffset());
+        if (key != null) {
+            buffer.putInt(key.length);
+            buffer.put(key);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static String getString(ByteBuffer body) {
+        byte[] bytes = new byte[body.getInt()];
+        body.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] deflate(byte[] raw) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 16);
+            byte[] chunk = new byte[4096];
+            while (!deflater.finished()) {
+                out.write(chunk, 0, deflater.deflate(chunk));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Reads the content field, inflating it if it was stored deflated
+     */
+    private static String getContent(ByteBuffer body) throws IOException {
+        int length = body.getInt();
+        if (length >= 0) {
+            byte[] bytes = new byte[length];
+            body.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        byte[] raw = new byte[body.getInt()];
+        byte[] deflated = new byte[-length];
+        body.get(deflated);
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(deflated);
+            int n = 0;
+            while (n < raw.length && !inflater.finished()) {
+                int read = inflater.inflate(raw, n, raw.length - n);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += read;
+            }
+            if (n != raw.length) {
+                throw new IOException("Deflated content ends after " + n + " of " + raw.length + " bytes");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt deflated content", e);
+        } finally {
+            inflater.end();
+        }
+        return new String(raw, StandardCharsets.UTF_8);
+    }
+
+    private static Record decode(long offset, ByteBuffer body, Function<String, Topic> topicResolver) throws IOException {
+        long appendedAt = body.getLong();
+        getString(body); //username
+        String topicName = getString(body);
+        String title = getString(body);
+        String content = getContent(body);
+        //Records written before events had offsets end here
+        long eventOffset = body.remaining() >= 8 ? body.getLong() : Event.NO_OFFSET;
+
+        Topic topic = (topicResolver == null) ? null : topicResolver.apply(topicName);
+        if (topic == null) {
+            //Topic not (yet) known to this broker, keep the name for delivery
+            topic = new Topic(topicName, new ArrayList<>());
+        }
+        //Appended as the event was published, close enough to its send time
+        return new Record(offset, appendedAt, new Event(topic, title, content, appendedAt * 1000, eventOffset));
+    }
+
+    /**
+     * @param body record body positioned after the username
+     * @return its conflation key, null if it has none
+     */
+    private static String conflationKeyOf(ByteBuffer body) {
+        for (int i = 0; i < 2; i++) {
+            body.position(body.position() + 4 + body.getInt(body.position()));
+        }
+        int contentLength = body.getInt();
+        //A deflated content also has its inflated length
+        body.position(body.position() + (contentLength < 0 ? 4 - contentLength : contentLength));
+        if (body.remaining() < 8 + 4) {
+            return null;
+        }
+        body.getLong();
+        return getString(body);
+    }
+
+    /**
+     * Replays the cursor journal, then rewrites it compacted (one entry per user)
+     */
+    private void loadCursors() throws IOException {
+        Path journal = this.directory.resolve(CURSOR_JOURNAL);
+        if (Files.exists(journal)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(journal)))) {
+                while (true) {
+                    String username = in.readUTF();
+                    long offset = in.readLong();
+                    this.cursorGivenUsername.merge(username, offset, Math::max);
+                }
+            } catch (EOFException e) {
+                //End of journal, a torn last entry is ignored
+            }
+        }
+
+        Path compacting = this.directory.resolve(CURSOR_JOURNAL_COMPACTING);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(compacting)))) {
+            for (Map.Entry<String, Long> e : this.cursorGivenUsername.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeLong(e.getValue());
+            }
+        }
+        Files.move(compacting, journal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        this.cursorJournal = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(journal, StandardOpenOption.APPEND)));
+    }
+
+    /**
+     * Opens every segment and rebuilds each user's pending offsets past their cursor.
+     * A torn record at the end of the last segment is truncated away.
+     */
+    private void loadSegments() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path p : files) {
+                String name = p.getFileName().toString();
+                long base = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                this.segments.put(base, new Segment(base, p));
+            }
+        }
+        if (this.segments.isEmpty()) {
+            this.segments.put(0L, new Segment(0L, segmentPath(0L)));
+            return;
+        }
+
+        for (Segment segment : this.segments.values()) {
+            long position = 0;
+            long size = segment.size();
+            ByteBuffer length = ByteBuffer.allocate(4);
+            while (position + 4 <= size) {
+                length.clear();
+                readFully(segment.channel, length, position);
+                int bodyLength = length.getInt(0);
+                if (bodyLength < 8 || position + 4 + bodyLength > size) {
+                    break;
+                }
+                ByteBuffer body = ByteBuffer.allocate(bodyLength);
+                readFully(segment.channel, body, position + 4);
+                body.flip();
+                body.getLong();
+                String username = getString(body);
+
+                long offset = segment.baseOffset + position;
+                Long cursor = this.cursorGivenUsername.get(username);
+                if (cursor == null || offset > cursor) {
+                    this.pendingGivenUsername.computeIfAbsent(username, u -> new OffsetQueue()).add(offset, conflationKeyOf(body));
+                }
+                position += 4 + bodyLength;
+            }
+            if (position < size) {
+                Log.warn("OFFLINESTORE", "Truncating torn record in " + segment.path.getFileName());
+                segment.channel.truncate(position);
+            }
+        }
+    }
+}
@@ -0,0 +1,408 @@
+package edu.rit.cs.pubsub;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of encoded frames waiting to be written to one connection.
+ * Publishers only ever offer, so a slow subscriber fills its own queue
+ * instead of blocking the publishing thread. What happens when the queue
+ * is full is decided by the OverflowPolicy.
+ *
+ * Frames are removed before they are written, so a partially written
+ * frame is never dropped out from under the writer.
+ *
+ * A frame may carry a FrameListener which is told once whether the frame
+ * reached the socket or was dropped/discarded. Listeners are never called
+ * with the queue lock held.
+ *
+ * A frame may also carry a conflation key. A newer frame with the same key
+ * takes the place of one still queued instead of queueing behind it, so a
+ * slow subscriber of a conflated topic gets the newest value per key and
+ * its queue holds at most one frame per key.
+ */
+public class OutboundQueue {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * What to do with a new frame when the queue is full
+     */
+    public enum OverflowPolicy {
+        // Discard the oldest queued frame to make room
+        DROP_OLDEST,
+        // Discard the new frame
+        DROP_NEWEST,
+        // Refuse the frame and have the caller disconnect the slow consumer
+        DISCONNECT;
+
+        /**
+         * Parses drop-oldest, drop-newest or disconnect
+         * @param s option value
+         * @return OverflowPolicy
+         */
+        public static OverflowPolicy fromOption(String s) {
+            return valueOf(s.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    /**
+     * Told the fate of one frame
+     */
+    public interface FrameListener {
+        /**
+         * @param written true once the frame was written to the socket,
+         * false if it was dropped or the connection closed first
+         */
+        void onFrameDone(boolean written);
+    }
+
+    /**
+     * A queued frame and its optional listener
+     */
+    public static class Frame {
+        // Replaced under the queue lock while queued, fixed once removed
+        private ByteBuffer buffer;
+        private FrameListener listener;
+        private final String conflationKey;
+
+        Frame(ByteBuffer buffer, FrameListener listener, String conflationKey) {
+            this.buffer = buffer;
+            this.listener = listener;
+            this.conflationKey = conflationKey;
+        }
+
+        public ByteBuffer getBuffer() {
+            return this.buffer;
+        }
+
+        /**
+         * Swaps the bytes for another encoding of the same message, e.g.
+         * compressed. Only the writer that removed the frame, before
+         * writing any of it.
+         * @param buffer encoded frame
+         */
+        public void setBuffer(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        /**
+         * Writers call this once the whole frame is on the socket
+         */
+        public void written() {
+            if (this.listener != null) {
+                this.listener.onFrameDone(true);
+            }
+        }
+
+        /**
+         * Called when the frame will never be written
+         */
+        public void dropped() {
+            if (this.listener != null) {
+                this.listener.onFrameDone(false);
+            }
+        }
+    }
+
+    /**
+     * Drop counters shared by all queues of one transport
+     */
+    public static class Stats {
+        private final AtomicLong droppedOldest = new AtomicLong();
+        private final AtomicLong droppedNewest = new AtomicLong();
+        private final AtomicLong disconnects = new AtomicLong();
+        private final AtomicLong conflated = new AtomicLong();
+
+        public long getDroppedOldest() {
+            return this.droppedOldest.get();
+        }
+
+        public long getDroppedNewest() {
+            return this.droppedNewest.get();
+        }
+
+        public long getDisconnects() {
+            return this.disconnects.get();
+        }
+
+        public long getConflated() {
+            return this.conflated.get();
+        }
+
+        @Override
+        public String toString() {
+            return "droppedOldest=" + getDroppedOldest() + " droppedNewest=" + getDroppedNewest()
+                    + " disconnects=" + getDisconnects() + " conflated=" + getConflated();
+        }
+    }
+
+    private final ArrayDeque<Frame> frames;
+    // Queued frames that have a conflation key, by key
+    private final HashMap<String, Frame> framesGivenKey;
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final Stats stats;
+    private final ReentrantLock lock;
+    private final Condition notEmpty;
+    private long dropped;
+    private boolean closed;
+
+    /**
+     * OutboundQueue constructor
+     * @param capacity max frames held
+     * @param policy what to do when full
+     * @param stats transport-wide counters to update
+     */
+    public OutboundQueue(int capacity, OverflowPolicy policy, Stats stats) {
+        this.frames = new ArrayDeque<>();
+        this.framesGivenKey = new HashMap<>();
+        this.capacity = capacity;
+        this.policy = policy;
+        this.stats = stats;
+        this.lock = new ReentrantLock();
+        this.notEmpty = this.lock.newCondition();
+    }
+
+    /**
+     * Queues a frame without blocking
+     * @param frame encoded frame
+     * @return false if the policy is DISCONNECT and the queue is full,
+     * the caller must then close the connection
+     */
+    public boolean offer(ByteBuffer frame) {
+        return offer(frame, null);
+    }
+
+    /**
+     * Queues a frame without blocking
+     * @param buffer encoded frame
+     * @param listener told whether the frame was written, may be null
+     * @return false if the policy is DISCONNECT and the queue is full,
+     * the caller must then close the connection
+     */
+    public boolean offer(ByteBuffer buffer, FrameListener listener) {
+        return offer(buffer, listener, null);
+    }
+
+    /**
+     * Queues a frame without blocking, in place of a queued frame with the
+     * same conflation key if there is one
+     * @param buffer encoded frame
+     * @param listener told whether the frame was written, may be null
+     * @param conflationKey key of the value the frame carries, null to always queue
+     * @return false if the policy is DISCONNECT and the queue is full,
+     * the caller must then close the connection
+     */
+    public boolean offer(ByteBuffer buffer, FrameListener listener, String conflationKey) {
+        Frame frame = new Frame(buffer, listener, conflationKey);
+        Frame evicted = null;
+        List<Frame> discarded = null;
+        boolean accepted = true;
+
+        this.lock.lock();
+        try {
+            Frame queued = (conflationKey == null || this.closed) ? null : this.framesGivenKey.get(conflationKey);
+            if (queued != null) {
+                //Keeps the older frame's place, the newer value is not sent later for arriving later
+                evicted = new Frame(queued.buffer, queued.listener, null);
+                queued.buffer = buffer;
+                queued.listener = listener;
+                this.stats.conflated.incrementAndGet();
+            } else if (this.closed) {
+                evicted = frame;
+            } else if (this.frames.size() >= this.capacity) {
+                switch (this.policy) {
+                    case DROP_OLDEST:
+                        evicted = removed(this.frames.poll());
+                        this.frames.add(frame);
+                        indexKey(frame);
+                        this.dropped++;
+                        this.stats.droppedOldest.incrementAndGet();
+                        break;
+                    case DROP_NEWEST:
+                        evicted = frame;
+                        this.dropped++;
+                        this.stats.droppedNewest.incrementAndGet();
+                        break;
+                    case DISCONNECT:
+                        this.stats.disconnects.incrementAndGet();
+                        discarded = closeAndClear();
+                        evicted = frame;
+                        accepted = false;
+                        break;
+                }
+            } else {
+                this.frames.add(frame);
+                indexKey(frame);
+                this.notEmpty.signal();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+
+        if (evicted != null) {
+            evicted.dropped();
+        }
+        dropAll(discarded);
+        return accepted;
+    }
+
+    private void indexKey(Frame frame) {
+        if (frame.conflationKey != null) {
+            this.framesGivenKey.put(frame.conflationKey, frame);
+        }
+    }
+
+    /**
+     * Unindexes a frame leaving the queue, so it is no longer replaced
+     * @return frame
+     */
+    private Frame removed(Frame frame) {
+        if (frame != null && frame.conflationKey != null) {
+            this.framesGivenKey.remove(frame.conflationKey, frame);
+        }
+        return frame;
+    }
+
+    /**
+     * Removes the next frame without blocking (event loop writers)
+     * @return frame or null if empty
+     */
+    public Frame poll() {
+        this.lock.lock();
+        try {
+            return removed(this.frames.poll());
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Removes up to max frames without blocking, for gathering writes
+     * @param into where frames are appended, oldest first
+     * @param max most frames to remove
+     * @return number of frames removed
+     */
+    public int drainTo(Collection<Frame> into, int max) {
+        this.lock.lock();
+        try {
+            int n = 0;
+            Frame f;
+            while (n < max && (f = removed(this.frames.poll())) != null) {
+                into.add(f);
+                n++;
+            }
+            return n;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the next frame, waiting for one (dedicated writer threads)
+     * @return frame, or null once the queue is closed and drained
+     * @throws InterruptedException
+     */
+    public Frame take() throws InterruptedException {
+        this.lock.lock();
+        try {
+            while (this.frames.isEmpty()) {
+                if (this.closed) {
+                    return null;
+                }
+                this.notEmpty.await();
+            }
+            return removed(this.frames.poll());
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Stops accepting frames. Frames already queued can still be drained.
+     */
+    public void close() {
+        this.lock.lock();
+        try {
+            this.closed = true;
+            this.notEmpty.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Stops accepting frames and drops everything still queued,
+     * for when the connection is gone
+     */
+    public void discard() {
+        List<Frame> discarded;
+        this.lock.lock();
+        try {
+            discarded = closeAndClear();
+        } finally {
+            this.lock.unlock();
+        }
+        dropAll(discarded);
+    }
+
+    private List<Frame> closeAndClear() {
+        this.closed = true;
+        List<Frame> discarded = new ArrayList<>(this.frames);
+        this.frames.clear();
+        this.framesGivenKey.clear();
+        this.notEmpty.signalAll();
+        return discarded;
+    }
+
+    private static void dropAll(List<Frame> discarded) {
+        if (discarded == null) {
+            return;
+        }
+        for (Frame f : discarded) {
+            f.dropped();
+        }
+    }
+
+    public boolean isEmpty() {
+        this.lock.lock();
+        try {
+            return this.frames.isEmpty();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public int size() {
+        this.lock.lock();
+        try {
+            return this.frames.size();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    /**
+     * @return frames this queue dropped under DROP_OLDEST or DROP_NEWEST
+     */
+    public long getDropped() {
+        this.lock.lock();
+        try {
+            return this.dropped;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+}
@@ -94,11 +94,19 @@ public class PubSubAgent{
 		public void run() {
 			while(true){
 				//Read and print response (blocking operation, ok)
-				Object response = this.clientConnection.receiveObject();
+				Command response = this.clientConnection.receiveCommand();
 
-				printToScreanNewline((String)response);
+				if(response == null){
+					printToScreanNewline("Connection to server lost.");
+					this.clientConnection.kill();
+					System.exit(1);
+				}
 
-				if(((String)response).equals("exit good")){
+				printToScreanNewline(response.toString());
+				//Printed is received, no-op unless acks are enabled
+				this.clientConnection.ack(response);
+
+				if(response.getOpcode() == Command.REPLY && response.getArg(0).equals("exit good")){
 					this.clientConnection.kill();
 					System.exit(0);
 				}
@@ -138,8 +146,14 @@ public class PubSubAgent{
 			while(true){
 				String input = getInputFromScanner(myScanner);
 
-				//Send the input directly to EventManager for Parsing
-				this.clientConnection.sendObject(input);
+				//Encode the input and send it to the EventManager
+				Command command = Command.parse(input);
+				if(command == null){
+					printToScreanNewline(EventManager.BAD_PUB_SUB_INPUT);
+					printToScrean(PROMPT);
+					continue;
+				}
+				this.clientConnection.sendCommand(command);
 
 			}
 		}
@@ -0,0 +1,273 @@
+package edu.rit.cs.pubsub;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Streams stored events to one connection: a user's cached events from
+ * the OfflineStore, or a topic's retained history from TopicHistory.
+ *
+ * Flow control: at most highWater replayed frames sit in the connection's
+ * outbound queue at once. Frames report back when they reach the socket,
+ * and the task refills once half of them have gone, so memory stays flat
+ * no matter how many events are cached and the first one is sent at once.
+ *
+ * The user's cursor only advances past frames actually written. If a frame
+ * is dropped or the connection closes mid-replay the task stops, and the
+ * next login resumes after the last written event.
+ */
+public class ReplayTask {
+
+    /**
+     * Where replayed events come from and where progress is saved
+     */
+    public interface Source {
+        /**
+         * @param afterOffset only records after this offset
+         * @param max most records to return
+         * @return records in offset order, empty when caught up
+         */
+        List<OfflineStore.Record> read(long afterOffset, int max) throws IOException;
+
+        /**
+         * Everything up to and including offset reached the client
+         */
+        void commit(long offset) throws IOException;
+    }
+
+    // Written frames between cursor commits
+    private static final int COMMIT_INTERVAL = 256;
+
+    private final String name;
+    private final Connection connection;
+    private final Source source;
+    private final Executor executor;
+    private final Runnable onFinish;
+    private final int highWater;
+    private final int lowWater;
+
+    private final ReentrantLock lock;
+    // Offset of the last record handed to the connection
+    private long lastSentOffset;
+    // Offsets handed to the connection and not yet reported on, oldest first
+    private final ArrayDeque<Long> inFlight;
+    // Offset of the last record written in order, and of the last commit
+    private long lastWrittenOffset;
+    private long lastCommittedOffset;
+    private int writtenSinceCommit;
+    private boolean pumping;
+    private boolean exhausted;
+    private boolean failed;
+    private boolean finished;
+
+    /**
+     * Replay of a user's cached events
+     * @param username user whose cached events are replayed
+     * @param connection connection the user logged in on
+     * @param store OfflineStore holding the events
+     * @param topicResolver maps topic names back to Topics
+     * @param executor runs refills and commits, never the caller's thread
+     * @param onFinish run once when the replay completes or stops
+     */
+    public ReplayTask(String username, Connection connection, OfflineStore store,
+                      Function<String, Topic> topicResolver, Executor executor, Runnable onFinish) {
+        this(username, connection, new Source() {
+            @Override
+            public List<OfflineStore.Record> read(long afterOffset, int max) throws IOException {
+                return store.read(username, afterOffset, max, topicResolver);
+            }
+
+            @Override
+            public void commit(long offset) throws IOException {
+                store.commit(username, offset);
+            }
+        }, -1, executor, onFinish);
+    }
+
+    /**
+     * ReplayTask constructor
+     * @param name what is replayed, for logs
+     * @param connection connection to replay to
+     * @param source stored events
+     * @param afterOffset replay starts after this offset
+     * @param executor runs refills and commits, never the caller's thread
+     * @param onFinish run once when the replay completes or stops
+     */
+    public ReplayTask(String name, Connection connection, Source source, long afterOffset,
+                      Executor executor, Runnable onFinish) {
+        this.name = name;
+        this.connection = connection;
+        this.source = source;
+        this.executor = executor;
+        this.onFinish = onFinish;
+        this.highWater = Math.max(1, connection.getOutbound().getCapacity() / 2);
+        this.lowWater = this.highWater / 2;
+        this.lock = new ReentrantLock();
+        this.inFlight = new ArrayDeque<>();
+        this.lastSentOffset = afterOffset;
+        this.lastWrittenOffset = afterOffset;
+        this.lastCommittedOffset = afterOffset;
+    }
+
+    /**
+     * Starts streaming on the executor
+     */
+    public void start() {
+        this.executor.execute(this::pump);
+    }
+
+    /**
+     * Fills the connection's queue up to the high water mark
+     */
+    private void pump() {
+        this.lock.lock();
+        try {
+            if (this.pumping || this.finished || this.failed) {
+                return;
+            }
+            this.pumping = true;
+        } finally {
+            this.lock.unlock();
+        }
+
+        try {
+            while (true) {
+                int room;
+                this.lock.lock();
+                try {
+                    room = this.highWater - this.inFlight.size();
+                    if (room <= 0 || this.failed) {
+                        break;
+                    }
+                } finally {
+                    this.lock.unlock();
+                }
+
+                List<OfflineStore.Record> batch = this.source.read(this.lastSentOffset, room);
+                if (batch.isEmpty()) {
+                    this.lock.lock();
+                    try {
+                        this.exhausted = true;
+                    } finally {
+                        this.lock.unlock();
+                    }
+                    break;
+                }
+
+                for (OfflineStore.Record r : batch) {
+                    final long offset = r.getOffset();
+                    this.lock.lock();
+                    try {
+                        this.inFlight.addLast(offset);
+                    } finally {
+                        this.lock.unlock();
+                    }
+                    this.lastSentOffset = offset;
+                    this.connection.writeToClient(WireProtocol.encode(Command.event(r.getEvent())),
+                            written -> frameDone(offset, written));
+                }
+            }
+        } catch (IOException e) {
+            Log.error("REPLAY", "Could not read events of " + this.name, e);
+            this.lock.lock();
+            try {
+                this.failed = true;
+            } finally {
+                this.lock.unlock();
+            }
+        } finally {
+            this.lock.lock();
+            try {
+                this.pumping = false;
+            } finally {
+                this.lock.unlock();
+            }
+        }
+        afterProgress();
+    }
+
+    /**
+     * Called for every replayed frame once it is written or dropped.
+     * Only a write of the oldest frame in flight moves the cursor, so a
+     * dropped frame is never committed past.
+     */
+    private void frameDone(long offset, boolean written) {
+        this.lock.lock();
+        try {
+            boolean oldest = !this.inFlight.isEmpty() && this.inFlight.peekFirst() == offset;
+            this.inFlight.remove(offset);
+            if (written && oldest && !this.failed) {
+                this.lastWrittenOffset = offset;
+                this.writtenSinceCommit++;
+            } else {
+                this.failed = true;
+            }
+        } finally {
+            this.lock.unlock();
+        }
+        afterProgress();
+    }
+
+    /**
+     * Refills, commits or finishes as needed. Work goes to the executor,
+     * never onto the writer or event loop thread that reported progress.
+     */
+    private void afterProgress() {
+        boolean refill;
+        boolean commit;
+        boolean finish;
+        this.lock.lock();
+        try {
+            if (this.finished) {
+                return;
+            }
+            finish = (this.exhausted || this.failed) && this.inFlight.isEmpty() && !this.pumping;
+            refill = !finish && !this.exhausted && !this.failed && !this.pumping && this.inFlight.size() <= this.lowWater;
+            commit = finish || this.writtenSinceCommit >= COMMIT_INTERVAL;
+            if (commit) {
+                this.writtenSinceCommit = 0;
+            }
+            if (finish) {
+                this.finished = true;
+            }
+        } finally {
+            this.lock.unlock();
+        }
+
+        if (refill) {
+            this.executor.execute(this::pump);
+        }
+        if (commit || finish) {
+            this.executor.execute(() -> {
+                commitWritten();
+                if (finish) {
+                    Log.info("REPLAY", this.name + " replay " + (this.failed ? "interrupted" : "complete"));
+                    this.onFinish.run();
+                }
+            });
+        }
+    }
+
+    private void commitWritten() {
+        long offset;
+        this.lock.lock();
+        try {
+            offset = this.lastWrittenOffset;
+            if (offset <= this.lastCommittedOffset) {
+                return;
+            }
+            this.lastCommittedOffset = offset;
+        } finally {
+            this.lock.unlock();
+        }
+        try {
+            this.source.commit(offset);
+        } catch (IOException e) {
+            Log.error("REPLAY", "Could not commit cursor of " + this.name, e);
+        }
+    }
+}
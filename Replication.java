@@ -0,0 +1,483 @@
+package edu.rit.cs.pubsub;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Leader/standby replication of one broker's state.
+ *
+ * The members of a replication group are listed in priority order, each
+ * with its replication port. One member is the leader and serves clients;
+ * the others are standbys that keep a copy of its users, topics,
+ * subscriptions, keywords and offline cache, and do not serve clients.
+ *
+ * A standby connects to the leader with REPL_HELLO and gets a snapshot of
+ * the state followed by every change, in order, as it happens (the
+ * leader records changes under the same locks that order them). The
+ * leader sends REPL_HEARTBEAT when idle, so a standby that hears nothing
+ * for the failover time treats the leader as gone.
+ *
+ * Election: a member without a leader asks every other member for its
+ * role. It follows a member that answers leader, and promotes itself only
+ * if no member before it in the group answered at all. So the first live
+ * member wins, and a restarted member never takes over from a live
+ * leader; it becomes a standby of it.
+ *
+ * Live deliveries are not replicated: events written to connected
+ * clients at the time of a failover are lost. The offline cache and its
+ * delivery cursors are.
+ */
+public class Replication {
+
+    // Leader writes at least this often to each standby
+    private static final long HEARTBEAT_MILLIS = 250;
+    private static final int PROBE_TIMEOUT_MILLIS = 1000;
+    private static final long RETRY_MILLIS = 500;
+    // Cached events read per batch while snapshotting the offline store
+    private static final int SNAPSHOT_BATCH = 512;
+
+    /**
+     * Sends one snapshot command to a standby
+     */
+    interface Sink {
+        void accept(Command command) throws IOException;
+    }
+
+    private final String nodeId;
+    private final Map<String, InetSocketAddress> members;
+    private final long failoverMillis;
+    private final EventManager eventManager;
+    private final OfflineStore offlineStore;
+
+    private volatile boolean leader;
+    private final CountDownLatch promoted;
+    private final Set<FollowerLink> followers;
+    private final ScheduledExecutorService heartbeat;
+    private ServerSocket listenSocket;
+
+    // Standby only, reset on every sync: leader cache offset to ours, per user
+    private final Map<String, ArrayDeque<long[]>> localOffsetsGivenUsername;
+    // Standby only, reset on every sync: highest leader cache offset applied, per user.
+    // An event cached while the snapshot is read arrives twice, in it and queued after it.
+    private final Map<String, Long> appliedOffsetGivenUsername;
+
+    private final OutboundQueue.Stats followerStats;
+    private final Metrics.Counter sent;
+    private final Metrics.Counter applied;
+    private final Metrics.Counter promotions;
+
+    /**
+     * Replication constructor
+     * @param config node id, replication group and failover time
+     * @param eventManager the local EventManager
+     * @param offlineStore its offline store
+     */
+    public Replication(BrokerConfig config, EventManager eventManager, OfflineStore offlineStore) {
+        this.nodeId = config.getNodeId();
+        this.members = config.getReplicationGroup();
+        this.failoverMillis = config.getFailoverMillis();
+        this.eventManager = eventManager;
+        this.offlineStore = offlineStore;
+        this.promoted = new CountDownLatch(1);
+        this.followers = ConcurrentHashMap.newKeySet();
+        this.localOffsetsGivenUsername = new HashMap<>();
+        this.appliedOffsetGivenUsername = new HashMap<>();
+        this.followerStats = new OutboundQueue.Stats();
+        this.heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "replication-heartbeat");
+            t.setDaemon(true);
+            return t;
+        });
+
+        Metrics metrics = eventManager.getMetrics();
+        this.sent = metrics.counter("pubsub_replication_changes_sent_total", "State changes sent to standbys");
+        this.applied = metrics.counter("pubsub_replication_changes_applied_total", "State changes applied from the leader");
+        this.promotions = metrics.counter("pubsub_replication_promotions_total", "Times this node became leader");
+        metrics.gauge("pubsub_replication_leader", "1 if this node is the leader of its group", () -> this.leader ? 1 : 0);
+        metrics.gauge("pubsub_replication_standbys", "Standbys connected to this leader", () -> this.followers.size());
+        metrics.gauge("pubsub_replication_queue_frames", "Changes waiting to be written to standbys", () -> {
+            long total = 0;
+            for (FollowerLink f : this.followers) {
+                total += f.getOutbound().size();
+            }
+            return total;
+        });
+        metrics.counter("pubsub_replication_standby_disconnects_total", "Standbys dropped for falling too far behind",
+                this.followerStats::getDisconnects);
+    }
+
+    /**
+     * Binds the replication port and starts electing. Does not block.
+     * @throws IOException if the replication port cannot be bound
+     */
+    public void start() throws IOException {
+        this.listenSocket = new ServerSocket(this.members.get(this.nodeId).getPort());
+        Log.info("REPLICATION", "Node " + this.nodeId + " on replication port " + this.listenSocket.getLocalPort()
+                + ", group " + this.members.keySet());
+        Thread acceptor = new Thread(this::accept, "replication-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        Thread elector = new Thread(this::elect, "replication");
+        elector.setDaemon(true);
+        elector.start();
+    }
+
+    /**
+     * Blocks until this node is the leader
+     */
+    public void awaitLeadership() {
+        try {
+            this.promoted.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isLeader() {
+        return this.leader;
+    }
+
+    /**
+     * Sends a state change to every standby. A no-op on standbys. Callers
+     * hold the lock that orders the change against others of the same
+     * user or topic, so standbys apply them in the same order.
+     * @param change REPL_* command
+     */
+    public void record(Command change) {
+        if (this.leader && send(change)) {
+            this.sent.increment();
+        }
+    }
+
+    /**
+     * @return false if there was no standby to send to
+     */
+    private boolean send(Command command) {
+        if (this.followers.isEmpty()) {
+            return false;
+        }
+        SharedFrame frame = SharedFrame.encode(command, false);
+        for (FollowerLink f : this.followers) {
+            frame.writeTo(f);
+        }
+        frame.release();
+        return true;
+    }
+
+    /**
+     * Finds or becomes the leader, following it until it is lost
+     */
+    private void elect() {
+        while (!this.leader) {
+            boolean earlierAlive = false;
+            boolean followed = false;
+            boolean earlier = true;
+            for (Map.Entry<String, InetSocketAddress> member : this.members.entrySet()) {
+                if (member.getKey().equals(this.nodeId)) {
+                    earlier = false;
+                    continue;
+                }
+                Socket s = new Socket();
+                try {
+                    s.connect(member.getValue(), PROBE_TIMEOUT_MILLIS);
+                    s.setSoTimeout(PROBE_TIMEOUT_MILLIS);
+                    s.setTcpNoDelay(true);
+                    OutputStream out = new BufferedOutputStream(s.getOutputStream());
+                    WireProtocol.write(out, Command.replHello(this.nodeId));
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+                    Command role = WireProtocol.read(in);
+                    if (role.getOpcode() == Command.REPL_ROLE && Command.ROLE_LEADER.equals(role.getArg(0))) {
+                        follow(member.getKey(), s, in);
+                        followed = true;
+                        break;
+                    }
+                    earlierAlive |= earlier;
+                } catch (IOException e) {
+                    //Down, or not listening yet
+                } finally {
+                    NioServer.closeQuietly(s);
+                }
+            }
+            if (followed) {
+                continue;
+            }
+            if (!earlierAlive) {
+                promote();
+                return;
+            }
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void promote() {
+        this.localOffsetsGivenUsername.clear();
+        this.appliedOffsetGivenUsername.clear();
+        this.leader = true;
+        this.promotions.increment();
+        this.heartbeat.scheduleAtFixedRate(() -> send(Command.replHeartbeat()),
+                HEARTBEAT_MILLIS, HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+        Log.info("REPLICATION", "Node " + this.nodeId + " is the leader");
+        this.promoted.countDown();
+    }
+
+    /**
+     * Applies the leader's snapshot and changes until the leader goes
+     * quiet for the failover time or closes the link
+     */
+    private void follow(String leaderId, Socket socket, DataInputStream in) throws IOException {
+        Log.info("REPLICATION", "Following " + leaderId);
+        //The leader resends its whole state, offsets on a new leader mean nothing here
+        this.eventManager.resetState();
+        this.offlineStore.reset();
+        this.localOffsetsGivenUsername.clear();
+        this.appliedOffsetGivenUsername.clear();
+        socket.setSoTimeout((int) this.failoverMillis);
+        try {
+            while (true) {
+                Command change = WireProtocol.read(in);
+                if (!change.isReplicationCommand() || !change.hasValidArgs()) {
+                    Log.warn("REPLICATION", "Bad frame from " + leaderId + ": " + change);
+                    continue;
+                }
+                apply(change);
+            }
+        } catch (SocketTimeoutException e) {
+            Log.warn("REPLICATION", "No heartbeat from " + leaderId + " in " + this.failoverMillis + "ms");
+        } catch (EOFException e) {
+            Log.warn("REPLICATION", "Leader " + leaderId + " closed the link");
+        } catch (IOException e) {
+            Log.warn("REPLICATION", "Lost leader " + leaderId + ": " + e.getMessage());
+        }
+    }
+
+    private void apply(Command change) throws IOException {
+        switch (change.getOpcode()) {
+            case Command.REPL_HEARTBEAT:
+                return;
+            case Command.REPL_CACHE:
+                String user = change.getArg(0);
+                long leaderOffset = Long.parseLong(change.getArg(1));
+                Long appliedOffset = this.appliedOffsetGivenUsername.get(user);
+                if (appliedOffset != null && leaderOffset <= appliedOffset) {
+                    return;
+                }
+                this.appliedOffsetGivenUsername.put(user, leaderOffset);
+                Topic topic = this.eventManager.getTopicFromName(change.getArg(2));
+                if (topic == null) {
+                    topic = new Topic(change.getArg(2), new ArrayList<>());
+                }
+                Event event = new Event(topic, change.getArg(3), change.getArg(4), Long.parseLong(change.getArg(5)),
+                        Long.parseLong(change.getArg(6)));
+                long local = this.offlineStore.append(user, event);
+                this.localOffsetsGivenUsername.computeIfAbsent(user, u -> new ArrayDeque<>())
+                        .add(new long[]{leaderOffset, local});
+                break;
+            case Command.REPL_COMMIT:
+                //Commit through our copy of the last event the leader committed
+                ArrayDeque<long[]> offsets = this.localOffsetsGivenUsername.get(change.getArg(0));
+                long committed = Long.parseLong(change.getArg(1));
+                long through = -1;
+                while (offsets != null && !offsets.isEmpty() && offsets.peek()[0] <= committed) {
+                    through = offsets.poll()[1];
+                }
+                if (through >= 0) {
+                    this.offlineStore.commit(change.getArg(0), through);
+                }
+                break;
+            default:
+                this.eventManager.applyReplicated(change);
+        }
+        this.applied.increment();
+    }
+
+    private void accept() {
+        while (!this.listenSocket.isClosed()) {
+            try {
+                Socket socket = this.listenSocket.accept();
+                Thread handler = new Thread(() -> serve(socket), "replication-in");
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                if (!this.listenSocket.isClosed()) {
+                    Log.error("REPLICATION", "Incoming Connection Problem", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Answers a member's REPL_HELLO with our role; as leader, then streams
+     * the snapshot and every change to it
+     */
+    private void serve(Socket socket) {
+        FollowerLink link = null;
+        try {
+            socket.setSoTimeout(PROBE_TIMEOUT_MILLIS);
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            Command hello = WireProtocol.read(in);
+            if (hello.getOpcode() != Command.REPL_HELLO || !hello.hasValidArgs() || !this.members.containsKey(hello.getArg(0))) {
+                Log.warn("REPLICATION", "Rejected link from " + socket.getRemoteSocketAddress() + ", not a group member");
+                return;
+            }
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            boolean leading = this.leader;
+            WireProtocol.write(out, Command.replRole(leading));
+            if (!leading) {
+                return;
+            }
+
+            //Queue changes from now on, then send the state they apply to
+            link = new FollowerLink(hello.getArg(0), socket, this.followerStats);
+            this.followers.add(link);
+            Log.info("REPLICATION", "Standby " + link.getNode() + " connected, sending snapshot");
+            Sink sink = c -> {
+                ByteBuffer frame = WireProtocol.encode(c);
+                out.write(frame.array(), frame.arrayOffset(), frame.remaining());
+            };
+            this.eventManager.snapshot(sink);
+            snapshotCache(sink);
+            out.flush();
+            link.drain(out);
+        } catch (IOException e) {
+            if (link != null) {
+                Log.warn("REPLICATION", "Lost standby " + link.getNode() + ": " + e.getMessage());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (link != null) {
+                this.followers.remove(link);
+                link.kill();
+            }
+            NioServer.closeQuietly(socket);
+        }
+    }
+
+    /**
+     * Sends every undelivered cached event with its offset here
+     */
+    private void snapshotCache(Sink sink) throws IOException {
+        for (String user : this.offlineStore.pendingUsers()) {
+            long after = -1;
+            List<OfflineStore.Record> batch;
+            while (!(batch = this.offlineStore.read(user, after, SNAPSHOT_BATCH, this.eventManager::getTopicFromName)).isEmpty()) {
+                for (OfflineStore.Record r : batch) {
+                    sink.accept(Command.replCache(user, r.getOffset(), r.getEvent()));
+                    after = r.getOffset();
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the replication port and every standby link
+     */
+    public void shutdown() {
+        this.heartbeat.shutdownNow();
+        NioServer.closeQuietly(this.listenSocket);
+        for (FollowerLink f : this.followers) {
+            f.kill();
+        }
+    }
+}
+
+/**
+ * Leader side of one standby's link. Changes are queued without blocking
+ * and written by the thread that sent the snapshot. A standby too slow to
+ * keep up is disconnected rather than skipped, and resyncs from scratch.
+ */
+class FollowerLink implements Connection {
+    // Changes held for a standby still receiving its snapshot, or slow
+    private static final int QUEUE_CAPACITY = 256 * 1024;
+
+    private final String node;
+    private final Socket socket;
+    private final OutboundQueue outbound;
+    private final StreamWriter writer;
+
+    FollowerLink(String node, Socket socket, OutboundQueue.Stats stats) {
+        this.node = node;
+        this.socket = socket;
+        this.outbound = new OutboundQueue(QUEUE_CAPACITY, OutboundQueue.OverflowPolicy.DISCONNECT, stats);
+        this.writer = new StreamWriter(this.outbound);
+    }
+
+    public String getNode() {
+        return this.node;
+    }
+
+    /**
+     * Writes queued changes until the link is killed or fails
+     * @param out the standby's socket stream
+     */
+    void drain(OutputStream out) throws IOException, InterruptedException {
+        this.writer.drain(out);
+        if (!this.socket.isClosed()) {
+            Log.warn("REPLICATION", "Standby " + this.node + " fell " + QUEUE_CAPACITY + " changes behind, dropping it");
+        }
+    }
+
+    @Override
+    public String getClientIP() {
+        return this.socket.getInetAddress().getHostAddress();
+    }
+
+    @Override
+    public String getSessionId() {
+        return "standby " + this.node;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !this.socket.isClosed();
+    }
+
+    @Override
+    public void writeToClient(ByteBuffer frame, OutboundQueue.FrameListener listener, String conflationKey) {
+        //A full queue closes itself, take() then ends the drain
+        this.outbound.offer(frame, listener, conflationKey);
+    }
+
+    @Override
+    public OutboundQueue getOutbound() {
+        return this.outbound;
+    }
+
+    @Override
+    public long getBytesOut() {
+        return this.writer.getBytesOut();
+    }
+
+    @Override
+    public boolean kill() {
+        this.outbound.discard();
+        NioServer.closeQuietly(this.socket);
+        return true;
+    }
+}
@@ -8,9 +8,11 @@
 package edu.rit.cs.pubsub;
 
 import java.io.*;
+import java.lang.reflect.Method;
 import java.net.BindException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.*;
@@ -18,17 +20,38 @@ import java.util.concurrent.*;
 /**
  * TCP Server implementation that can send and receive objects.
  * Fully compartmentalized, has nothing to do with WordCount.
+ * Blocking transport: one Handler thread per connected client.
+ *
+ * Handlers and their writers run on platform threads, or on virtual
+ * threads where the JDK has them. Everything they block on (socket
+ * streams, OutboundQueue, the EventManager's locks) uses
+ * java.util.concurrent locks rather than synchronized, so a parked
+ * virtual thread releases its carrier.
  */
-public class Server {
+public class Server implements Transport {
+
+    // Thread modes selectable at startup
+    public static final String PLATFORM_THREADS = "platform";
+    public static final String VIRTUAL_THREADS = "virtual";
+
+    // Reply to a command that threw, on either transport
+    static final String COMMAND_FAILED = "Error: Command failed.";
+
     private ServerSocket listenSocket;
     private ExecutorService executorService;
-    private List<Handler> handlers;
+    private String threadMode;
+    //Mutated by the accept loop and handlers while publishers look up sessions
+    private ConnectionRegistry<Handler> handlers;
+    private int queueCapacity;
+    private OutboundQueue.OverflowPolicy overflowPolicy;
+    private OutboundQueue.Stats outboundStats;
 
     /**
      * Server constructor
-     * @param port - Make a new server accepting connections on this port.
+     * @param config - Make a new server accepting connections on config's port.
      */
-    public Server(int port) {
+    public Server(BrokerConfig config) {
+        int port = config.getPort();
 
         //Try to bind to port until successful (only halts on success)
         while (listenSocket == null) {
@@ -38,27 +61,21 @@ public class Server {
                 //Wait for port to free up. Thus, never quits if existing connection never closes.
                 continue;
             } catch (IOException e) {
-                e.printStackTrace();
+                Log.error("SERVER", "Could not bind port " + port, e);
             }
             //System.out.println("[SERVER] Created");
         }
 
-        handlers = new ArrayList<>();
+        handlers = new ConnectionRegistry<>();
+        this.threadMode = config.getThreadMode();
+        this.queueCapacity = config.getQueueCapacity();
+        this.overflowPolicy = config.getOverflowPolicy();
+        this.outboundStats = new OutboundQueue.Stats();
     }
 
-    public boolean isClientOnline(String ip){
-        for(Handler h : this.handlers){
-            if(h == null || h.getClientIP() == null){
-                return false;
-            }
-            else if(h.getClientIP().equals(ip)){
-                if(!(h.getClientSocket().isClosed())){
-                    return true;
-                }
-                return false;
-            }
-        }
-        return false;
+    @Override
+    public boolean isSessionOnline(String sessionId){
+        return this.handlers.isOnline(sessionId);
     }
 
     /**
@@ -68,10 +85,13 @@ public class Server {
      * Fully multithreaded using a Handler Callable class.
      * @return List<Object> received over TCP from Clients
      */
+    @Override
     public void listen(EventManager eventManager) {
 
         //Create an executor that spawns threads as needed
-        this.executorService = Executors.newCachedThreadPool();
+        this.executorService = newHandlerExecutor(this.threadMode);
+        this.handlers.registerMetrics(eventManager.getMetrics(), this.outboundStats);
+        this.handlers.setOnRemove(eventManager::sessionClosed);
 
         //Place to hold all the eventual return Maps
         //List<Future> listOfClientData = new ArrayList<>();
@@ -85,14 +105,15 @@ public class Server {
                 //System.out.println("[SERVER] Client Connected " + clientSocket.getInetAddress() + " over port " + clientSocket.getLocalPort());
 
                 //System.out.println("[SERVER] Dispatching client to Handler Callable through Executor");
-                Handler newHandler = new Handler(clientSocket,eventManager);
+                OutboundQueue outbound = new OutboundQueue(this.queueCapacity, this.overflowPolicy, this.outboundStats);
+                Handler newHandler = new Handler(clientSocket,this.handlers.newSessionId(),eventManager,outbound,this);
                 this.handlers.add(newHandler);
                 executorService.submit(newHandler);
+                executorService.submit(newHandler.getWriter());
 
 
             } catch (IOException e) {
-                e.printStackTrace();
-                System.out.println("[Server] ERROR: Incoming Connection Problem");
+                Log.error("SERVER", "Incoming Connection Problem", e);
                 System.exit(1);
             }
         }
@@ -107,42 +128,106 @@ public class Server {
     }
 
     /**
-     * Writes to clients given a list of ips
-     * @param message
-     * @param ips
+     * Executor for handlers and writers, and NioServer's command workers.
+     * Virtual threads are looked up reflectively so the server still
+     * builds and runs on JDKs without them.
+     * @param threadMode PLATFORM_THREADS or VIRTUAL_THREADS
+     * @return one thread per task executor
      */
-    public void writeToClientGivenIPs(Object message, List<String> ips){
-        for(String ip : ips){
-            writeToClientGivenIP(message, ip);
+    static ExecutorService newHandlerExecutor(String threadMode){
+        if(threadMode.equals(VIRTUAL_THREADS)){
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                Log.info("SERVER", "Running handlers on virtual threads");
+                return (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+                Log.warn("SERVER", "Virtual threads not available on Java "
+                        + System.getProperty("java.version") + ", using platform threads");
+            }
         }
+        return Executors.newCachedThreadPool();
     }
 
     /**
-     * Writes to clients given an ip
+     * Writes to clients given a list of sessions
      * @param message
-     * @param ip
+     * @param sessionIds
      */
-    public void writeToClientGivenIP(Object message, String ip){
-        for(Handler h : this.handlers){
-            if(h.getClientIP().equals(ip)){
-                if(!(h.getClientSocket().isClosed())){
-                    System.out.println("[HANDLER] writing (" + (String) message + ") to " + ip);
-                    h.writeToClient(message);
-                }
+    @Override
+    public void writeToSessions(Command message, List<String> sessionIds){
+        SharedFrame frame = share(message);
+        try{
+            writeToSessions(frame, sessionIds);
+        }
+        finally{
+            frame.release();
+        }
+    }
+
+    /**
+     * Heap frames, the writer threads copy them into a buffered stream
+     * @param message Command to encode
+     * @return SharedFrame
+     */
+    @Override
+    public SharedFrame share(Command message){
+        return SharedFrame.encode(message, false);
+    }
+
+    @Override
+    public void writeToSessions(SharedFrame frame, List<String> sessionIds){
+        for(String sessionId : sessionIds){
+            Handler h = this.handlers.forSession(sessionId);
+            if(h != null && !(h.getClientSocket().isClosed())){
+                frame.writeTo(h);
             }
         }
     }
 
+    /**
+     * Writes to the client of a session
+     * @param message
+     * @param sessionId
+     */
+    @Override
+    public void writeToSession(Command message, String sessionId){
+        Handler h = this.handlers.forSession(sessionId);
+        if(h != null && !(h.getClientSocket().isClosed())){
+            Log.trace("HANDLER", () -> "writing (" + message + ") to session " + sessionId);
+            h.writeToClient(message);
+        }
+    }
+
     /**
      * Writes to all connected clients
      * @param message
      */
-    public void writeToAllClients(Object message){
-        for(Handler h : this.handlers){
-            if(!(h.getClientSocket().isClosed())){
-                h.writeToClient(message);
+    @Override
+    public void writeToAllClients(Command message){
+        SharedFrame frame = share(message);
+        try{
+            for(Handler h : this.handlers.all()){
+                if(!(h.getClientSocket().isClosed())){
+                    frame.writeTo(h);
+                }
             }
         }
+        finally{
+            frame.release();
+        }
+    }
+
+    /**
+     * Forgets a handler once its connection is closed
+     * @param handler closed handler
+     */
+    void removeHandler(Handler handler){
+        this.handlers.remove(handler);
+    }
+
+    @Override
+    public OutboundQueue.Stats getOutboundStats(){
+        return this.outboundStats;
     }
 
     /**
@@ -211,15 +296,16 @@ public class Server {
      * Close the executor service.
      * @return true if shutdown, false if not
      */
+    @Override
     public boolean shutdownServer() {
         shutdownAndAwaitTermination(executorService);
         try {
-            System.out.println("[SERVER] Killing Server...");
+            Log.info("SERVER", "Killing Server...");
             this.listenSocket.close();
-            System.out.println("[SERVER] Killed");
+            Log.info("SERVER", "Killed");
             return true;
         } catch (IOException e) {
-            System.out.println("[SERVER] Connection Close Failure:" + e.getMessage());
+            Log.warn("SERVER", "Connection Close Failure:" + e.getMessage());
             return false;
         }
     }
@@ -228,63 +314,157 @@ public class Server {
 /**
  * Threaded Class that implements Callable.
  * Handles all connections to the server. Self-contained
+ * Reads WireProtocol frames; writes go through the OutboundQueue
+ * which a separate Writer task drains onto the socket.
  */
-class Handler implements Callable<Object> {
+class Handler implements Callable<Object>, Connection {
+    //Commands are small and bigger frames are read straight into their own array,
+    //so a small read buffer keeps idle connections cheap
+    private static final int READ_BUFFER_SIZE = 1024;
+
     private Socket clientSocket;
-    private ObjectInputStream in;
-    private ObjectOutputStream out;
+    private DataInputStream in;
+    private OutputStream out;
+    private OutboundQueue outbound;
+    private StreamWriter writer;
     private EventManager currentEventManager;
+    private Server server;
     private String clientIP;
+    private String sessionId;
+    //Only the reader thread adds to this
+    private volatile long bytesIn;
 
     /**
      * Handler constructor. Takes a socket in as params.
      * @param clientSocket Socket for the client connected to the server
+     * @param sessionId id of the connection's session
+     * @param outbound queue of frames to send to this client
+     * @param server Server tracking this handler
      * @throws IOException
      */
-    public Handler(Socket clientSocket, EventManager eventManager) throws IOException {
+    public Handler(Socket clientSocket, String sessionId, EventManager eventManager, OutboundQueue outbound, Server server) throws IOException {
         this.clientSocket = clientSocket;
         this.clientIP = this.clientSocket.getInetAddress().toString().replace("/","");
-        System.out.println("[HANDLER] ip = " + this.clientIP);
+        this.sessionId = sessionId;
+        Log.debug("HANDLER", () -> "ip = " + this.clientIP + " session = " + sessionId);
 
         this.currentEventManager = eventManager;
+        this.outbound = outbound;
+        this.writer = new StreamWriter(outbound);
+        this.server = server;
+
+        this.out = new BufferedOutputStream(clientSocket.getOutputStream());
+        //Counted below the buffer, so bytesIn is what actually came off the socket
+        InputStream counted = new FilterInputStream(clientSocket.getInputStream()) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    bytesIn++;
+                }
+                return b;
+            }
 
-        //Assign Output Stream first - Blocking operations
-        //https://stackoverflow.com/questions/8186135/java-sockets-program-stops-at-socket-getinputstream-w-o-error
-        //System.out.println("[HANDLER] Assigning OUT Stream...");
-        this.out = new ObjectOutputStream(clientSocket.getOutputStream());
-        //System.out.println("[HANDLER] Assigning IN Stream...");
-        this.in = new ObjectInputStream(clientSocket.getInputStream());
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) {
+                    bytesIn += n;
+                }
+                return n;
+            }
+        };
+        this.in = new DataInputStream(new BufferedInputStream(counted, READ_BUFFER_SIZE));
         //System.out.println("[HANDLER] Handler created for " + clientSocket.getRemoteSocketAddress().toString() + " on port " + clientSocket.getLocalPort());
     }
 
+    @Override
     public String getClientIP(){
         return this.clientIP;
     }
 
+    @Override
+    public String getSessionId(){
+        return this.sessionId;
+    }
+
+    @Override
+    public boolean isOpen(){
+        return !this.clientSocket.isClosed();
+    }
+
+    @Override
+    public long getBytesIn(){
+        return this.bytesIn;
+    }
+
+    @Override
+    public long getBytesOut(){
+        return this.writer.getBytesOut();
+    }
+
+    @Override
+    public boolean enableCompression(int minBytes){
+        return this.writer.setCompressor(new FrameCompressor(minBytes));
+    }
+
     public Socket getClientSocket(){
         return this.clientSocket;
     }
 
-    public Object readFromClient(){
+    /**
+     * Reads the next frame from the client
+     * @return Command, or null once the client is gone or sent a bad frame
+     */
+    public Command readFromClient(){
         try {
-            return this.in.readObject();
+            return WireProtocol.read(this.in);
+        } catch (EOFException e) {
+            return null;
         } catch (IOException e) {
-            e.printStackTrace();
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
+            if (isOpen()) {
+                Log.warn("HANDLER", "Bad input from " + this.clientIP + ": " + e.getMessage());
+            }
         }
         return null;
     }
 
-    public void writeToClient(Object o){
-        try {
-            this.out.writeObject(o);
-            this.out.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
+    @Override
+    public OutboundQueue getOutbound(){
+        return this.outbound;
+    }
+
+    /**
+     * Queues one frame for the client. Never blocks; if the queue is full
+     * and the policy is DISCONNECT the slow client is disconnected.
+     */
+    @Override
+    public void writeToClient(ByteBuffer frame, OutboundQueue.FrameListener listener, String conflationKey){
+        if(!this.outbound.offer(frame, listener, conflationKey)){
+            Log.warn("HANDLER", this.clientIP + " too slow, disconnecting");
+            kill();
         }
     }
 
+    /**
+     * Task that drains the outbound queue onto the socket
+     * @return Runnable writer
+     */
+    public Runnable getWriter(){
+        return () -> {
+            try {
+                this.writer.drain(this.out);
+            } catch (IOException e) {
+                //Socket closed under us, nothing left to deliver to
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            kill();
+            //Only this thread compresses, so the Deflater is free to go
+            this.writer.end();
+        };
+    }
+
     /**
      * Override call. Reads and writes objects via EventmManager
      * @return Object returned from client
@@ -299,19 +479,33 @@ class Handler implements Callable<Object> {
         while(true){
 
             //Read input command
-            Object myObject = readFromClient();
+            Command command = readFromClient();
+
+            //Client went away
+            if(command == null){
+                this.outbound.close();
+                kill();
+                return null;
+            }
 
             //Pass input command to the event manager and get response
-            //Space separated.
-            //Message is of format: <IP> <Message>
-            String response = this.currentEventManager.passInput(this.clientSocket.getInetAddress().toString().replace("/","") + " " + (String)myObject);
+            String response;
+            try {
+                response = this.currentEventManager.passCommand(this, command);
+            } catch (RuntimeException e) {
+                //One bad command must not end the connection
+                Log.error("HANDLER", "Command " + command + " from " + this.clientIP + " failed", e);
+                response = Server.COMMAND_FAILED;
+            }
 
-            //Write response to client
-            writeToClient(response);
+            //Write response to client, unless the EventManager already did
+            if(response != null){
+                writeToClient(Command.reply(response, command));
+            }
 
-            //If response is kill, kill
-            if(response.equals("exit good")){
-                kill();
+            //If command is exit, let the writer send the reply and kill
+            if(command.getOpcode() == Command.EXIT){
+                this.outbound.close();
                 return "exit good";
             }
         }
@@ -321,12 +515,15 @@ class Handler implements Callable<Object> {
      * Closes the server/client connection socket
      * @return true for kill success, false for fail
      */
+    @Override
     public boolean kill() {
+        this.outbound.discard();
+        this.server.removeHandler(this);
         try {
             this.clientSocket.close();
             return true;
         } catch (IOException e) {
-            System.out.println("Connection Close Failure:" + e.getMessage());
+            Log.warn("HANDLER", "Connection Close Failure:" + e.getMessage());
             return false;
         }
     }
@@ -0,0 +1,180 @@
+package edu.rit.cs.pubsub;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One encoded frame written to many connections.
+ *
+ * The message is encoded once; every connection gets its own duplicate()
+ * (independent position, same bytes) so a fan-out to N subscribers costs
+ * one encode and N small views instead of N encodes. The bytes are never
+ * changed after encoding.
+ *
+ * Direct frames come from a pool of off-heap buffers and are reference
+ * counted: the creator holds one reference, every queued copy another,
+ * and the buffer goes back to the pool when the last copy is written or
+ * dropped. Heap frames are left to the garbage collector.
+ *
+ * An optional listener hears about every copy that reaches a socket, e.g.
+ * to record delivery latency. An optional conflation key lets a newer
+ * frame replace a still queued copy, see OutboundQueue.
+ */
+public final class SharedFrame {
+
+    // Pooled direct buffers come in power of two sizes up to this
+    private static final int MIN_POOLED_SIZE = 256;
+    private static final int MAX_POOLED_SIZE = 64 * 1024;
+    // Idle buffers kept per size class
+    private static final int MAX_IDLE_PER_CLASS = 256;
+
+    private static final BufferPool POOL = new BufferPool();
+
+    private final ByteBuffer buffer;
+    private final boolean pooled;
+    private final AtomicInteger refs;
+    private volatile Runnable onWritten;
+    private volatile String conflationKey;
+
+    private SharedFrame(ByteBuffer buffer, boolean pooled) {
+        this.buffer = buffer;
+        this.pooled = pooled;
+        this.refs = new AtomicInteger(1);
+    }
+
+    /**
+     * Encodes a message once
+     * @param message Command to encode
+     * @param direct true for a pooled off-heap buffer (channel writers),
+     * false for a heap buffer (stream writers)
+     * @return SharedFrame holding one reference for the caller
+     */
+    public static SharedFrame encode(Command message, boolean direct) {
+        if (!direct) {
+            return new SharedFrame(WireProtocol.encode(message), false);
+        }
+        boolean[] pooled = new boolean[1];
+        ByteBuffer buffer = WireProtocol.encode(message, size -> {
+            ByteBuffer b = POOL.acquire(size);
+            pooled[0] = b != null;
+            return pooled[0] ? b : ByteBuffer.allocate(size);
+        });
+        return new SharedFrame(buffer, pooled[0]);
+    }
+
+    /**
+     * Queues a copy on a connection, holding a reference until the copy
+     * is written or dropped
+     * @param connection connection to write to
+     */
+    public void writeTo(Connection connection) {
+        retain();
+        connection.writeToClient(this.buffer.duplicate(), written -> {
+            Runnable listener = this.onWritten;
+            if (written && listener != null) {
+                listener.run();
+            }
+            release();
+        }, this.conflationKey);
+    }
+
+    /**
+     * Set before the first writeTo
+     * @param conflationKey key of the value the frame carries, null if none
+     */
+    public void setConflationKey(String conflationKey) {
+        this.conflationKey = conflationKey;
+    }
+
+    /**
+     * Set before the first writeTo
+     * @param onWritten run on the writing thread each time a copy is written
+     */
+    public void setOnWritten(Runnable onWritten) {
+        this.onWritten = onWritten;
+    }
+
+    /**
+     * Adds a reference
+     * @return this
+     */
+    public SharedFrame retain() {
+        if (this.refs.getAndIncrement() <= 0) {
+            throw new IllegalStateException("SharedFrame already released");
+        }
+        return this;
+    }
+
+    /**
+     * Drops a reference, returning the buffer to the pool on the last one
+     */
+    public void release() {
+        int left = this.refs.decrementAndGet();
+        if (left < 0) {
+            throw new IllegalStateException("SharedFrame released too often");
+        }
+        if (left == 0 && this.pooled) {
+            POOL.release(this.buffer);
+        }
+    }
+
+    /**
+     * @return frame length in bytes
+     */
+    public int length() {
+        return this.buffer.limit();
+    }
+
+    /**
+     * Off-heap buffers in power of two size classes
+     */
+    private static class BufferPool {
+        private final List<ConcurrentLinkedQueue<ByteBuffer>> idle;
+        private final AtomicInteger[] idleCounts;
+
+        BufferPool() {
+            int classes = sizeClass(MAX_POOLED_SIZE) + 1;
+            this.idle = new ArrayList<>(classes);
+            this.idleCounts = new AtomicInteger[classes];
+            for (int i = 0; i < classes; i++) {
+                this.idle.add(new ConcurrentLinkedQueue<>());
+                this.idleCounts[i] = new AtomicInteger();
+            }
+        }
+
+        private static int sizeClass(int size) {
+            int rounded = Math.max(MIN_POOLED_SIZE, Integer.highestOneBit(size - 1) << 1);
+            return Integer.numberOfTrailingZeros(rounded) - Integer.numberOfTrailingZeros(MIN_POOLED_SIZE);
+        }
+
+        /**
+         * @param size bytes needed
+         * @return a cleared direct buffer with at least size bytes, null if too large to pool
+         */
+        ByteBuffer acquire(int size) {
+            if (size > MAX_POOLED_SIZE) {
+                return null;
+            }
+            int c = sizeClass(size);
+            ByteBuffer b = this.idle.get(c).poll();
+            if (b == null) {
+                return ByteBuffer.allocateDirect(MIN_POOLED_SIZE << c);
+            }
+            this.idleCounts[c].decrementAndGet();
+            b.clear();
+            return b;
+        }
+
+        void release(ByteBuffer b) {
+            int c = sizeClass(b.capacity());
+            if (this.idleCounts[c].incrementAndGet() > MAX_IDLE_PER_CLASS) {
+                this.idleCounts[c].decrementAndGet();
+                return;
+            }
+            this.idle.get(c).add(b);
+        }
+    }
+}
@@ -0,0 +1,421 @@
+package edu.rit.cs.pubsub;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Write-ahead log and snapshots of the broker's registry: users, topics,
+ * keywords and subscriptions. Sessions end with their connections and are
+ * not kept; cached events are not here either, the OfflineStore keeps those.
+ *
+ * Every change is appended as the same REPL_* frame a standby would get.
+ * The log is split into generations: snapshot-G holds the whole state as
+ * of the start of wal-G, and wal-G, wal-G+1, ... hold every change after
+ * it. Restoring reads the newest snapshot and replays only the logs from
+ * its generation on.
+ *
+ * A snapshot is taken in the background every snapshotEvery changes: the
+ * log moves to a new generation, the live state is written out, and the
+ * older files are deleted. Changes made while the state is written go to
+ * both the snapshot and the new log; applying a change twice is harmless.
+ * Appends wait only while the log is rolled over: the state is copied
+ * and written out with no lock held.
+ *
+ * A change is durable once append returns, as far as the sync policy
+ * asks: ALWAYS forces every change to disk, GROUP forces once for every
+ * change appended while the previous force ran (group commit), NONE
+ * leaves it to the OS and survives a crash of the process only.
+ */
+public class StateLog {
+
+    public static final long DEFAULT_SNAPSHOT_EVERY = 100000;
+
+    private static final String WAL_PREFIX = "wal-";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SUFFIX = ".log";
+    private static final String COMPACTING_SUFFIX = ".tmp";
+
+    /**
+     * When appended changes are forced to disk
+     */
+    public enum SyncPolicy {
+        // Every change on its own
+        ALWAYS,
+        // Changes waiting on the same force share it
+        GROUP,
+        // Never, the OS writes them back
+        NONE;
+
+        /**
+         * Parses always, group or none
+         * @param s option value
+         * @return SyncPolicy
+         */
+        public static SyncPolicy fromOption(String s) {
+            return valueOf(s.trim().toUpperCase());
+        }
+    }
+
+    /**
+     * Source of a snapshot, e.g. EventManager.snapshot
+     */
+    interface Source {
+        void writeTo(Replication.Sink sink) throws IOException;
+    }
+
+    private final Path directory;
+    private final long snapshotEvery;
+    private final SyncPolicy syncPolicy;
+    private final ReentrantLock appendLock;
+    // Held by the thread forcing the log, taken before appendLock
+    private final ReentrantLock syncLock;
+    // Orders snapshots, appends never wait for it
+    private final ReentrantLock snapshotLock;
+    private final ExecutorService snapshotter;
+    private final AtomicBoolean snapshotting;
+    private Source source;
+
+    // Guarded by appendLock
+    private long generation;
+    private FileChannel walChannel;
+    private OutputStream wal;
+    private long changesSinceSnapshot;
+    private long appendedCount;
+    // Guarded by syncLock, changes up to this count are on disk
+    private long syncedCount;
+
+    private final Metrics.Counter changes;
+    private final Metrics.Counter syncs;
+    private final Metrics.Counter snapshots;
+    private final LatencyHistogram snapshotMillis;
+
+    /**
+     * Opens (or creates) the log. Nothing is read until restore.
+     * @param directory where snapshots and logs live
+     * @param snapshotEvery changes between snapshots
+     * @param syncPolicy when changes are forced to disk
+     * @param metrics where to register the log's metrics
+     * @throws IOException
+     */
+    public StateLog(File directory, long snapshotEvery, SyncPolicy syncPolicy, Metrics metrics) throws IOException {
+        this.directory = directory.toPath();
+        this.snapshotEvery = snapshotEvery;
+        this.syncPolicy = syncPolicy;
+        this.appendLock = new ReentrantLock();
+        this.syncLock = new ReentrantLock();
+        this.snapshotLock = new ReentrantLock();
+        this.snapshotting = new AtomicBoolean();
+        this.snapshotter = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "state-snapshot");
+            t.setDaemon(true);
+            return t;
+        });
+        Files.createDirectories(this.directory);
+
+        this.changes = metrics.counter("pubsub_state_log_changes_total", "Registry changes written to the state log");
+        this.syncs = metrics.counter("pubsub_state_log_syncs_total", "Forces of the state log to disk");
+        this.snapshots = metrics.counter("pubsub_state_snapshots_total", "Registry snapshots written");
+        this.snapshotMillis = metrics.histogram("pubsub_state_snapshot_duration_ms", "Time to write a registry snapshot in milliseconds");
+        metrics.gauge("pubsub_state_log_bytes", "Size of the state snapshot and log on disk", this::sizeBytes);
+    }
+
+    /**
+     * Replays the newest snapshot and the logs after it, then starts a new
+     * log generation for appends
+     * @param apply called with every stored change, in order
+     * @param source what later snapshots are taken from
+     * @throws IOException
+     */
+    public void restore(Consumer<Command> apply, Source source) throws IOException {
+        long started = System.currentTimeMillis();
+        try (DirectoryStream<Path> abandoned = Files.newDirectoryStream(this.directory, "*" + COMPACTING_SUFFIX)) {
+            for (Path p : abandoned) {
+                Files.deleteIfExists(p);
+            }
+        }
+        TreeSet<Long> snapshotGenerations = generations(SNAPSHOT_PREFIX);
+        TreeSet<Long> walGenerations = generations(WAL_PREFIX);
+        long base = snapshotGenerations.isEmpty() ? 0 : snapshotGenerations.last();
+
+        long fromSnapshot = 0;
+        if (!snapshotGenerations.isEmpty()) {
+            fromSnapshot = replay(path(SNAPSHOT_PREFIX, base), apply);
+        }
+        long fromLog = 0;
+        for (long g : walGenerations.tailSet(base)) {
+            fromLog += replay(path(WAL_PREFIX, g), apply);
+        }
+        if (fromSnapshot + fromLog > 0) {
+            Log.info("STATELOG", "Restored " + fromSnapshot + " changes from snapshot " + base + " and " + fromLog
+                    + " from the log in " + (System.currentTimeMillis() - started) + "ms");
+        }
+
+        this.source = source;
+        long next = Math.max(base, walGenerations.isEmpty() ? 0 : walGenerations.last()) + 1;
+        this.appendLock.lock();
+        try {
+            this.generation = next;
+            openWal(path(WAL_PREFIX, next));
+            //A long log tail is worth compacting right away
+            this.changesSinceSnapshot = fromLog;
+        } finally {
+            this.appendLock.unlock();
+        }
+        maybeSnapshot();
+    }
+
+    /**
+     * Appends a change and returns once it is as durable as the sync policy asks
+     * @param change REPL_LOGIN, REPL_TOPIC, REPL_SUBSCRIBE, REPL_UNSUBSCRIBE, REPL_KEYWORDS, REPL_FILTERS or REPL_PATTERNS
+     */
+    public void append(Command change) {
+        ByteBuffer frame = WireProtocol.encode(change);
+        long count;
+        this.appendLock.lock();
+        try {
+            this.wal.write(frame.array(), frame.arrayOffset(), frame.remaining());
+            count = ++this.appendedCount;
+            this.changesSinceSnapshot++;
+            if (this.syncPolicy == SyncPolicy.NONE) {
+                this.wal.flush();
+            } else if (this.syncPolicy == SyncPolicy.ALWAYS) {
+                this.wal.flush();
+                this.walChannel.force(false);
+                this.syncs.increment();
+            }
+        } catch (IOException e) {
+            Log.error("STATELOG", "Could not log " + change, e);
+            return;
+        } finally {
+            this.appendLock.unlock();
+        }
+        if (this.syncPolicy == SyncPolicy.GROUP) {
+            try {
+                sync(count);
+            } catch (IOException e) {
+                Log.error("STATELOG", "Could not sync " + change, e);
+                return;
+            }
+        }
+        this.changes.increment();
+        maybeSnapshot();
+    }
+
+    /**
+     * Group commit: returns once the change with this count is on disk.
+     * Whoever gets the sync lock forces everything appended so far, so the
+     * changes appended meanwhile by threads waiting here are forced with it.
+     */
+    private void sync(long count) throws IOException {
+        this.syncLock.lock();
+        try {
+            if (this.syncedCount >= count) {
+                return;
+            }
+            long upTo;
+            FileChannel channel;
+            this.appendLock.lock();
+            try {
+                this.wal.flush();
+                upTo = this.appendedCount;
+                channel = this.walChannel;
+            } finally {
+                this.appendLock.unlock();
+            }
+            //Appends go on meanwhile, they wait for the next force
+            channel.force(false);
+            this.syncs.increment();
+            this.syncedCount = upTo;
+        } finally {
+            this.syncLock.unlock();
+        }
+    }
+
+    private void maybeSnapshot() {
+        if (this.changesSinceSnapshot >= this.snapshotEvery && this.snapshotting.compareAndSet(false, true)) {
+            this.snapshotter.execute(() -> {
+                try {
+                    snapshot();
+                } catch (IOException e) {
+                    Log.error("STATELOG", "Snapshot failed", e);
+                } finally {
+                    this.snapshotting.set(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Starts a new log generation, writes the current state as its
+     * snapshot and deletes everything older. Runs on the caller's thread;
+     * appends only wait for the log to roll over.
+     * @throws IOException
+     */
+    public void snapshot() throws IOException {
+        this.snapshotLock.lock();
+        try {
+            writeSnapshot();
+        } finally {
+            this.snapshotLock.unlock();
+        }
+    }
+
+    private void writeSnapshot() throws IOException {
+        long started = System.currentTimeMillis();
+        long g;
+        this.syncLock.lock();
+        this.appendLock.lock();
+        try {
+            //The old generation is complete and on disk before the snapshot replaces it
+            this.wal.flush();
+            if (this.syncPolicy != SyncPolicy.NONE) {
+                this.walChannel.force(false);
+                this.syncedCount = this.appendedCount;
+            }
+            this.wal.close();
+            g = ++this.generation;
+            openWal(path(WAL_PREFIX, g));
+            this.changesSinceSnapshot = 0;
+        } finally {
+            this.appendLock.unlock();
+            this.syncLock.unlock();
+        }
+
+        //Copied first, so the state is walked at memory speed and never waits on the disk
+        List<ByteBuffer> frames = new ArrayList<>();
+        this.source.writeTo(c -> frames.add(WireProtocol.encode(c)));
+
+        Path compacting = this.directory.resolve(SNAPSHOT_PREFIX + g + COMPACTING_SUFFIX);
+        try (FileChannel channel = FileChannel.open(compacting, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel));
+            for (ByteBuffer frame : frames) {
+                out.write(frame.array(), frame.arrayOffset(), frame.remaining());
+            }
+            out.flush();
+            if (this.syncPolicy != SyncPolicy.NONE) {
+                channel.force(true);
+            }
+        }
+        long written = frames.size();
+        Files.move(compacting, path(SNAPSHOT_PREFIX, g), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        for (long old : generations(SNAPSHOT_PREFIX).headSet(g)) {
+            Files.deleteIfExists(path(SNAPSHOT_PREFIX, old));
+        }
+        for (long old : generations(WAL_PREFIX).headSet(g)) {
+            Files.deleteIfExists(path(WAL_PREFIX, old));
+        }
+        long took = System.currentTimeMillis() - started;
+        this.snapshots.increment();
+        this.snapshotMillis.record(took);
+        Log.info("STATELOG", "Snapshot " + g + ": " + written + " entries in " + took + "ms");
+    }
+
+    /**
+     * @return count of changes read, stopping at a record torn by a crash
+     */
+    private long replay(Path file, Consumer<Command> apply) throws IOException {
+        long n = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            while (true) {
+                Command change;
+                try {
+                    change = WireProtocol.read(in);
+                } catch (EOFException e) {
+                    return n;
+                } catch (IOException e) {
+                    //A torn length field can look like anything
+                    Log.warn("STATELOG", "Stopped reading " + file.getFileName() + " at a bad record: " + e.getMessage());
+                    return n;
+                }
+                if (!change.isReplicationCommand() || !change.hasValidArgs()) {
+                    Log.warn("STATELOG", "Skipping bad record in " + file.getFileName() + ": " + change);
+                    continue;
+                }
+                apply.accept(change);
+                n++;
+            }
+        }
+    }
+
+    private TreeSet<Long> generations(String prefix) throws IOException {
+        TreeSet<Long> found = new TreeSet<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory, prefix + "*" + SUFFIX)) {
+            for (Path p : files) {
+                String name = p.getFileName().toString();
+                try {
+                    found.add(Long.parseLong(name.substring(prefix.length(), name.length() - SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    Log.warn("STATELOG", "Ignoring " + name);
+                }
+            }
+        }
+        return found;
+    }
+
+    private Path path(String prefix, long generation) {
+        return this.directory.resolve(String.format("%s%020d%s", prefix, generation, SUFFIX));
+    }
+
+    /**
+     * Opens a new log generation for appends. Caller holds appendLock.
+     * Buffered; append flushes as the sync policy asks.
+     */
+    private void openWal(Path file) throws IOException {
+        this.walChannel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.wal = new BufferedOutputStream(Channels.newOutputStream(this.walChannel));
+    }
+
+    private long sizeBytes() {
+        long total = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory)) {
+            for (Path p : files) {
+                total += Files.size(p);
+            }
+        } catch (IOException e) {
+            //Files come and go during a snapshot
+        }
+        return total;
+    }
+
+    /**
+     * Closes the log; the files stay for the next restore
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        this.snapshotter.shutdownNow();
+        this.appendLock.lock();
+        try {
+            this.wal.flush();
+            if (this.syncPolicy != SyncPolicy.NONE) {
+                this.walChannel.force(false);
+            }
+            this.wal.close();
+        } finally {
+            this.appendLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package edu.rit.cs.pubsub;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Drains an OutboundQueue onto a blocking OutputStream: the writer of
+ * Server's Handler and of the cluster and replication links.
+ *
+ * Frames are written to the (buffered) stream as they are taken and
+ * flushed once the queue runs empty, so a burst leaves in few packets.
+ * A frame only counts as written once a flush carrying it succeeded;
+ * frames still unflushed when the stream fails are reported dropped.
+ *
+ * Not thread safe, one thread drains at a time.
+ */
+class StreamWriter {
+
+    private final OutboundQueue outbound;
+    //Set once, only the draining thread uses it
+    private volatile FrameCompressor compressor;
+    //Only the draining thread adds to this
+    private volatile long bytesOut;
+
+    /**
+     * StreamWriter constructor
+     * @param outbound queue to drain
+     */
+    StreamWriter(OutboundQueue outbound) {
+        this.outbound = outbound;
+    }
+
+    /**
+     * Deflates every frame taken from now on, see FrameCompressor
+     * @param compressor the connection's compressor
+     * @return false if one is already set
+     */
+    synchronized boolean setCompressor(FrameCompressor compressor) {
+        if (this.compressor != null) {
+            return false;
+        }
+        this.compressor = compressor;
+        return true;
+    }
+
+    /**
+     * @return bytes written so far, over every stream drained onto
+     */
+    long getBytesOut() {
+        return this.bytesOut;
+    }
+
+    /**
+     * Writes frames until the queue is closed
+     * @param out stream to write to, buffered
+     * @throws IOException when the stream fails
+     * @throws InterruptedException when interrupted waiting for a frame
+     */
+    void drain(OutputStream out) throws IOException, InterruptedException {
+        List<OutboundQueue.Frame> unflushed = new ArrayList<>();
+        try {
+            OutboundQueue.Frame frame;
+            while ((frame = this.outbound.take()) != null) {
+                FrameCompressor compressing = this.compressor;
+                ByteBuffer buffer = (compressing == null) ? frame.getBuffer() : compressing.compress(frame.getBuffer());
+                out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                this.bytesOut += buffer.remaining();
+                unflushed.add(frame);
+                if (this.outbound.isEmpty()) {
+                    out.flush();
+                    writtenAll(unflushed);
+                }
+            }
+            out.flush();
+            writtenAll(unflushed);
+        } finally {
+            for (OutboundQueue.Frame f : unflushed) {
+                f.dropped();
+            }
+        }
+    }
+
+    private static void writtenAll(List<OutboundQueue.Frame> frames) {
+        for (OutboundQueue.Frame f : frames) {
+            f.written();
+        }
+        frames.clear();
+    }
+
+    /**
+     * Frees the compressor, once nothing will be drained any more
+     */
+    void end() {
+        FrameCompressor compressing = this.compressor;
+        if (compressing != null) {
+            compressing.end();
+        }
+    }
+}
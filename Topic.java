@@ -1,6 +1,8 @@
 package edu.rit.cs.pubsub;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Topic class
@@ -9,6 +11,10 @@ public class Topic {
 	private int id;
 	private String name;
 	private List<String> keywords;
+	// Only the latest event per title matters, see Event.getConflationKey
+	private boolean conflated;
+	// Latest event per title of a conflated topic, empty otherwise
+	private ConcurrentHashMap<String, Event> latestGivenTitle;
 
 	/**
 	 * Topic Constructor
@@ -16,9 +22,21 @@ public class Topic {
 	 * @param keywords keywords associated with topic
 	 */
 	public Topic(String name, List<String> keywords){
+		this(name, keywords, false);
+	}
+
+	/**
+	 * Topic Constructor
+	 * @param name name of the Topic
+	 * @param keywords keywords associated with topic
+	 * @param conflated true if a newer event replaces older ones with its title
+	 */
+	public Topic(String name, List<String> keywords, boolean conflated){
 		this.id = EventManager.hash(name);
 		this.name = name;
 		this.keywords = keywords;
+		this.conflated = conflated;
+		this.latestGivenTitle = new ConcurrentHashMap<>();
 	}
 
 	public List<String> getKeywords() {
@@ -33,9 +51,35 @@ public class Topic {
 		return this.id;
 	}
 
+	public boolean isConflated() {
+		return this.conflated;
+	}
+
+	/**
+	 * Keeps an event as the latest of its title, unless a newer one is
+	 * already kept. Does nothing on a topic that is not conflated.
+	 * @param event Event of this topic
+	 */
+	public void updateLatest(Event event){
+		if(!this.conflated){
+			return;
+		}
+		this.latestGivenTitle.merge(event.getTitle(), event, (kept, e) -> e.isNewerThan(kept) ? e : kept);
+	}
+
+	/**
+	 * @return the latest event of every title, a copy
+	 */
+	public List<Event> getLatest(){
+		return new ArrayList<>(this.latestGivenTitle.values());
+	}
+
 	@Override
 	public String toString(){
 		String temp = "Topic [" + this.name + "] with keywords " + this.keywords.toString();
+		if(this.conflated){
+			temp = temp + " conflated";
+		}
 		return temp;
 	}
 }
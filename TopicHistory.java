@@ -0,0 +1,504 @@
+package edu.rit.cs.pubsub;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Retained events of one topic, addressed by offset: 0 for the topic's
+ * first event, then one more per event. The offset is the event's id.
+ *
+ * The newest events are held in memory, in a ring of at most capacity
+ * events. With a directory, a full ring spills its older half to the
+ * topic's segment files in one write, and reads of older offsets go to
+ * disk; the oldest segments beyond retentionBytes are deleted. Without
+ * one, events falling out of the ring are gone.
+ *
+ * Segment records: int length, long offset, long appendedAt (millis),
+ * long timestamp (micros), title, content. Segments are named by their
+ * first offset, and each keeps a sparse index (one entry per
+ * INDEX_INTERVAL records) of record positions and append times, so an
+ * offset or a time is found without scanning the whole segment.
+ *
+ * Events still in memory when the process dies are lost; close() spills
+ * them on a clean shutdown.
+ */
+public class TopicHistory {
+
+    public static final int DEFAULT_MEMORY_EVENTS = 256;
+    public static final long DEFAULT_RETENTION_BYTES = 64L * 1024 * 1024;
+
+    private static final long SEGMENT_BYTES = 8L * 1024 * 1024;
+    private static final int INDEX_INTERVAL = 64;
+    private static final int INITIAL_RING = 16;
+    private static final String SEGMENT_SUFFIX = ".history";
+
+    /**
+     * One segment file and its sparse index
+     */
+    private static class Segment {
+        private final long baseOffset;
+        private final Path path;
+        private long size;
+        private long lastOffset;
+        private long lastAppendedAt;
+
+        private long[] indexOffsets = new long[8];
+        private long[] indexPositions = new long[8];
+        private long[] indexTimes = new long[8];
+        private int indexSize;
+        private int sinceIndexed;
+
+        Segment(long baseOffset, Path path) {
+            this.baseOffset = baseOffset;
+            this.path = path;
+        }
+
+        /**
+         * Notes a record appended at position
+         */
+        void added(long offset, long position, long appendedAt, int length) {
+            if (this.indexSize == 0 || this.sinceIndexed == INDEX_INTERVAL) {
+                if (this.indexSize == this.indexOffsets.length) {
+                    int bigger = this.indexSize * 2;
+                    this.indexOffsets = Arrays.copyOf(this.indexOffsets, bigger);
+                    this.indexPositions = Arrays.copyOf(this.indexPositions, bigger);
+                    this.indexTimes = Arrays.copyOf(this.indexTimes, bigger);
+                }
+                this.indexOffsets[this.indexSize] = offset;
+                this.indexPositions[this.indexSize] = position;
+                this.indexTimes[this.indexSize] = appendedAt;
+                this.indexSize++;
+                this.sinceIndexed = 0;
+            }
+            this.sinceIndexed++;
+            this.size = position + length;
+            this.lastOffset = offset;
+            this.lastAppendedAt = appendedAt;
+        }
+
+        /**
+         * @return position of the last indexed record at or before offset
+         */
+        long positionOf(long offset) {
+            int i = Arrays.binarySearch(this.indexOffsets, 0, this.indexSize, offset);
+            return this.indexPositions[i >= 0 ? i : Math.max(0, -i - 2)];
+        }
+
+        /**
+         * @return position of the last indexed record appended before millis
+         */
+        long positionBefore(long millis) {
+            int i = 0;
+            while (i + 1 < this.indexSize && this.indexTimes[i + 1] < millis) {
+                i++;
+            }
+            return this.indexPositions[i];
+        }
+    }
+
+    private final Topic topic;
+    // Null when history is memory only
+    private final Path directory;
+    private final int capacity;
+    private final long retentionBytes;
+
+    // All guarded by this
+    private Event[] ring;
+    private long[] ringAppendedAt;
+    private int head;
+    private int size;
+    private long nextOffset;
+    private final TreeMap<Long, Segment> segments;
+    private long diskBytes;
+
+    /**
+     * Opens a topic's history, reloading its segments from a previous run
+     * @param topic Topic
+     * @param baseDirectory where every topic's segments live, null for memory only
+     * @param capacity events kept in memory
+     * @param retentionBytes size of this topic's segments to keep
+     * @throws IOException
+     */
+    public TopicHistory(Topic topic, File baseDirectory, int capacity, long retentionBytes) throws IOException {
+        this.topic = topic;
+        this.capacity = capacity;
+        this.retentionBytes = retentionBytes;
+        this.ring = new Event[Math.min(capacity, INITIAL_RING)];
+        this.ringAppendedAt = new long[this.ring.length];
+        this.segments = new TreeMap<>();
+        if (baseDirectory == null) {
+            this.directory = null;
+            return;
+        }
+        //Topic names may hold anything, e.g. '/' in hierarchical names
+        this.directory = baseDirectory.toPath().resolve(URLEncoder.encode(topic.getName(), StandardCharsets.UTF_8.name()));
+        Files.createDirectories(this.directory);
+        load();
+    }
+
+    /**
+     * Gives an event the topic's next offset and retains it
+     * @param event a new Event of this topic
+     */
+    public synchronized void append(Event event) {
+        if (this.size == this.capacity) {
+            if (this.directory != null) {
+                spill(Math.max(1, this.size / 2));
+            } else {
+                removeOldest(1);
+            }
+        }
+        if (this.size == this.ring.length) {
+            grow();
+        }
+        int slot = (this.head + this.size) % this.ring.length;
+        event.setOffset(this.nextOffset++);
+        this.ring[slot] = event;
+        this.ringAppendedAt[slot] = System.currentTimeMillis();
+        this.size++;
+    }
+
+    /**
+     * @return offset the next event will get
+     */
+    public synchronized long getNextOffset() {
+        return this.nextOffset;
+    }
+
+    /**
+     * @return oldest offset still retained
+     */
+    public synchronized long getFirstOffset() {
+        return this.segments.isEmpty() ? this.nextOffset - this.size : this.segments.firstKey();
+    }
+
+    public synchronized int getMemoryEvents() {
+        return this.size;
+    }
+
+    public synchronized long getDiskBytes() {
+        return this.diskBytes;
+    }
+
+    /**
+     * Events after an offset, oldest first. Offsets lost to retention are
+     * skipped. May return fewer than max while more remain; an empty list
+     * means caught up.
+     * @param afterOffset only events after this offset, -1 for all
+     * @param max most events to return
+     * @return records of the events
+     * @throws IOException
+     */
+    public List<OfflineStore.Record> read(long afterOffset, int max) throws IOException {
+        Segment segment;
+        long position;
+        long limit;
+        long from;
+        synchronized (this) {
+            from = afterOffset + 1;
+            long memoryStart = this.nextOffset - this.size;
+            Map.Entry<Long, Segment> e = this.segments.floorEntry(from);
+            if (e == null) {
+                e = this.segments.firstEntry();
+            }
+            while (e != null && e.getValue().lastOffset < from) {
+                e = this.segments.higherEntry(e.getKey());
+            }
+            if (from >= memoryStart || e == null) {
+                List<OfflineStore.Record> records = new ArrayList<>();
+                for (int i = (int) Math.max(0, from - memoryStart); i < this.size && records.size() < max; i++) {
+                    int slot = (this.head + i) % this.ring.length;
+                    records.add(new OfflineStore.Record(memoryStart + i, this.ringAppendedAt[slot], this.ring[slot]));
+                }
+                return records;
+            }
+            segment = e.getValue();
+            position = segment.positionOf(from);
+            limit = segment.size;
+        }
+
+        //Spilled records never change, read them without holding up publishers
+        List<OfflineStore.Record> records = new ArrayList<>();
+        try {
+            scan(segment.path, position, limit, r -> {
+                if (r.getOffset() >= from) {
+                    records.add(r);
+                }
+                return records.size() < max;
+            });
+        } catch (NoSuchFileException e) {
+            //Deleted by retention meanwhile, continue from what is left
+            return read(afterOffset, max);
+        }
+        return records;
+    }
+
+    /**
+     * @param millis wall clock time
+     * @return offset of the first event appended at or after millis,
+     * getNextOffset() if there is none
+     * @throws IOException
+     */
+    public synchronized long offsetAt(long millis) throws IOException {
+        for (Segment s : this.segments.values()) {
+            if (s.lastAppendedAt >= millis) {
+                long[] found = {s.lastOffset};
+                scan(s.path, s.positionBefore(millis), s.size, r -> {
+                    if (r.getAppendedAt() >= millis) {
+                        found[0] = r.getOffset();
+                        return false;
+                    }
+                    return true;
+                });
+                return found[0];
+            }
+        }
+        long memoryStart = this.nextOffset - this.size;
+        for (int i = 0; i < this.size; i++) {
+            if (this.ringAppendedAt[(this.head + i) % this.ring.length] >= millis) {
+                return memoryStart + i;
+            }
+        }
+        return this.nextOffset;
+    }
+
+    /**
+     * Replays the events before endOffset, for a subscriber catching up.
+     * Nothing is committed; the subscriber keeps its own position.
+     * @param endOffset first offset the subscriber gets live
+     * @return replay source
+     */
+    public ReplayTask.Source replaySource(long endOffset) {
+        return new ReplayTask.Source() {
+            @Override
+            public List<OfflineStore.Record> read(long afterOffset, int max) throws IOException {
+                List<OfflineStore.Record> records = TopicHistory.this.read(afterOffset, max);
+                records.removeIf(r -> r.getOffset() >= endOffset);
+                return records;
+            }
+
+            @Override
+            public void commit(long offset) {
+            }
+        };
+    }
+
+    /**
+     * Spills everything still in memory, for a clean shutdown
+     */
+    public synchronized void close() {
+        if (this.directory != null && this.size > 0) {
+            spill(this.size);
+        }
+    }
+
+    private void grow() {
+        Event[] bigger = new Event[Math.min(this.capacity, this.ring.length * 2)];
+        long[] biggerAppendedAt = new long[bigger.length];
+        for (int i = 0; i < this.size; i++) {
+            int slot = (this.head + i) % this.ring.length;
+            bigger[i] = this.ring[slot];
+            biggerAppendedAt[i] = this.ringAppendedAt[slot];
+        }
+        this.ring = bigger;
+        this.ringAppendedAt = biggerAppendedAt;
+        this.head = 0;
+    }
+
+    private void removeOldest(int n) {
+        for (int i = 0; i < n; i++) {
+            this.ring[this.head] = null;
+            this.head = (this.head + 1) % this.ring.length;
+        }
+        this.size -= n;
+    }
+
+    /**
+     * Writes the oldest n events in memory to the active segment in one
+     * write and drops them from memory. Caller holds this.
+     */
+    private void spill(int n) {
+        long firstOffset = this.nextOffset - this.size;
+        byte[][] encoded = new byte[n][];
+        int total = 0;
+        for (int i = 0; i < n; i++) {
+            int slot = (this.head + i) % this.ring.length;
+            encoded[i] = encode(firstOffset + i, this.ringAppendedAt[slot], this.ring[slot]);
+            total += encoded[i].length;
+        }
+
+        Map.Entry<Long, Segment> last = this.segments.lastEntry();
+        Segment active = (last == null || last.getValue().size >= SEGMENT_BYTES) ? null : last.getValue();
+        if (active == null) {
+            active = new Segment(firstOffset, segmentPath(firstOffset));
+        }
+
+        ByteBuffer batch = ByteBuffer.allocate(total);
+        for (byte[] record : encoded) {
+            batch.put(record);
+        }
+        batch.flip();
+        try (FileChannel channel = FileChannel.open(active.path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long position = active.size;
+            while (batch.hasRemaining()) {
+                position += channel.write(batch, position);
+            }
+        } catch (IOException e) {
+            Log.error("HISTORY", "Could not spill " + n + " events of " + this.topic.getName() + ", dropping them", e);
+            removeOldest(n);
+            return;
+        }
+
+        this.segments.putIfAbsent(active.baseOffset, active);
+        long position = active.size;
+        for (int i = 0; i < n; i++) {
+            int slot = (this.head + i) % this.ring.length;
+            active.added(firstOffset + i, position, this.ringAppendedAt[slot], encoded[i].length);
+            position += encoded[i].length;
+        }
+        this.diskBytes += total;
+        removeOldest(n);
+        enforceRetention();
+    }
+
+    /**
+     * Deletes the oldest segments beyond retentionBytes, keeping the active one
+     */
+    private void enforceRetention() {
+        while (this.diskBytes > this.retentionBytes && this.segments.size() > 1) {
+            Segment oldest = this.segments.pollFirstEntry().getValue();
+            this.diskBytes -= oldest.size;
+            try {
+                Files.deleteIfExists(oldest.path);
+            } catch (IOException e) {
+                Log.error("HISTORY", "Could not delete " + oldest.path, e);
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the segment indexes, cutting off a record torn by a crash
+     */
+    private void load() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> found = Files.newDirectoryStream(this.directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path p : found) {
+                files.add(p);
+            }
+        }
+        files.sort(null);
+        for (Path p : files) {
+            String name = p.getFileName().toString();
+            Segment s = new Segment(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), p);
+            long valid = scan(p, 0, Long.MAX_VALUE, r -> true, s);
+            if (valid < Files.size(p)) {
+                Log.warn("HISTORY", "Truncating torn record in " + p);
+                try (FileChannel channel = FileChannel.open(p, StandardOpenOption.WRITE)) {
+                    channel.truncate(valid);
+                }
+            }
+            if (s.indexSize == 0) {
+                Files.delete(p);
+                continue;
+            }
+            this.segments.put(s.baseOffset, s);
+            this.diskBytes += s.size;
+            this.nextOffset = s.lastOffset + 1;
+        }
+    }
+
+    private interface RecordVisitor {
+        /**
+         * @return false to stop scanning
+         */
+        boolean visit(OfflineStore.Record record);
+    }
+
+    private long scan(Path path, long position, long limit, RecordVisitor visitor) throws IOException {
+        return scan(path, position, limit, visitor, null);
+    }
+
+    /**
+     * Reads records from position until limit, the end of the file or the
+     * visitor stops
+     * @param indexInto segment to index every record into, or null
+     * @return position after the last complete record read
+     */
+    private long scan(Path path, long position, long limit, RecordVisitor visitor, Segment indexInto) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            channel.position(position);
+            InputStream stream = Channels.newInputStream(channel);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+            while (position < limit) {
+                byte[] body;
+                try {
+                    body = new byte[in.readInt()];
+                    in.readFully(body);
+                } catch (EOFException e) {
+                    break;
+                }
+                OfflineStore.Record r = decode(ByteBuffer.wrap(body));
+                if (indexInto != null) {
+                    indexInto.added(r.getOffset(), position, r.getAppendedAt(), 4 + body.length);
+                }
+                position += 4 + body.length;
+                if (!visitor.visit(r)) {
+                    break;
+                }
+            }
+            return position;
+        }
+    }
+
+    private static byte[] encode(long offset, long appendedAt, Event event) {
+        byte[] title = event.getTitle().getBytes(StandardCharsets.UTF_8);
+        byte[] content = event.getContent().getBytes(StandardCharsets.UTF_8);
+        int bodyLength = 8 + 8 + 8 + 4 + title.length + 4 + content.length;
+        ByteBuffer buffer = ByteBuffer.allocate(4 + bodyLength);
+        buffer.putInt(bodyLength);
+        buffer.putLong(offset);
+        buffer.putLong(appendedAt);
+        buffer.putLong(event.getTimestamp());
+        buffer.putInt(title.length);
+        buffer.put(title);
+        buffer.putInt(content.length);
+        buffer.put(content);
+        return buffer.array();
+    }
+
+    private OfflineStore.Record decode(ByteBuffer body) {
+        long offset = body.getLong();
+        long appendedAt = body.getLong();
+        long timestamp = body.getLong();
+        byte[] title = new byte[body.getInt()];
+        body.get(title);
+        byte[] content = new byte[body.getInt()];
+        body.get(content);
+        Event event = new Event(this.topic, new String(title, StandardCharsets.UTF_8),
+                new String(content, StandardCharsets.UTF_8), timestamp, offset);
+        return new OfflineStore.Record(offset, appendedAt, event);
+    }
+
+    private Path segmentPath(long baseOffset) {
+        return this.directory.resolve(String.format("%020d%s", baseOffset, SEGMENT_SUFFIX));
+    }
+}
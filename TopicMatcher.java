@@ -0,0 +1,231 @@
+package edu.rit.cs.pubsub;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Matches wildcard topic subscriptions against hierarchical topic names.
+ *
+ * Topic names are levels separated by '/' ("market/eu/fx"); a name
+ * without '/' is a single level. A pattern may use "+" for exactly one
+ * level ("market/+/fx") and "#" as its last level for any number of
+ * levels, none included ("market/#" matches "market" and "market/eu/fx").
+ *
+ * Two tries keyed by level: one of topics, walked along a pattern to find
+ * the topics it matches, and one of patterns, walked along a new topic's
+ * levels to find the users whose patterns match it. The latter costs the
+ * topic's depth times the wildcard branches actually present, never the
+ * number of subscriptions.
+ *
+ * Safe for concurrent use. Both sides index first and match second, so a
+ * subscribe racing an advertise is seen by at least one of them.
+ */
+public class TopicMatcher {
+
+    public static final String SEPARATOR = "/";
+    public static final String SINGLE_LEVEL = "+";
+    public static final String MULTI_LEVEL = "#";
+
+    /**
+     * Trie node, keyed by level
+     */
+    private static class Node {
+        private final ConcurrentHashMap<String, Node> children = new ConcurrentHashMap<>();
+        // Set when a topic ends here (topic trie)
+        private volatile Topic topic;
+        // Users whose pattern ends here (pattern trie)
+        private final Set<String> users = ConcurrentHashMap.newKeySet();
+
+        Node child(String level) {
+            return this.children.get(level);
+        }
+
+        Node childOrCreate(String level) {
+            return this.children.computeIfAbsent(level, k -> new Node());
+        }
+    }
+
+    private final Node topicTrie;
+    private final Node patternTrie;
+
+    /**
+     * TopicMatcher constructor
+     */
+    public TopicMatcher() {
+        this.topicTrie = new Node();
+        this.patternTrie = new Node();
+    }
+
+    /**
+     * @param name topic name or pattern
+     * @return its levels, empty levels included
+     */
+    public static String[] levelsOf(String name) {
+        return name.split(SEPARATOR, -1);
+    }
+
+    /**
+     * @param name topic name or pattern
+     * @return true if any level is a wildcard
+     */
+    public static boolean isPattern(String name) {
+        for (String level : levelsOf(name)) {
+            if (level.equals(SINGLE_LEVEL) || level.equals(MULTI_LEVEL)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param pattern subscription pattern
+     * @throws IllegalArgumentException if a wildcard is misplaced
+     */
+    public static void validatePattern(String pattern) {
+        String[] levels = levelsOf(pattern);
+        for (int i = 0; i < levels.length; i++) {
+            String level = levels[i];
+            if (level.equals(MULTI_LEVEL) && i != levels.length - 1) {
+                throw new IllegalArgumentException(MULTI_LEVEL + " must be the last level of " + pattern);
+            }
+            if (!level.equals(SINGLE_LEVEL) && !level.equals(MULTI_LEVEL)
+                    && (level.contains(SINGLE_LEVEL) || level.contains(MULTI_LEVEL))) {
+                throw new IllegalArgumentException("Wildcards must be a whole level in " + pattern);
+            }
+        }
+    }
+
+    /**
+     * Indexes a new topic's levels
+     * @param topic Topic
+     */
+    public void addTopic(Topic topic) {
+        Node node = this.topicTrie;
+        for (String level : levelsOf(topic.getName())) {
+            node = node.childOrCreate(level);
+        }
+        node.topic = topic;
+    }
+
+    /**
+     * Users with a pattern matching the topic
+     * @param topic Topic
+     * @return usernames
+     */
+    public Set<String> matchUsers(Topic topic) {
+        Set<String> matched = new HashSet<>();
+        matchUsers(this.patternTrie, levelsOf(topic.getName()), 0, matched);
+        return matched;
+    }
+
+    private static void matchUsers(Node node, String[] levels, int depth, Set<String> matched) {
+        Node rest = node.child(MULTI_LEVEL);
+        if (rest != null) {
+            matched.addAll(rest.users);
+        }
+        if (depth == levels.length) {
+            matched.addAll(node.users);
+            return;
+        }
+        Node exact = node.child(levels[depth]);
+        if (exact != null) {
+            matchUsers(exact, levels, depth + 1, matched);
+        }
+        Node any = node.child(SINGLE_LEVEL);
+        if (any != null) {
+            matchUsers(any, levels, depth + 1, matched);
+        }
+    }
+
+    /**
+     * Records a user's pattern
+     * @param username user subscribing
+     * @param pattern a valid pattern
+     * @return topics that match it now
+     */
+    public Set<Topic> subscribe(String username, String pattern) {
+        Node node = this.patternTrie;
+        for (String level : levelsOf(pattern)) {
+            node = node.childOrCreate(level);
+        }
+        node.users.add(username);
+        return matchTopics(pattern);
+    }
+
+    /**
+     * Forgets a user's patterns
+     * @param username user unsubscribing
+     * @param patterns patterns the user subscribed with
+     */
+    public void unsubscribe(String username, List<String> patterns) {
+        for (String pattern : patterns) {
+            Node node = this.patternTrie;
+            for (String level : levelsOf(pattern)) {
+                node = node.child(level);
+                if (node == null) {
+                    break;
+                }
+            }
+            if (node != null) {
+                node.users.remove(username);
+            }
+        }
+    }
+
+    /**
+     * Topics matching a pattern, found by walking the topic trie along it
+     * @param pattern a valid pattern
+     * @return topics
+     */
+    public Set<Topic> matchTopics(String pattern) {
+        Set<Topic> matched = new HashSet<>();
+        String[] levels = levelsOf(pattern);
+        ArrayDeque<Node> nodes = new ArrayDeque<>();
+        ArrayDeque<Integer> depths = new ArrayDeque<>();
+        nodes.push(this.topicTrie);
+        depths.push(0);
+        while (!nodes.isEmpty()) {
+            Node node = nodes.pop();
+            int depth = depths.pop();
+            if (depth == levels.length) {
+                addTopicOf(node, matched);
+            } else if (levels[depth].equals(MULTI_LEVEL)) {
+                addSubtree(node, matched);
+            } else if (levels[depth].equals(SINGLE_LEVEL)) {
+                for (Node child : node.children.values()) {
+                    nodes.push(child);
+                    depths.push(depth + 1);
+                }
+            } else {
+                Node child = node.child(levels[depth]);
+                if (child != null) {
+                    nodes.push(child);
+                    depths.push(depth + 1);
+                }
+            }
+        }
+        return matched;
+    }
+
+    private static void addSubtree(Node start, Set<Topic> matched) {
+        ArrayDeque<Node> stack = new ArrayDeque<>();
+        stack.push(start);
+        while (!stack.isEmpty()) {
+            Node node = stack.pop();
+            addTopicOf(node, matched);
+            for (Node child : node.children.values()) {
+                stack.push(child);
+            }
+        }
+    }
+
+    private static void addTopicOf(Node node, Set<Topic> matched) {
+        Topic topic = node.topic;
+        if (topic != null) {
+            matched.add(topic);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package edu.rit.cs.pubsub;
+
+import java.util.List;
+
+/**
+ * A transport accepts client connections, forwards their commands to the
+ * EventManager and writes responses/events back to them.
+ *
+ * Server is the blocking thread-per-connection implementation,
+ * NioServer multiplexes connections over a few selector threads.
+ * Both give every connection its own bounded OutboundQueue, so writing
+ * to a client never blocks the caller.
+ */
+public interface Transport {
+
+    /**
+     * Accepts clients and dispatches their input to the EventManager,
+     * telling it when each connection's session ends. Does not return.
+     * @param eventManager the EventManager commands are passed to
+     */
+    public void listen(EventManager eventManager);
+
+    /**
+     * Whether a session's connection is open
+     * @param sessionId session id, see Connection.getSessionId
+     * @return true if online
+     */
+    public boolean isSessionOnline(String sessionId);
+
+    /**
+     * Writes to clients given a list of sessions
+     * @param message
+     * @param sessionIds
+     */
+    public void writeToSessions(Command message, List<String> sessionIds);
+
+    /**
+     * Encodes a message once, in the buffer kind this transport writes
+     * best, for writing to many clients
+     * @param message Command to encode
+     * @return SharedFrame, the caller releases it when done writing
+     */
+    public SharedFrame share(Command message);
+
+    /**
+     * Writes an already encoded frame to clients given a list of sessions
+     * @param frame frame from share()
+     * @param sessionIds
+     */
+    public void writeToSessions(SharedFrame frame, List<String> sessionIds);
+
+    /**
+     * Writes to the client of a session
+     * @param message
+     * @param sessionId
+     */
+    public void writeToSession(Command message, String sessionId);
+
+    /**
+     * Writes to all connected clients
+     * @param message
+     */
+    public void writeToAllClients(Command message);
+
+    /**
+     * Drop and disconnect counters of the per-connection outbound queues
+     * @return shared Stats
+     */
+    public OutboundQueue.Stats getOutboundStats();
+
+    /**
+     * Stops accepting clients and closes the listen socket
+     * @return true if shutdown, false if not
+     */
+    public boolean shutdownServer();
+}
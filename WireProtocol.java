@@ -0,0 +1,239 @@
+package edu.rit.cs.pubsub;
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.IntFunction;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Length-prefixed binary framing for Commands, shared by Client and both transports.
+ *
+ * Frame layout (big endian):
+ *   int    length of everything after this field
+ *   byte   opcode
+ *   int    correlation id, 0 if none
+ *   short  argument count
+ *   per argument: int byte length, UTF-8 bytes
+ *
+ * A COMPRESSED frame has no arguments; the rest of its body is one frame
+ * deflated by the sender's FrameCompressor. Only a reader that keeps an
+ * Inflater for the connection can decode it.
+ */
+public final class WireProtocol {
+
+	//Refuse frames larger than this, a corrupt length would otherwise allocate gigabytes
+	public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+	private static final int LENGTH_FIELD_SIZE = 4;
+
+	//opcode, correlation id, argument count
+	private static final int HEADER_SIZE = 1 + 4 + 2;
+
+	private WireProtocol(){
+	}
+
+	/**
+	 * Encodes a Command into a new buffer ready for writing (position 0, limit = frame end)
+	 * @param command Command to encode
+	 * @return ByteBuffer holding one frame
+	 */
+	public static ByteBuffer encode(Command command){
+		return encode(command, ByteBuffer::allocate);
+	}
+
+	/**
+	 * Encodes a Command into a buffer from allocator (position 0, limit = frame end)
+	 * @param command Command to encode
+	 * @param allocator given the frame size, returns an empty buffer with at least that capacity
+	 * @return ByteBuffer holding one frame
+	 */
+	public static ByteBuffer encode(Command command, IntFunction<ByteBuffer> allocator){
+		String[] args = command.getArgs();
+		byte[][] encodedArgs = new byte[args.length][];
+		int bodyLength = HEADER_SIZE;
+		for(int i = 0; i < args.length; i++){
+			encodedArgs[i] = args[i].getBytes(StandardCharsets.UTF_8);
+			bodyLength += 4 + encodedArgs[i].length;
+		}
+
+		ByteBuffer buffer = allocator.apply(LENGTH_FIELD_SIZE + bodyLength);
+		buffer.putInt(bodyLength);
+		buffer.put(command.getOpcode());
+		buffer.putInt(command.getCorrelationId());
+		buffer.putShort((short) args.length);
+		for(byte[] arg : encodedArgs){
+			buffer.putInt(arg.length);
+			buffer.put(arg);
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Wraps deflated bytes in a COMPRESSED frame
+	 * @param deflated output of a FrameCompressor's Deflater
+	 * @param length bytes of deflated to use
+	 * @return ByteBuffer holding one frame
+	 */
+	static ByteBuffer compressed(byte[] deflated, int length){
+		ByteBuffer buffer = ByteBuffer.allocate(LENGTH_FIELD_SIZE + HEADER_SIZE + length);
+		buffer.putInt(HEADER_SIZE + length);
+		buffer.put(Command.COMPRESSED);
+		buffer.putInt(0);
+		buffer.putShort((short) 0);
+		buffer.put(deflated, 0, length);
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Decodes one frame if the buffer holds a complete one.
+	 * On success the position moves past the frame, otherwise it is unchanged.
+	 * @param buffer buffer in read mode
+	 * @return Command, or null if more bytes are needed
+	 * @throws ProtocolException on a malformed frame
+	 */
+	public static Command decode(ByteBuffer buffer) throws ProtocolException {
+		return decode(buffer, null);
+	}
+
+	/**
+	 * Decodes one frame if the buffer holds a complete one, inflating it
+	 * if it is COMPRESSED.
+	 * On success the position moves past the frame, otherwise it is unchanged.
+	 * @param buffer buffer in read mode
+	 * @param inflater the connection's raw Inflater, null if compression was never asked for
+	 * @return Command, or null if more bytes are needed
+	 * @throws ProtocolException on a malformed frame
+	 */
+	public static Command decode(ByteBuffer buffer, Inflater inflater) throws ProtocolException {
+		if(buffer.remaining() < LENGTH_FIELD_SIZE){
+			return null;
+		}
+		int start = buffer.position();
+		int bodyLength = buffer.getInt(start);
+		checkLength(bodyLength);
+		if(buffer.remaining() < LENGTH_FIELD_SIZE + bodyLength){
+			return null;
+		}
+
+		int end = start + LENGTH_FIELD_SIZE + bodyLength;
+		buffer.position(start + LENGTH_FIELD_SIZE);
+		try{
+			byte opcode = buffer.get();
+			int correlationId = buffer.getInt();
+			int argCount = buffer.getShort() & 0xFFFF;
+			if(opcode == Command.COMPRESSED){
+				if(inflater == null){
+					throw new ProtocolException("Compressed frame on an uncompressed connection");
+				}
+				ByteBuffer inner = inflate(buffer, end, inflater);
+				buffer.position(end);
+				Command command = decode(inner, null);
+				if(command == null || inner.hasRemaining()){
+					throw new ProtocolException("Compressed frame does not hold one frame");
+				}
+				return command;
+			}
+			String[] args = new String[argCount];
+			for(int i = 0; i < argCount; i++){
+				int argLength = buffer.getInt();
+				if(argLength < 0 || buffer.position() + argLength > end){
+					throw new ProtocolException("Argument overruns frame");
+				}
+				byte[] arg = new byte[argLength];
+				buffer.get(arg);
+				args[i] = new String(arg, StandardCharsets.UTF_8);
+			}
+			if(buffer.position() != end){
+				throw new ProtocolException("Trailing bytes in frame");
+			}
+			return new Command(opcode, correlationId, args);
+		}
+		catch(java.nio.BufferUnderflowException e){
+			throw new ProtocolException("Truncated frame");
+		}
+	}
+
+	/**
+	 * Inflates the rest of a COMPRESSED frame's body
+	 * @return the frame it holds, in read mode
+	 */
+	private static ByteBuffer inflate(ByteBuffer buffer, int end, Inflater inflater) throws ProtocolException {
+		ByteBuffer deflated = buffer.duplicate();
+		deflated.limit(end);
+		inflater.setInput(deflated);
+		byte[] output = new byte[Math.max(64, (end - buffer.position()) * 4)];
+		int length = 0;
+		try{
+			while(true){
+				if(length == output.length){
+					if(output.length >= LENGTH_FIELD_SIZE + MAX_FRAME_LENGTH){
+						throw new ProtocolException("Compressed frame too large");
+					}
+					output = Arrays.copyOf(output, Math.min(output.length * 2, LENGTH_FIELD_SIZE + MAX_FRAME_LENGTH));
+				}
+				int n = inflater.inflate(output, length, output.length - length);
+				length += n;
+				if(n == 0 && (inflater.needsInput() || inflater.finished() || inflater.needsDictionary())){
+					break;
+				}
+			}
+		}
+		catch(DataFormatException e){
+			throw new ProtocolException("Corrupt compressed frame: " + e.getMessage());
+		}
+		return ByteBuffer.wrap(output, 0, length);
+	}
+
+	/**
+	 * Blocking read of one frame from a stream
+	 * @param in stream positioned at a frame boundary
+	 * @return Command
+	 * @throws EOFException when the peer closed the connection
+	 * @throws IOException on read failure or a malformed frame
+	 */
+	public static Command read(DataInputStream in) throws IOException {
+		return read(in, null);
+	}
+
+	/**
+	 * Blocking read of one frame from a stream, inflating it if it is COMPRESSED
+	 * @param in stream positioned at a frame boundary
+	 * @param inflater the connection's raw Inflater, null if compression was never asked for
+	 * @return Command
+	 * @throws EOFException when the peer closed the connection
+	 * @throws IOException on read failure or a malformed frame
+	 */
+	public static Command read(DataInputStream in, Inflater inflater) throws IOException {
+		int bodyLength = in.readInt();
+		checkLength(bodyLength);
+		byte[] frame = new byte[LENGTH_FIELD_SIZE + bodyLength];
+		in.readFully(frame, LENGTH_FIELD_SIZE, bodyLength);
+		ByteBuffer buffer = ByteBuffer.wrap(frame);
+		buffer.putInt(0, bodyLength);
+		return decode(buffer, inflater);
+	}
+
+	/**
+	 * Blocking write of one frame to a stream. Flushes.
+	 * @param out stream
+	 * @param command Command to write
+	 * @throws IOException on write failure
+	 */
+	public static void write(OutputStream out, Command command) throws IOException {
+		ByteBuffer frame = encode(command);
+		out.write(frame.array(), frame.arrayOffset(), frame.remaining());
+		out.flush();
+	}
+
+	private static void checkLength(int bodyLength) throws ProtocolException {
+		if(bodyLength < HEADER_SIZE || bodyLength > MAX_FRAME_LENGTH){
+			throw new ProtocolException("Bad frame length " + bodyLength);
+		}
+	}
+}
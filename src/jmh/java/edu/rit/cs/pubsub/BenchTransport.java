@@ -0,0 +1,94 @@
+package edu.rit.cs.pubsub;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * Transport with no sockets: every client is online and writes are
+ * counted, with each connection's copy of a shared frame retained and
+ * released as a real connection would.
+ */
+class BenchTransport implements Transport {
+    private final OutboundQueue.Stats stats = new OutboundQueue.Stats();
+    private long frames;
+    private long shares;
+
+    /**
+     * An EventManager on this transport, with an empty offline store and
+     * broker logging kept off the results
+     * @param transport transport the EventManager writes to
+     * @return EventManager
+     */
+    static EventManager newEventManager(BenchTransport transport) {
+        Log.setLevel(Log.Level.WARN);
+        BrokerConfig config = new BrokerConfig(0);
+        try {
+            config.setOfflineDirectory(Files.createTempDirectory("pubsub-bench").toString());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new EventManager(config, transport);
+    }
+
+    @Override
+    public void listen(EventManager eventManager) {
+        throw new UnsupportedOperationException("BenchTransport does not accept clients");
+    }
+
+    @Override
+    public boolean isSessionOnline(String sessionId) {
+        return true;
+    }
+
+    @Override
+    public void writeToSessions(Command message, List<String> sessionIds) {
+        SharedFrame frame = share(message);
+        writeToSessions(frame, sessionIds);
+        frame.release();
+    }
+
+    @Override
+    public SharedFrame share(Command message) {
+        this.shares++;
+        return SharedFrame.encode(message, true);
+    }
+
+    @Override
+    public void writeToSessions(SharedFrame frame, List<String> sessionIds) {
+        for (int i = 0; i < sessionIds.size(); i++) {
+            frame.retain();
+            frame.release();
+            this.frames++;
+        }
+    }
+
+    @Override
+    public void writeToSession(Command message, String sessionId) {
+        WireProtocol.encode(message);
+        this.frames++;
+    }
+
+    @Override
+    public void writeToAllClients(Command message) {
+        WireProtocol.encode(message);
+    }
+
+    @Override
+    public OutboundQueue.Stats getOutboundStats() {
+        return this.stats;
+    }
+
+    @Override
+    public boolean shutdownServer() {
+        return true;
+    }
+
+    /**
+     * @return frames written per shared frame encoded
+     */
+    double framesPerPublish() {
+        return this.shares == 0 ? 0 : (double) this.frames / this.shares;
+    }
+}
@@ -0,0 +1,74 @@
+package edu.rit.cs.pubsub;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Command dispatch through the EventManager over 1000 topics, with no
+ * subscribers so only the lookups and bookkeeping are measured
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+    private static final int TOPICS = 1000;
+
+    /**
+     * A logged in user and the advertised topics
+     */
+    @State(Scope.Thread)
+    public static class Broker {
+        EventManager em;
+        String[] publish;
+        String[] subscribe;
+        String[] unsubscribe;
+        int i;
+
+        @Setup
+        public void setup() {
+            this.em = BenchTransport.newEventManager(new BenchTransport());
+            this.em.passInput("10.0.0.1 login bench");
+            this.publish = new String[TOPICS];
+            this.subscribe = new String[TOPICS];
+            this.unsubscribe = new String[TOPICS];
+            for (int t = 0; t < TOPICS; t++) {
+                this.em.passInput("10.0.0.1 advertise topic" + t + " k" + (t % 50));
+                this.publish[t] = "10.0.0.1 publish topic" + t + " title content";
+                this.subscribe[t] = "10.0.0.1 subscribe topic topic" + t;
+                this.unsubscribe[t] = "10.0.0.1 unsubscribe topic" + t;
+            }
+        }
+
+        int next() {
+            int t = this.i;
+            this.i = (t + 1) % TOPICS;
+            return t;
+        }
+    }
+
+    @Benchmark
+    public void publishNoSubscribers(Broker broker, Blackhole bh) {
+        bh.consume(broker.em.passInput(broker.publish[broker.next()]));
+    }
+
+    @Benchmark
+    public void subscribeUnsubscribe(Broker broker, Blackhole bh) {
+        int t = broker.next();
+        bh.consume(broker.em.passInput(broker.subscribe[t]));
+        bh.consume(broker.em.passInput(broker.unsubscribe[t]));
+    }
+}
@@ -0,0 +1,69 @@
+package edu.rit.cs.pubsub;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Publishing to one hot topic with a growing number of online subscribers.
+ * The transport treats every client as online, so this measures dispatch
+ * and encoding, not sockets.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanOutBenchmark {
+
+    /**
+     * A publisher, the hot topic and its subscribers, next to cold topics
+     */
+    @State(Scope.Thread)
+    public static class Broker {
+        @Param({"1", "100", "1000", "10000"})
+        int subscribers;
+
+        BenchTransport transport;
+        EventManager em;
+        long i;
+
+        @Setup
+        public void setup() {
+            this.transport = new BenchTransport();
+            this.em = BenchTransport.newEventManager(this.transport);
+            this.em.passInput("10.1.0.0 login publisher");
+            this.em.passInput("10.1.0.0 advertise hot k");
+            for (int t = 0; t < 100; t++) {
+                this.em.passInput("10.1.0.0 advertise cold" + t + " c");
+            }
+            for (int u = 0; u < this.subscribers; u++) {
+                String ip = "10.2." + (u / 250) + "." + (u % 250);
+                this.em.passInput(ip + " login user" + u);
+                this.em.passInput(ip + " subscribe topic hot");
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            System.out.printf("frames/publish: %.1f%n", this.transport.framesPerPublish());
+        }
+    }
+
+    @Benchmark
+    public void publish(Broker broker, Blackhole bh) {
+        bh.consume(broker.em.passInput("10.1.0.0 publish hot title event content " + broker.i++));
+    }
+}
@@ -0,0 +1,57 @@
+package edu.rit.cs.pubsub;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Advertising a topic to users subscribed by keyword, one user in ten
+ * matching; the rest are noise for the KeywordMatcher to skip
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeywordBenchmark {
+
+    /**
+     * Users subscribed by keyword. Every advertise adds a topic, so each
+     * iteration starts from a fresh broker.
+     */
+    @State(Scope.Thread)
+    public static class Broker {
+        @Param({"100", "10000"})
+        int users;
+
+        EventManager em;
+        long i;
+
+        @Setup(Level.Iteration)
+        public void setup() {
+            this.em = BenchTransport.newEventManager(new BenchTransport());
+            for (int u = 0; u < this.users; u++) {
+                String ip = "10.3." + (u / 250) + "." + (u % 250);
+                this.em.passInput(ip + " login user" + u);
+                this.em.passInput(ip + " subscribe keywords " + (u % 10 == 0 ? "news" : "k" + u) + ",sports.*");
+            }
+        }
+    }
+
+    @Benchmark
+    public void advertise(Broker broker, Blackhole bh) {
+        bh.consume(broker.em.passInput("10.3.0.0 advertise topic" + broker.i++ + " news,sports.tennis"));
+    }
+}
@@ -0,0 +1,74 @@
+package edu.rit.cs.pubsub;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing console commands and encoding/decoding wire frames
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WireBenchmark {
+
+    /**
+     * A publish command and its encoded frame
+     */
+    @State(Scope.Thread)
+    public static class Frames {
+        String publishLine;
+        String advertiseLine;
+        Command publish;
+        ByteBuffer encoded;
+
+        @Setup
+        public void setup() {
+            this.publishLine = "publish sports Goal! Late winner in the 90th minute";
+            this.advertiseLine = "advertise sports ball,game,sports.football";
+            this.publish = Command.parse(this.publishLine);
+            this.encoded = WireProtocol.encode(this.publish);
+        }
+    }
+
+    @Benchmark
+    public void parsePublish(Frames frames, Blackhole bh) {
+        bh.consume(Command.parse(frames.publishLine));
+    }
+
+    @Benchmark
+    public void parseAdvertise(Frames frames, Blackhole bh) {
+        bh.consume(Command.parse(frames.advertiseLine));
+    }
+
+    @Benchmark
+    public void encode(Frames frames, Blackhole bh) {
+        bh.consume(WireProtocol.encode(frames.publish));
+    }
+
+    @Benchmark
+    public void decode(Frames frames, Blackhole bh) throws ProtocolException {
+        bh.consume(WireProtocol.decode(frames.encoded.duplicate()));
+    }
+
+    @Benchmark
+    public void encodeSharedDirect(Frames frames, Blackhole bh) {
+        SharedFrame frame = SharedFrame.encode(frames.publish, true);
+        bh.consume(frame.length());
+        frame.release();
+    }
+}
@@ -0,0 +1,312 @@
+package edu.rit.cs.pubsub;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Many threads subscribing, unsubscribing and publishing through one
+ * EventManager at once. Each user is driven by a single thread, so the
+ * thread knows which topics its user must end up subscribed to; the
+ * subscriber indexes and the deliveries are checked against that.
+ */
+class EventManagerConcurrencyTest {
+
+    private static final int TOPICS = 16;
+    private static final int USERS = 32;
+    private static final int PUBLISHERS = 4;
+    private static final int ROUNDS = 500;
+
+    @TempDir
+    Path offlineDirectory;
+
+    private CountingTransport transport;
+    private EventManager em;
+    private ExecutorService threads;
+
+    @BeforeEach
+    void setUp() {
+        Log.setLevel(Log.Level.WARN);
+        BrokerConfig config = new BrokerConfig(0);
+        config.setOfflineDirectory(this.offlineDirectory.toString());
+        this.transport = new CountingTransport();
+        this.em = new EventManager(config, this.transport);
+        this.threads = Executors.newFixedThreadPool(USERS + PUBLISHERS);
+
+        for (int p = 0; p < PUBLISHERS; p++) {
+            this.em.passInput(publisher(p) + " login publisher" + p);
+        }
+        for (int t = 0; t < TOPICS; t++) {
+            this.em.passInput(publisher(0) + " advertise " + topic(t) + " k" + t);
+            this.em.passInput(publisher(0) + " advertise churn" + t + " c" + t);
+        }
+        for (int u = 0; u < USERS; u++) {
+            this.em.passInput(session(u) + " login user" + u);
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+        this.threads.shutdownNow();
+    }
+
+    @Test
+    void concurrentSubscribeAndUnsubscribeKeepIndexesConsistent() throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Callable<Set<Integer>>> users = new ArrayList<>();
+        for (int u = 0; u < USERS; u++) {
+            int user = u;
+            users.add(() -> churn(user, "topic", start));
+        }
+        List<Future<Set<Integer>>> subscribed = submitAll(users);
+        List<Future<Integer>> publishers = startPublishers(start);
+        start.countDown();
+
+        List<Set<Integer>> expected = new ArrayList<>();
+        for (Future<Set<Integer>> f : subscribed) {
+            expected.add(f.get(60, TimeUnit.SECONDS));
+        }
+        for (Future<Integer> f : publishers) {
+            f.get(60, TimeUnit.SECONDS);
+        }
+
+        //User to topics index, as listed back to the user
+        for (int u = 0; u < USERS; u++) {
+            String listed = this.em.passInput(session(u) + " listSubscribedTopics");
+            for (int t = 0; t < TOPICS; t++) {
+                assertEquals(expected.get(u).contains(t), listed.contains("[" + topic(t) + "]"),
+                        "user" + u + " lists " + topic(t) + ": " + listed);
+            }
+        }
+
+        //Topic to users index: one more event per topic reaches exactly its subscribers
+        this.transport.reset();
+        for (int t = 0; t < TOPICS; t++) {
+            this.em.passInput(publisher(0) + " publish " + topic(t) + " final event");
+        }
+        for (int u = 0; u < USERS; u++) {
+            for (int t = 0; t < TOPICS; t++) {
+                assertEquals(expected.get(u).contains(t) ? 1 : 0, this.transport.delivered(session(u), topic(t)),
+                        "final event of " + topic(t) + " to user" + u);
+            }
+        }
+    }
+
+    @Test
+    void concurrentPublishesReachEverySubscriber() throws Exception {
+        //Fixed subscriptions on the published topics, user u takes topic t when (u + t) % 3 == 0
+        for (int u = 0; u < USERS; u++) {
+            for (int t = 0; t < TOPICS; t++) {
+                if ((u + t) % 3 == 0) {
+                    String reply = this.em.passCommand(session(u), Command.parse("subscribe topic " + topic(t)));
+                    assertTrue(reply.startsWith("You are subscribed"), reply);
+                }
+            }
+        }
+
+        //Users churn on topics nobody publishes to while the events go out
+        CountDownLatch start = new CountDownLatch(1);
+        List<Callable<Set<Integer>>> users = new ArrayList<>();
+        for (int u = 0; u < USERS; u++) {
+            int user = u;
+            users.add(() -> churn(user, "churn", start));
+        }
+        List<Future<Set<Integer>>> churned = submitAll(users);
+        List<Future<Integer>> publishers = startPublishers(start);
+        start.countDown();
+
+        int[] published = new int[TOPICS];
+        for (Future<Integer> f : publishers) {
+            f.get(60, TimeUnit.SECONDS);
+        }
+        for (Future<Set<Integer>> f : churned) {
+            f.get(60, TimeUnit.SECONDS);
+        }
+        for (int p = 0; p < PUBLISHERS; p++) {
+            for (int i = 0; i < ROUNDS; i++) {
+                published[(p + i) % TOPICS]++;
+            }
+        }
+
+        long total = 0;
+        for (int u = 0; u < USERS; u++) {
+            for (int t = 0; t < TOPICS; t++) {
+                int expected = ((u + t) % 3 == 0) ? published[t] : 0;
+                assertEquals(expected, this.transport.delivered(session(u), topic(t)),
+                        "events of " + topic(t) + " to user" + u);
+                total += expected;
+            }
+        }
+        assertEquals(total, this.transport.deliveredTotal());
+    }
+
+    /**
+     * Subscribes and unsubscribes one user at random, checking every reply
+     * against the topics the user must be subscribed to
+     * @return indexes of the topics the user ends up subscribed to
+     */
+    private Set<Integer> churn(int user, String prefix, CountDownLatch start) throws InterruptedException {
+        Set<Integer> subscribed = new HashSet<>();
+        start.await();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < ROUNDS; i++) {
+            int t = random.nextInt(TOPICS);
+            if (random.nextBoolean()) {
+                String reply = this.em.passInput(session(user) + " subscribe topic " + prefix + t);
+                assertEquals(subscribed.add(t), reply.startsWith("You are subscribed"), reply);
+            }
+            else {
+                String reply = this.em.passCommand(session(user), Command.parse("unsubscribe " + prefix + t));
+                assertEquals(subscribed.remove(t), reply.equals("Unsubscribed successfully"), reply);
+            }
+        }
+        return subscribed;
+    }
+
+    /**
+     * Publishers waiting on start, publisher p sends its i-th event to topic (p + i) % TOPICS
+     */
+    private List<Future<Integer>> startPublishers(CountDownLatch start) {
+        List<Callable<Integer>> publishers = new ArrayList<>();
+        for (int p = 0; p < PUBLISHERS; p++) {
+            int publisher = p;
+            publishers.add(() -> {
+                start.await();
+                for (int i = 0; i < ROUNDS; i++) {
+                    String topic = topic((publisher + i) % TOPICS);
+                    this.em.passCommand(publisher(publisher), Command.parse("publish " + topic + " title" + i + " content"));
+                }
+                return ROUNDS;
+            });
+        }
+        return submitAll(publishers);
+    }
+
+    private <T> List<Future<T>> submitAll(List<Callable<T>> tasks) {
+        List<Future<T>> futures = new ArrayList<>();
+        for (Callable<T> task : tasks) {
+            futures.add(this.threads.submit(task));
+        }
+        return futures;
+    }
+
+    private static String topic(int t) {
+        return "topic" + t;
+    }
+
+    private static String session(int u) {
+        return "10.2.0." + u;
+    }
+
+    private static String publisher(int p) {
+        return "10.1.0." + p;
+    }
+
+    /**
+     * Transport with no sockets: every session is online and each event
+     * written is counted per session and topic
+     */
+    private static class CountingTransport implements Transport {
+        private final OutboundQueue.Stats stats = new OutboundQueue.Stats();
+        private final Map<SharedFrame, String> topicGivenFrame = Collections.synchronizedMap(new IdentityHashMap<>());
+        private final ConcurrentHashMap<String, AtomicInteger> delivered = new ConcurrentHashMap<>();
+
+        int delivered(String sessionId, String topic) {
+            AtomicInteger count = this.delivered.get(sessionId + " " + topic);
+            return count == null ? 0 : count.get();
+        }
+
+        long deliveredTotal() {
+            long total = 0;
+            for (AtomicInteger count : this.delivered.values()) {
+                total += count.get();
+            }
+            return total;
+        }
+
+        void reset() {
+            this.delivered.clear();
+        }
+
+        @Override
+        public void listen(EventManager eventManager) {
+            throw new UnsupportedOperationException("CountingTransport does not accept clients");
+        }
+
+        @Override
+        public boolean isSessionOnline(String sessionId) {
+            return true;
+        }
+
+        @Override
+        public void writeToSessions(Command message, List<String> sessionIds) {
+            SharedFrame frame = share(message);
+            writeToSessions(frame, sessionIds);
+            frame.release();
+        }
+
+        @Override
+        public SharedFrame share(Command message) {
+            SharedFrame frame = SharedFrame.encode(message, false);
+            if (message.getOpcode() == Command.EVENT) {
+                this.topicGivenFrame.put(frame, message.getArg(0));
+            }
+            return frame;
+        }
+
+        @Override
+        public void writeToSessions(SharedFrame frame, List<String> sessionIds) {
+            String topic = this.topicGivenFrame.get(frame);
+            for (String sessionId : sessionIds) {
+                frame.retain();
+                frame.release();
+                if (topic != null) {
+                    this.delivered.computeIfAbsent(sessionId + " " + topic, k -> new AtomicInteger()).incrementAndGet();
+                }
+            }
+        }
+
+        @Override
+        public void writeToSession(Command message, String sessionId) {
+            if (message.getOpcode() == Command.EVENT) {
+                this.delivered.computeIfAbsent(sessionId + " " + message.getArg(0), k -> new AtomicInteger()).incrementAndGet();
+            }
+        }
+
+        @Override
+        public void writeToAllClients(Command message) {
+        }
+
+        @Override
+        public OutboundQueue.Stats getOutboundStats() {
+            return this.stats;
+        }
+
+        @Override
+        public boolean shutdownServer() {
+            return true;
+        }
+    }
+}